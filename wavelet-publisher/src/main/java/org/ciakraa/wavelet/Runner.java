@@ -6,11 +6,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.CommandLineRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 
+/**
+ * Polls every saved user from this instance. In cluster mode, users are split between instances by the cluster's
+ * poll balancer instead.
+ */
 @Profile("prod")
 @Component
+@ConditionalOnProperty(name = "cluster.enabled", havingValue = "false", matchIfMissing = true)
 public class Runner implements CommandLineRunner {
 
     private static final Logger LOG = LoggerFactory.getLogger(Runner.class);
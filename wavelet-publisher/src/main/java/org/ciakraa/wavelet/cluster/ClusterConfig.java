@@ -0,0 +1,54 @@
+package org.ciakraa.wavelet.cluster;
+
+import org.apache.commons.lang3.StringUtils;
+import org.ciakraa.wavelet.event.ListenedTrackPollService;
+import org.ciakraa.wavelet.web_api.SpotifyUserService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.scheduling.concurrent.ConcurrentTaskScheduler;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Cluster mode is off by default, in which case the single publisher instance polls every user.
+ * Switch it on with cluster.enabled to run several instances side by side.
+ */
+@Profile("prod")
+@Configuration
+@ConditionalOnProperty(name = "cluster.enabled", havingValue = "true")
+class ClusterConfig {
+
+    // A random id is fine: a restarted instance simply rejoins as a new member once its old lease expires.
+    @Value("${cluster.nodeId:}")
+    private String nodeId;
+
+    @Bean
+    ClusterMembership clusterMembership(RedisOperations<String, Object> redis) {
+        String id = StringUtils.isBlank(nodeId) ? UUID.randomUUID().toString() : nodeId;
+        return new ClusterMembership(id, ClusterConstants.LEASE_DURATION, redis.boundZSetOps(ClusterConstants.MEMBERS_KEY));
+    }
+
+    /**
+     * Heartbeats get a thread of their own: a rebalance lists every user and starts or cancels their polls inline,
+     * which mustn't hold up the poll wheel's tick or token refreshes on the shared scheduler.
+     */
+    @Bean(destroyMethod="shutdownNow")
+    ScheduledExecutorService clusterHeartbeatTimer() {
+        return Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("cluster-"));
+    }
+
+    @Bean(destroyMethod="stop")
+    ClusterPollBalancer clusterPollBalancer(ClusterMembership membership, SpotifyUserService userService,
+                                            ListenedTrackPollService pollService) {
+        ClusterPollBalancer balancer = new ClusterPollBalancer(membership, userService, pollService, ClusterConstants.LEASE_DURATION);
+        balancer.start(new ConcurrentTaskScheduler(clusterHeartbeatTimer()));
+        return balancer;
+    }
+}
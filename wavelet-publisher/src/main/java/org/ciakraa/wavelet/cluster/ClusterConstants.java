@@ -0,0 +1,35 @@
+package org.ciakraa.wavelet.cluster;
+
+import java.time.Duration;
+
+final class ClusterConstants {
+
+    private ClusterConstants() {
+        // Static values class doesn't need to be instantiated!
+    }
+
+    /**
+     * Redis key for a sorted set of live publisher instances, scored by when their lease expires (epoch millis).
+     */
+    static final String MEMBERS_KEY = "cluster:members";
+
+    /**
+     * Each instance renews its lease, and checks for joins and departures, every 2 seconds.
+     */
+    static final Duration HEARTBEAT_PERIOD = Duration.ofSeconds(2);
+
+    /**
+     * An instance which misses 5 heartbeats in a row is considered dead, and its users are handed to the others.
+     */
+    static final Duration LEASE_DURATION = Duration.ofSeconds(10);
+
+    /**
+     * Users who authorized the app since the last rebalance are picked up by their owner at least once a minute.
+     */
+    static final Duration RESYNC_PERIOD = Duration.ofMinutes(1);
+
+    /**
+     * Each instance is placed on the hash ring 128 times, which keeps its share of users within a few percent of even.
+     */
+    static final int VIRTUAL_NODES = 128;
+}
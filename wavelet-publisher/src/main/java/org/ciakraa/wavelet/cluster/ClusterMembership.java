@@ -0,0 +1,62 @@
+package org.ciakraa.wavelet.cluster;
+
+import org.apache.commons.lang3.Validate;
+import org.springframework.data.redis.core.BoundZSetOperations;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import static java.util.stream.Collectors.toCollection;
+
+/**
+ * Tracks the live publisher instances in Redis.
+ *
+ * Every instance holds a lease in a sorted set, scored by the time (epoch millis) at which it expires. An instance
+ * stays a member for as long as it keeps renewing its lease; once a lease has expired, the instance is dropped from
+ * the set by whoever notices first. Leases are compared against each instance's own clock, so clocks are expected to
+ * be in sync to well within a lease.
+ */
+final class ClusterMembership {
+
+    private final String nodeId;
+    private final Duration leaseDuration;
+    private final BoundZSetOperations<String, Object> members;
+
+    ClusterMembership(String nodeId, Duration leaseDuration, BoundZSetOperations<String, Object> members) {
+        Validate.notBlank(nodeId);
+        Validate.isTrue(!leaseDuration.isNegative() && !leaseDuration.isZero());
+        Validate.notNull(members);
+
+        this.nodeId = nodeId;
+        this.leaseDuration = leaseDuration;
+        this.members = members;
+    }
+
+    String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Renews this instance's lease, reaps any expired leases, and returns the ids of every live instance (this one included).
+     */
+    SortedSet<String> heartbeat(Instant now) {
+        long nowMillis = now.toEpochMilli();
+
+        members.add(nodeId, now.plus(leaseDuration).toEpochMilli());
+        members.removeRangeByScore(Double.NEGATIVE_INFINITY, nowMillis);
+
+        return members.rangeByScore(nowMillis, Double.POSITIVE_INFINITY)
+                .stream()
+                .map(String::valueOf)
+                .collect(toCollection(TreeSet::new));
+    }
+
+    /**
+     * Gives up this instance's lease straight away, so the others can take over its users without waiting for it to expire.
+     */
+    void leave() {
+        members.remove(nodeId);
+    }
+}
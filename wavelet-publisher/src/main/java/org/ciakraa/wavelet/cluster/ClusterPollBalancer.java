@@ -0,0 +1,132 @@
+package org.ciakraa.wavelet.cluster;
+
+import org.apache.commons.lang3.Validate;
+import org.ciakraa.wavelet.event.ListenedTrackPollService;
+import org.ciakraa.wavelet.web_api.SpotifyUserCredentials;
+import org.ciakraa.wavelet.web_api.SpotifyUserService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * In cluster mode, splits users across the live publisher instances so that each user is polled by exactly one of them.
+ *
+ * On every heartbeat, the instance renews its lease in {@link ClusterMembership}. Whenever an instance joins or leaves,
+ * and at least once every resync period (to pick up newly authorized users), users are assigned to instances with a
+ * {@link ConsistentHashRing}: this instance starts polls for the users it now owns, and cancels polls for the users it
+ * no longer owns. Instances notice a join or departure on their own heartbeats, so for up to one heartbeat a moving
+ * user may be polled by both its old and new owner; the track cache in Redis keeps that from publishing duplicates.
+ * Heartbeats, rebalances included, run on a scheduler of their own, so a slow rebalance only delays the next heartbeat.
+ *
+ * If this instance can't renew its lease for a whole lease duration, the others will have taken over its users by now,
+ * so it stops all of its polls until it can rejoin.
+ */
+final class ClusterPollBalancer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClusterPollBalancer.class);
+
+    private final ClusterMembership membership;
+    private final SpotifyUserService userService;
+    private final ListenedTrackPollService pollService;
+    private final Duration leaseDuration;
+
+    // Only read and written by the heartbeat thread.
+    private Set<String> members = Collections.emptySet();
+    private Instant lastRenewed = Instant.MIN;
+    private Instant nextResync = Instant.MIN;
+
+    private ScheduledFuture<?> heartbeat;
+
+    ClusterPollBalancer(ClusterMembership membership, SpotifyUserService userService, ListenedTrackPollService pollService,
+                        Duration leaseDuration) {
+        Validate.notNull(membership);
+        Validate.notNull(userService);
+        Validate.notNull(pollService);
+
+        this.membership = membership;
+        this.userService = userService;
+        this.pollService = pollService;
+        this.leaseDuration = leaseDuration;
+    }
+
+    synchronized void start(TaskScheduler scheduler) {
+        Validate.validState(heartbeat == null, "Cluster poll balancer has already been started.");
+        LOG.info("Joining publisher cluster as {}", membership.getNodeId());
+        heartbeat = scheduler.scheduleAtFixedRate(() -> heartbeat(Instant.now()), ClusterConstants.HEARTBEAT_PERIOD);
+    }
+
+    synchronized void stop() {
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+        }
+
+        try {
+            membership.leave();
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to leave publisher cluster, our lease will expire instead:", e);
+        }
+    }
+
+    void heartbeat(Instant now) {
+        Set<String> live;
+        try {
+            live = membership.heartbeat(now);
+            lastRenewed = now;
+        } catch (RuntimeException e) {
+            LOG.error("Failed to renew cluster lease for {}:", membership.getNodeId(), e);
+            if (!members.isEmpty() && now.isAfter(lastRenewed.plus(leaseDuration))) {
+                LOG.warn("Cluster lease for {} has expired, stopping all polls until we rejoin.", membership.getNodeId());
+                pollService.getUserIds().forEach(pollService::cancelPolls);
+                members = Collections.emptySet();
+            }
+            return;
+        }
+
+        if (live.equals(members) && now.isBefore(nextResync)) {
+            return;
+        }
+        if (!live.equals(members)) {
+            LOG.info("Publisher cluster changed from {} to {}", members, live);
+        }
+
+        try {
+            rebalance(live);
+            members = live;
+            nextResync = now.plus(ClusterConstants.RESYNC_PERIOD);
+        } catch (RuntimeException e) {
+            // Leave members as they were, so the next heartbeat tries again.
+            LOG.error("Failed to rebalance polls for {}:", membership.getNodeId(), e);
+        }
+    }
+
+    private void rebalance(Set<String> live) {
+        ConsistentHashRing ring = new ConsistentHashRing(live, ClusterConstants.VIRTUAL_NODES);
+        Set<String> polled = pollService.getUserIds();
+        Set<String> owned = new HashSet<>();
+
+        for (SpotifyUserCredentials userCred : userService.findAll()) {
+            String userId = userCred.getUserId();
+            if (!membership.getNodeId().equals(ring.getNode(userId))) {
+                continue;
+            }
+
+            owned.add(userId);
+            if (!polled.contains(userId)) {
+                pollService.addPolls(userCred);
+            }
+        }
+
+        polled.stream()
+                .filter(userId -> !owned.contains(userId))
+                .forEach(pollService::cancelPolls);
+
+        LOG.info("Instance {} now polls {} users", membership.getNodeId(), owned.size());
+    }
+}
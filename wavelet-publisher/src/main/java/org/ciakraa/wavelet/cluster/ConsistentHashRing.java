@@ -0,0 +1,51 @@
+package org.ciakraa.wavelet.cluster;
+
+import org.apache.commons.lang3.Validate;
+import org.ciakraa.wavelet.common.Hashing;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Maps user ids onto publisher instances so that each user is owned by exactly one instance, and so that an instance
+ * joining or leaving only moves about 1/n of the users, rather than reshuffling everyone.
+ *
+ * Each instance is hashed onto a 64 bit ring at a number of virtual points; a user belongs to the first point
+ * found clockwise from the user's own hash.
+ *
+ * @see <a href="https://dl.acm.org/citation.cfm?id=258660">Consistent Hashing and Random Trees</a>
+ */
+final class ConsistentHashRing {
+
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+
+    ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+        Validate.notEmpty(nodes);
+        Validate.isTrue(virtualNodes > 0);
+
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * The instance which owns the given user.
+     */
+    String getNode(String userId) {
+        Validate.notNull(userId);
+
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(userId));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * 64 bit FNV-1a, then the murmur3 finalizer to spread ids which differ only in their last few characters.
+     */
+    private static long hash(String key) {
+        return Hashing.mix(Hashing.fnv1a(key));
+    }
+}
@@ -0,0 +1,60 @@
+package org.ciakraa.wavelet.common;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The non-cryptographic hashes shared by the publisher: 64 bit FNV-1a, for hashing keys, and MurmurHash3's 64 bit
+ * finalizer, for spreading hashes whose inputs differ only slightly across all 64 bits.
+ *
+ * Some of these hashes are written to Redis, so their values mustn't change.
+ *
+ * @see <a href="http://www.isthe.com/chongo/tech/comp/fnv/">FNV hash</a>
+ */
+public final class Hashing {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private Hashing() {
+        // Static utility class doesn't need to be instantiated!
+    }
+
+    /**
+     * 64 bit FNV-1a over the key's UTF-8 bytes.
+     */
+    public static long fnv1a(String key) {
+        return fnv1a(FNV_OFFSET_BASIS, key);
+    }
+
+    /**
+     * Carries on an FNV-1a hash over the key's UTF-8 bytes.
+     */
+    public static long fnv1a(long hash, String key) {
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Carries on an FNV-1a hash over the value's 8 bytes, lowest first.
+     */
+    public static long fnv1a(long hash, long value) {
+        for (int shift = 0; shift < Long.SIZE; shift += Byte.SIZE) {
+            hash = (hash ^ ((value >>> shift) & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * MurmurHash3's 64 bit finalizer.
+     */
+    public static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,53 @@
+package org.ciakraa.wavelet.event;
+
+import org.apache.commons.lang3.Validate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.OptionalLong;
+import java.util.function.Supplier;
+
+/**
+ * Polls users according to how recently they have listened to something, since most polls of idle users come back
+ * empty and only cost us Spotify quota.
+ *
+ * The next interval is half of the time since the user's last play, bounded by a floor and a ceiling. A user who is
+ * listening right now is polled at the floor; a user who has been quiet for a few hours backs off to the ceiling.
+ * Users with no plays on record at all are polled at the ceiling.
+ *
+ * The ceiling has to stay below the time it would take to play more tracks than a single poll can fetch
+ * ({@link EventConstants#MAX_POLL_CEILING}), or a heavy listener would lose plays between polls.
+ */
+final class AdaptivePollInterval implements PollInterval {
+
+    private final Duration floor;
+    private final Duration ceiling;
+
+    AdaptivePollInterval(Duration floor, Duration ceiling) {
+        Validate.isTrue(!floor.isNegative() && !floor.isZero());
+        Validate.isTrue(ceiling.compareTo(floor) >= 0);
+        Validate.isTrue(ceiling.compareTo(EventConstants.MAX_POLL_CEILING) < 0,
+                "Poll ceiling must be below %d minutes", EventConstants.MAX_POLL_CEILING.toMinutes());
+
+        this.floor = floor;
+        this.ceiling = ceiling;
+    }
+
+    @Override
+    public Duration getNextInterval(Supplier<OptionalLong> lastPlayedAt, Instant now) {
+        OptionalLong playedAt = lastPlayedAt.get();
+        if (!playedAt.isPresent()) {
+            return ceiling;
+        }
+
+        Duration idle = Duration.between(Instant.ofEpochSecond(playedAt.getAsLong()), now);
+        Duration interval = idle.dividedBy(2);
+        if (interval.compareTo(floor) < 0) {
+            return floor;
+        }
+        if (interval.compareTo(ceiling) > 0) {
+            return ceiling;
+        }
+        return interval;
+    }
+}
@@ -7,6 +7,7 @@ import org.apache.kafka.common.serialization.StringSerializer;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.kafka.annotation.EnableKafka;
 import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
 import org.springframework.kafka.config.KafkaListenerContainerFactory;
@@ -15,10 +16,11 @@ import org.springframework.kafka.listener.AbstractMessageListenerContainer;
 import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
 import org.springframework.kafka.support.serializer.JsonDeserializer;
 import org.springframework.kafka.support.serializer.JsonSerializer;
-import org.springframework.scheduling.TaskScheduler;
 import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -33,11 +35,89 @@ class EventConfig {
     @Value("${spring.kafka.consumer.group-id}")
     private String groupId;
 
+    @Value("${poll.maxConcurrency:32}")
+    private int maxPollConcurrency;
+
+    @Value("${poll.budgetSeconds:120}")
+    private long pollBudgetSeconds;
+
+    @Value("${poll.adaptive.enabled:false}")
+    private boolean adaptivePolling;
+
+    @Value("${poll.adaptive.floorMinutes:5}")
+    private long adaptiveFloorMinutes;
+
+    @Value("${poll.adaptive.ceilingMinutes:20}")
+    private long adaptiveCeilingMinutes;
+
+    @Value("${dedup.published.expectedPerRotation:1000000}")
+    private long publishedExpectedPerRotation;
+
+    @Value("${dedup.published.falsePositiveRate:0.001}")
+    private double publishedFalsePositiveRate;
+
+    @Value("${dedup.published.rotationDays:30}")
+    private long publishedRotationDays;
+
     @Bean(destroyMethod="shutdown")
-    TaskScheduler taskScheduler() {
+    ThreadPoolTaskScheduler taskScheduler() {
         return new ThreadPoolTaskScheduler();
     }
 
+    /**
+     * Polls spend nearly all their time blocked on Spotify, Redis and Kafka, so they run on their own pool rather than
+     * the scheduler's single thread. The pool grows up to poll.maxConcurrency threads while polls are due and shrinks
+     * back once they go idle; anything beyond the cap waits in a bounded queue. Once that's full too, the wheel sheds
+     * load by skipping due polls to their next run, and a running poll carries on with its remaining steps on the
+     * thread which finished the previous one.
+     */
+    @Bean
+    ThreadPoolTaskExecutor pollWorkers() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(maxPollConcurrency);
+        executor.setMaxPoolSize(maxPollConcurrency);
+        executor.setQueueCapacity(maxPollConcurrency * EventConstants.POLL_WORKER_QUEUE_PER_THREAD);
+        executor.setKeepAliveSeconds((int) EventConstants.POLL_WORKER_KEEP_ALIVE.getSeconds());
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.setThreadNamePrefix("poll-");
+        return executor;
+    }
+
+    /**
+     * The scheduler only carries the wheel's tick; every poll lives on the wheel itself and runs on the poll workers.
+     * A poll which hasn't finished within poll.budgetSeconds is interrupted and rescheduled by the wheel.
+     */
+    @Bean(destroyMethod="stop")
+    PollTimingWheel pollTimingWheel() {
+        ThreadPoolTaskScheduler scheduler = taskScheduler();
+        PollTimingWheel wheel = new PollTimingWheel(EventConstants.POLL_WHEEL_TICK, EventConstants.POLL_WHEEL_SIZE, pollWorkers(),
+                Duration.ofSeconds(pollBudgetSeconds));
+        wheel.start(scheduler);
+        return wheel;
+    }
+
+    /**
+     * Users are polled once every poll period, unless adaptive polling is switched on; then idle users back off
+     * towards the ceiling and users who are listening right now are polled at the floor.
+     */
+    @Bean
+    PollInterval pollInterval() {
+        if (!adaptivePolling) {
+            return PollInterval.fixed(EventConstants.POLL_PERIOD);
+        }
+        return new AdaptivePollInterval(Duration.ofMinutes(adaptiveFloorMinutes), Duration.ofMinutes(adaptiveCeilingMinutes));
+    }
+
+    /**
+     * Remembers every published track for between one and two rotation periods. Each generation of the filter takes
+     * about 1.8 bytes per expected track at the default false positive rate, e.g. 1.7MB for a million tracks.
+     */
+    @Bean
+    PublishedTrackFilter publishedTrackFilter(RedisOperations<String, Object> redis) {
+        return new PublishedTrackFilter(redis, publishedExpectedPerRotation, publishedFalsePositiveRate,
+                Duration.ofDays(publishedRotationDays));
+    }
+
     /**
      * Kafka configs are largely Spring defaults.
      *
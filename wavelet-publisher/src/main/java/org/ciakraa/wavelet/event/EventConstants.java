@@ -23,6 +23,44 @@ final class EventConstants {
      */
     static final int POLL_COUNT = (int) POLL_PERIOD.toMinutes() * 2;
 
+    /**
+     * Each user's polls are staggered to a fixed phase of the poll period, plus up to 10 seconds of jitter.
+     */
+    static final Duration POLL_JITTER = Duration.ofSeconds(10);
+
+    /**
+     * Polls are placed on a timing wheel which advances once per second.
+     */
+    static final Duration POLL_WHEEL_TICK = Duration.ofSeconds(1);
+
+    /**
+     * 1024 one-second ticks covers a full poll period in a single rotation of the wheel.
+     */
+    static final int POLL_WHEEL_SIZE = 1024;
+
+    /**
+     * The longest an adaptive poll interval may be: the time it takes to play more tracks than one poll can fetch,
+     * were they all as short as Spotify will count as listened to.
+     */
+    static final Duration MAX_POLL_CEILING = Duration.ofSeconds(30).multipliedBy(MAX_RECENTLY_LISTENED_TO);
+
+    /**
+     * A poll run which hasn't finished within two minutes is given up on and rescheduled.
+     * Comfortably longer than a Spotify request's own retry deadline.
+     */
+    static final Duration POLL_BUDGET = Duration.ofMinutes(2);
+
+    /**
+     * Idle poll workers are let go after a minute, so the pool shrinks back down between busy ticks.
+     */
+    static final Duration POLL_WORKER_KEEP_ALIVE = Duration.ofMinutes(1);
+
+    /**
+     * Poll workers queue up to this many due polls per thread; past that the wheel skips due polls to their next run,
+     * rather than letting a backlog build up which would take more than a few budgets to drain.
+     */
+    static final int POLL_WORKER_QUEUE_PER_THREAD = 4;
+
     /*
      * Kafka topic for listened tracks.
      */
@@ -32,4 +70,20 @@ final class EventConstants {
      * Prefix for a redis key: recently listened tracks by user.
      */
     static final String RECENTLY_LISTENED_KEY_PREFIX = "recently:";
+
+    /**
+     * Prefix for a redis key: the time (in millis) of the latest play we have seen, by user.
+     */
+    static final String CURSOR_KEY_PREFIX = "cursor:";
+
+    /**
+     * A user's recently listened cache and cursor expire once they've gone 30 days without playing anything new.
+     * Should they come back, plays older than that are caught by the published tracks filter instead.
+     */
+    static final Duration RECENTLY_LISTENED_TTL = Duration.ofDays(30);
+
+    /**
+     * Prefix for a redis key: one generation of the published tracks filter, by generation number.
+     */
+    static final String PUBLISHED_FILTER_KEY_PREFIX = "published:";
 }
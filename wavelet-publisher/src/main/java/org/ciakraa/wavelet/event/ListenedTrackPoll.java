@@ -1,48 +1,131 @@
 package org.ciakraa.wavelet.event;
 
-import org.ciakraa.wavelet.web_api.SpotifyAuthorizationService;
+import org.ciakraa.wavelet.web_api.SpotifyAccessTokenCache;
+import org.ciakraa.wavelet.web_api.SpotifyCircuitOpenException;
 import org.ciakraa.wavelet.web_api.SpotifyUnauthorizedException;
 import org.ciakraa.wavelet.web_api.SpotifyUserCredentials;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
 
 /**
- * This poll will request recent {@link ListenedTrack} from Spotify every 10 minutes,
- * then publish each track to a kafka topic (assuming it has not been published yet).
+ * This poll will request recent {@link ListenedTrack} from Spotify every 10 minutes (or as often as its
+ * {@link PollInterval} decides), then publish each track to a kafka topic (assuming it has not been published yet).
  *
- * User credentials are refreshed with each poll to guarantee access to Spotify Web API.
+ * User credentials are refreshed through the {@link SpotifyAccessTokenCache}, only when the access token is about to
+ * expire or Spotify rejects it.
+ *
+ * If Spotify is failing and a request is refused by its circuit breaker, the poll is deferred until the circuit may
+ * let requests through again, plus a random share of that period, so deferred polls don't all return at once. The
+ * deferred poll then asks for as many tracks as Spotify will return, to catch up on what was played meanwhile.
+ *
+ * Every step after a Spotify call is handed back to the poll workers, so Redis and Kafka calls never hold up the
+ * threads Spotify requests run on, and stay within the workers' cap. A run already under way is never dropped
+ * halfway: if the workers are saturated, its step runs on the thread which completed the Spotify call.
+ *
+ * Each run carries its {@link PollDeadline} down through every step, naming the stage it's in. A run which has used up
+ * its budget stops before its next step, leaving the cursor and track cache as they were, so its next run picks up
+ * the same tracks.
  */
-final class ListenedTrackPoll implements Runnable {
+final class ListenedTrackPoll implements PollTimingWheel.PacedTask {
 
     private static final Logger LOG = LoggerFactory.getLogger(ListenedTrackPollService.class);
 
     private final ListenedTrackService listenedTrackService;
     private final UserEventPublisher<ListenedTrack> eventPublisher;
-    private final SpotifyAuthorizationService authService;
+    private final SpotifyAccessTokenCache tokenCache;
+    private final PollInterval pollInterval;
+    private final Executor workers;
+
+    private volatile SpotifyUserCredentials userCred;
+
+    // The interval this poll is currently running at; it's handed back to the poll timing wheel after each run.
+    private volatile Duration interval = EventConstants.POLL_PERIOD;
 
-    private SpotifyUserCredentials userCred;
+    // How long until this poll is retried after being refused by a circuit breaker, or null if it wasn't.
+    private volatile Duration deferral;
 
     private ListenedTrackPoll(Builder builder) {
         this.listenedTrackService = builder.listenedTrackService;
-        this.authService = builder.authService;
+        this.tokenCache = builder.tokenCache;
         this.eventPublisher = builder.eventPublisher;
         this.userCred = builder.userCred;
+        this.pollInterval = builder.pollInterval;
+        this.workers = getStepExecutor(builder.workers);
     }
 
+    /**
+     * Runs a poll to completion on the calling thread, with no time limit; the poll timing wheel uses
+     * {@link #runAsync(PollDeadline)} instead.
+     */
     @Override
     public void run() {
+        runAsync(PollDeadline.unbounded()).toCompletableFuture().join();
+    }
+
+    /**
+     * Makes sure the user has a working access token, fetches new tracks and publishes them as one chain of async
+     * steps, so the worker is handed back as soon as the first Spotify request is sent. If Spotify rejects the token
+     * anyway, it's refreshed and the tracks are fetched once more.
+     */
+    @Override
+    public CompletionStage<?> runAsync(PollDeadline deadline) {
         LOG.info("Polling listened tracks for user {}", userCred);
 
+        return deadline.during("authorize", () -> tokenCache.getAuthorizedUserAsync(userCred))
+                .thenComposeAsync(cred -> getTracks(cred, deadline), workers)
+                .handle((tracks, e) -> {
+                    if (e == null) {
+                        return CompletableFuture.completedFuture(tracks);
+                    }
+                    if (e.getCause() instanceof SpotifyUnauthorizedException) {
+                        return deadline.during("refresh token", () -> tokenCache.refreshRejectedUserAsync(userCred))
+                                .thenComposeAsync(cred -> getTracks(cred, deadline), workers);
+                    }
+                    throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+                })
+                .thenCompose(Function.identity())
+                .thenAcceptAsync(tracks -> deadline.completing("publish", () -> publish(tracks)), workers)
+                .exceptionally(e -> {
+                    deferral = null;
+                    if (e.getCause() instanceof SpotifyUnauthorizedException) {
+                        LOG.warn("User cred is invalid and cannot be refreshed: {}", userCred);
+                    } else if (e.getCause() instanceof PollDeadlineExceededException) {
+                        LOG.warn("Poll for user {} ran out of time: {}", userCred, e.getCause().getMessage());
+                    } else if (e.getCause() instanceof SpotifyCircuitOpenException) {
+                        defer(((SpotifyCircuitOpenException) e.getCause()).getRetryAfter());
+                    } else {
+                        LOG.error("Poll failed for user {}:", userCred, e);
+                    }
+                    return null;
+                });
+    }
+
+    private CompletableFuture<List<ListenedTrack>> getTracks(Optional<SpotifyUserCredentials> authorizedCred, PollDeadline deadline) {
+        authorizedCred.ifPresent(cred -> this.userCred = cred);
+        return listenedTrackService.getUniqueRecentlyListenedAsync(userCred, getPollCount(), deadline, workers);
+    }
+
+    private void publish(List<ListenedTrack> tracks) {
+        deferral = null;
         try {
-             authService.refreshUser(userCred).ifPresent(cred -> this.userCred = cred);
-        } catch (SpotifyUnauthorizedException e) {
-            LOG.warn("User cred is invalid and cannot be refreshed: {}", userCred);
-            return;
+            interval = pollInterval.getNextInterval(() -> getLastPlayedAt(tracks), Instant.now());
+        } catch (DataAccessException e) {
+            LOG.warn("Unable to look up last play for user {}, keeping poll interval of {} ms:", userCred, interval.toMillis(), e);
         }
-
-        List<ListenedTrack> tracks = listenedTrackService.getUniqueRecentlyListened(userCred, EventConstants.POLL_COUNT);
         if (tracks.isEmpty()) {
             return;
         }
@@ -50,19 +133,67 @@ final class ListenedTrackPoll implements Runnable {
         eventPublisher.publish(tracks);
     }
 
+    String getUserId() {
+        return userCred.getUserId();
+    }
+
+    private void defer(Duration retryAfter) {
+        long jitterMillis = ThreadLocalRandom.current().nextLong(retryAfter.toMillis() + 1);
+        deferral = retryAfter.plusMillis(jitterMillis);
+        LOG.info("Spotify is failing, deferring poll for user {} by {} ms", userCred, deferral.toMillis());
+    }
+
+    @Override
+    public Duration getNextDelay() {
+        Duration deferral = this.deferral;
+        return deferral != null ? deferral : interval;
+    }
+
+    /**
+     * Spotify counts a track as "listened" after 30s, so a longer interval needs a bigger poll to cover it.
+     * A deferred poll may have missed any number of tracks, so it asks for all it can.
+     */
+    int getPollCount() {
+        if (deferral != null) {
+            return EventConstants.MAX_RECENTLY_LISTENED_TO;
+        }
+
+        long count = interval.getSeconds() / 30;
+        return (int) Math.max(EventConstants.POLL_COUNT, Math.min(EventConstants.MAX_RECENTLY_LISTENED_TO, count));
+    }
+
+    private OptionalLong getLastPlayedAt(List<ListenedTrack> newTracks) {
+        if (newTracks.isEmpty()) {
+            return listenedTrackService.getLastPlayedAt(userCred);
+        }
+        return newTracks.stream().mapToLong(ListenedTrack::getPlayedAt).max();
+    }
+
+    private static Executor getStepExecutor(Executor workers) {
+        return step -> {
+            try {
+                workers.execute(step);
+            } catch (RejectedExecutionException e) {
+                step.run();
+            }
+        };
+    }
+
     static final class Builder {
         private ListenedTrackService listenedTrackService;
-        private SpotifyAuthorizationService authService;
+        private SpotifyAccessTokenCache tokenCache;
         private UserEventPublisher<ListenedTrack> eventPublisher;
         private SpotifyUserCredentials userCred;
+        private PollInterval pollInterval = PollInterval.fixed(EventConstants.POLL_PERIOD);
+        private Executor workers = Runnable::run;
 
         public Builder setListenedTrackService(ListenedTrackService listenedTrackService) {
             this.listenedTrackService = listenedTrackService;
             return this;
         }
 
-        public Builder setAuthService(SpotifyAuthorizationService authService) {
-            this.authService = authService;
+        public Builder setTokenCache(SpotifyAccessTokenCache tokenCache) {
+            this.tokenCache = tokenCache;
             return this;
         }
 
@@ -76,6 +207,16 @@ final class ListenedTrackPoll implements Runnable {
             return this;
         }
 
+        public Builder setPollInterval(PollInterval pollInterval) {
+            this.pollInterval = pollInterval;
+            return this;
+        }
+
+        public Builder setWorkers(Executor workers) {
+            this.workers = workers;
+            return this;
+        }
+
         public ListenedTrackPoll build() {
             return new ListenedTrackPoll(this);
         }
@@ -1,47 +1,171 @@
 package org.ciakraa.wavelet.event;
 
-import org.ciakraa.wavelet.web_api.SpotifyAuthorizationService;
+import org.apache.commons.lang3.Validate;
+import org.ciakraa.wavelet.web_api.SpotifyAccessTokenCache;
+import org.ciakraa.wavelet.web_api.SpotifyTokenRefresher;
 import org.ciakraa.wavelet.web_api.SpotifyUserCredentials;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.TaskScheduler;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
 /**
- * This service will schedule a thread task to poll to Spotify for {@link ListenedTrack} once every poll period.
+ * This service will schedule a poll to Spotify for {@link ListenedTrack} once every poll period,
+ * or as often as the configured {@link PollInterval} decides.
+ *
+ * Polls are placed on a {@link PollTimingWheel}, so scheduling a user is O(1) and the task scheduler only wakes up
+ * once per tick, no matter how many users we have. Each user's polls are staggered to their own phase of the poll period,
+ * as described in {@link PollStagger}.
+ *
+ * The service also acts as the registry of polls, keyed by user id. A user has at most one poll: adding polls for a
+ * user who already has them (e.g. when they re-authorize the app) atomically replaces the old poll, so the number of
+ * polls only ever grows with the number of users. Polls can be paused, resumed and cancelled by user id.
+ *
+ * Every user with registered polls has their access token kept fresh by the {@link SpotifyTokenRefresher}, so polls
+ * don't wait on token refreshes.
  */
 @Service
 public class ListenedTrackPollService {
 
-    private final TaskScheduler taskScheduler;
+    private static final Logger LOG = LoggerFactory.getLogger(ListenedTrackPollService.class);
+
+    private final PollTimingWheel pollWheel;
     private final ListenedTrackService userEventService;
-    private final SpotifyAuthorizationService authService;
+    private final SpotifyAccessTokenCache tokenCache;
+    private final SpotifyTokenRefresher tokenRefresher;
     private final ListenedTrackPublisher eventPublisher;
+    private final PollInterval pollInterval;
+    private final Executor pollWorkers;
+    private final ConcurrentMap<String, RegisteredPoll> polls = new ConcurrentHashMap<>();
 
     @Autowired
-    public ListenedTrackPollService(TaskScheduler taskScheduler, ListenedTrackService userEventService, SpotifyAuthorizationService authService,
-                             ListenedTrackPublisher eventPublisher) {
-        this.taskScheduler = taskScheduler;
+    ListenedTrackPollService(PollTimingWheel pollWheel, ListenedTrackService userEventService, SpotifyAccessTokenCache tokenCache,
+                             SpotifyTokenRefresher tokenRefresher, ListenedTrackPublisher eventPublisher, PollInterval pollInterval,
+                             @Qualifier("pollWorkers") Executor pollWorkers) {
+        this.pollWheel = pollWheel;
         this.userEventService = userEventService;
-        this.authService = authService;
+        this.tokenCache = tokenCache;
+        this.tokenRefresher = tokenRefresher;
         this.eventPublisher = eventPublisher;
+        this.pollInterval = pollInterval;
+        this.pollWorkers = pollWorkers;
     }
 
     /**
-     * Creates a recurring poll to fetch {@link ListenedTrack} events for a given user.
+     * Creates a recurring poll to fetch {@link ListenedTrack} events for a given user, replacing any poll the user already has.
+     * The first poll runs at the user's next phase of the poll period.
      *
      * @param userCredentials
      */
     public void addPolls(SpotifyUserCredentials userCredentials) {
-        ListenedTrackPoll poll = buildPoll(userCredentials);
-        taskScheduler.scheduleAtFixedRate(poll, EventConstants.POLL_PERIOD);
+        String userId = userCredentials.getUserId();
+        Validate.notBlank(userId);
+
+        polls.compute(userId, (id, existing) -> {
+            if (existing != null) {
+                LOG.info("Replacing existing polls for user {}", userCredentials);
+                existing.cancel();
+            }
+            return schedule(buildPoll(userCredentials));
+        });
+        tokenRefresher.track(userCredentials);
+    }
+
+    /**
+     * Stops polling for a user, e.g. once they have revoked access to the app. Returns false if the user had no polls.
+     */
+    public boolean cancelPolls(String userId) {
+        RegisteredPoll removed = polls.remove(userId);
+        if (removed == null) {
+            return false;
+        }
+
+        removed.cancel();
+        tokenRefresher.untrack(userId);
+        tokenCache.forget(userId);
+        userEventService.forget(userId);
+        return true;
+    }
+
+    /**
+     * Takes a user's poll off the wheel but keeps it registered, along with its latest credentials, so it can be resumed.
+     * Returns false if the user has no polls.
+     */
+    public boolean pausePolls(String userId) {
+        return polls.computeIfPresent(userId, (id, existing) -> {
+            existing.cancel();
+            return new RegisteredPoll(existing.poll, null);
+        }) != null;
+    }
+
+    /**
+     * Puts a paused poll back on the wheel at the user's next phase. Returns false if the user has no polls;
+     * resuming a poll which isn't paused does nothing.
+     */
+    public boolean resumePolls(String userId) {
+        return polls.computeIfPresent(userId, (id, existing) -> existing.isPaused() ? schedule(existing.poll) : existing) != null;
+    }
+
+    /**
+     * The ids of every user with registered polls, paused or not.
+     */
+    public Set<String> getUserIds() {
+        return new HashSet<>(polls.keySet());
+    }
+
+    /**
+     * The number of users whose polls are registered and not paused.
+     */
+    public int getActivePollCount() {
+        return (int) polls.values().stream().filter(poll -> !poll.isPaused()).count();
+    }
+
+    private RegisteredPoll schedule(ListenedTrackPoll poll) {
+        PollTimingWheel.Timeout timeout = pollWheel.schedule(poll, PollStagger.getInitialDelay(poll.getUserId(),
+                EventConstants.POLL_PERIOD, EventConstants.POLL_JITTER, Instant.now()));
+        return new RegisteredPoll(poll, timeout);
     }
 
     private ListenedTrackPoll buildPoll(SpotifyUserCredentials userCred) {
         return new ListenedTrackPoll.Builder()
                 .setListenedTrackService(userEventService)
-                .setAuthService(authService)
+                .setTokenCache(tokenCache)
                 .setEventPublisher(eventPublisher)
                 .setUserCred(userCred)
+                .setPollInterval(pollInterval)
+                .setWorkers(pollWorkers)
                 .build();
     }
+
+    /**
+     * A user's poll and its place on the wheel; a paused poll has no place on the wheel.
+     */
+    private static final class RegisteredPoll {
+
+        private final ListenedTrackPoll poll;
+        private final PollTimingWheel.Timeout timeout;
+
+        private RegisteredPoll(ListenedTrackPoll poll, PollTimingWheel.Timeout timeout) {
+            this.poll = poll;
+            this.timeout = timeout;
+        }
+
+        private boolean isPaused() {
+            return timeout == null;
+        }
+
+        private void cancel() {
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+    }
 }
@@ -1,45 +1,88 @@
 package org.ciakraa.wavelet.event;
 
 import com.wrapper.spotify.model_objects.specification.AudioFeatures;
-import com.wrapper.spotify.model_objects.specification.PlayHistory;
-import com.wrapper.spotify.model_objects.specification.TrackSimplified;
+import org.ciakraa.wavelet.event.RecentlyPlayedReader.RecentPlays;
 import org.ciakraa.wavelet.web_api.SpotifyActivityService;
+import org.ciakraa.wavelet.web_api.SpotifyAudioFeaturesCache;
 import org.ciakraa.wavelet.web_api.SpotifyUnauthorizedException;
 import org.ciakraa.wavelet.web_api.SpotifyUserCredentials;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.BoundZSetOperations;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.BoundValueOperations;
 import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.scripting.support.ResourceScriptSource;
 import org.springframework.stereotype.Service;
 
-import java.time.ZoneId;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 import static java.util.Collections.emptyList;
 import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
-import static java.util.stream.Collectors.toSet;
 
 /**
  * This service will fetch {@link UserEvent} from Spotify via {@link SpotifyActivityService}.
  * Redis caches are used to guarantee unique events, as Spotify queries can return the same event multiple times.
+ *
+ * Each user also has a cursor in Redis: the time (in millis) of the latest play we have handled. Polls only ask
+ * Spotify for plays after the cursor, so most polls come back empty and skip every other call.
+ *
+ * Audio features are read through the {@link SpotifyAudioFeaturesCache}, so only tracks we've never seen before are
+ * fetched from Spotify.
+ *
+ * Plays are read from Spotify's response straight into {@link ListenedTrack} by the {@link RecentlyPlayedReader},
+ * rather than through the library's PlayHistory objects, as this is the busiest request we make.
+ *
+ * The cursor and the tracks we've last seen are also kept in a {@link RecentTracksWindow} in front of Redis, so Redis
+ * is only asked about tracks we haven't seen, and users can still be polled while Redis is down.
  */
 @Service
 public class ListenedTrackService {
 
+    private static final Logger LOG = LoggerFactory.getLogger(ListenedTrackService.class);
+
+    private static final RecentlyPlayedReader PLAYS_READER = new RecentlyPlayedReader();
+
+    private static final RedisScript<List> ADD_NEW_TRACKS = getAddNewTracksScript();
+
+    private static final RedisSerializer<Object> LEGACY_MEMBER_SERIALIZER = new GenericJackson2JsonRedisSerializer();
+
     private final SpotifyActivityService activityService;
+    private final SpotifyAudioFeaturesCache featuresCache;
     private final RedisOperations<String, Object> redis;
+    private final PublishedTrackFilter publishedFilter;
+    private final RecentTracksWindow window = new RecentTracksWindow(EventConstants.MAX_RECENTLY_LISTENED_TO);
 
     @Autowired
-    public ListenedTrackService(SpotifyActivityService activityService, RedisOperations<String, Object> redis) {
+    public ListenedTrackService(SpotifyActivityService activityService, SpotifyAudioFeaturesCache featuresCache,
+                                RedisOperations<String, Object> redis, PublishedTrackFilter publishedFilter) {
         this.activityService = activityService;
+        this.featuresCache = featuresCache;
         this.redis = redis;
+        this.publishedFilter = publishedFilter;
     }
 
     /**
@@ -53,120 +96,316 @@ public class ListenedTrackService {
      * @return listenedTracks
      */
     public List<ListenedTrack> getUniqueRecentlyListened(SpotifyUserCredentials userCred, int count) {
-        List<PlayHistory> plays = getPlays(userCred, count);
+        BoundValueOperations<String, Object> cursor = redis.boundValueOps(getCursorKey(userCred));
+        RecentPlays plays = getPlays(userCred, count, getCursor(userCred, cursor));
+
+        // Fast path: nothing new since the last poll, so there are no features to fetch and nothing to cache or publish.
         if (plays.isEmpty()) {
             return emptyList();
         }
 
-        Map<String, AudioFeatures> featuresByTrack = getAudioFeatures(userCred, plays);
-        if (featuresByTrack.isEmpty()) {
-            return emptyList();
-        }
+        return getNewTracks(userCred, cursor, plays, getAudioFeatures(userCred, plays));
+    }
 
-        Set<String> cachedTracksKeys = getCachedTracksKeys(userCred);
-        List<ListenedTrack> newTracks = getListenedTracks(userCred, plays, featuresByTrack).stream()
-                .filter(track -> !cachedTracksKeys.contains(track.getKey()))
-                .collect(toList());
+    /**
+     * Async version of {@link #getUniqueRecentlyListened(SpotifyUserCredentials, int)}: each Spotify call is chained
+     * onto the last, so no thread is held while Spotify answers.
+     *
+     * Once Spotify has answered, the remaining steps run on the given poll workers rather than on whichever Spotify
+     * thread completed the request, as they block on Redis.
+     *
+     * Each step runs within the poll's deadline. Once it has run out, no further steps are started: in particular,
+     * the track cache and cursor are left alone, so the next poll asks for the same tracks.
+     *
+     * Unlike the blocking version, a rejected access token isn't swallowed: the future fails with
+     * {@link SpotifyUnauthorizedException}, so the caller can refresh the token and try again.
+     */
+    CompletableFuture<List<ListenedTrack>> getUniqueRecentlyListenedAsync(SpotifyUserCredentials userCred, int count,
+                                                                          PollDeadline deadline, Executor workers) {
+        BoundValueOperations<String, Object> cursor = redis.boundValueOps(getCursorKey(userCred));
+        OptionalLong after = deadline.during("read cursor", () -> getCursor(userCred, cursor));
 
-        updateCache(newTracks, userCred);
+        CompletableFuture<Optional<RecentPlays>> plays = deadline.during("fetch plays", () -> after.isPresent()
+                ? activityService.readRecentlyListenedAfterAsync(userCred, count, after.getAsLong(), PLAYS_READER)
+                : activityService.readRecentlyListenedAsync(userCred, count, PLAYS_READER));
 
-        return newTracks;
+        return plays.thenComposeAsync(result -> {
+            RecentPlays newPlays = result.orElse(RecentPlays.NONE);
+            if (newPlays.isEmpty()) {
+                return CompletableFuture.<List<ListenedTrack>>completedFuture(emptyList());
+            }
+
+            return deadline.during("fetch audio features", () -> featuresCache.getAudioFeaturesAsync(userCred, getTrackIds(newPlays)))
+                    .thenApplyAsync(features -> deadline.during("update cache",
+                            () -> getNewTracks(userCred, cursor, newPlays, getFeaturesByTrack(features))), workers);
+        }, workers);
     }
 
-    private List<PlayHistory> getPlays(SpotifyUserCredentials userCred, int count) {
+    /**
+     * Drops what's held in memory for the user, once we've stopped polling them.
+     */
+    void forget(String userId) {
+        window.forget(userId);
+        activityService.forget(userId);
+    }
+
+    /**
+     * The unix timestamp of the latest track we have seen the user play, if any.
+     * It's kept in the window once known, so only the first lookup after a restart reaches Redis; scores in the user's
+     * recently listened cache are the tracks' played at timestamps.
+     */
+    public OptionalLong getLastPlayedAt(SpotifyUserCredentials userCred) {
+        return window.getLastPlayedAt(userCred.getUserId(), () -> getCachedLastPlayedAt(userCred));
+    }
+
+    private OptionalLong getCachedLastPlayedAt(SpotifyUserCredentials userCred) {
+        // Members are binary, so skip the template's serializer; only the score is wanted anyway.
+        byte[] key = getTrackCacheKey(userCred).getBytes(StandardCharsets.UTF_8);
+        Set<RedisZSetCommands.Tuple> latest = redis.execute(
+                (RedisCallback<Set<RedisZSetCommands.Tuple>>) connection -> connection.zRevRangeWithScores(key, 0, 0));
+        if (latest == null || latest.isEmpty()) {
+            return OptionalLong.empty();
+        }
+
+        return OptionalLong.of(latest.iterator().next().getScore().longValue());
+    }
+
+    private RecentPlays getPlays(SpotifyUserCredentials userCred, int count, OptionalLong after) {
         try {
-            return activityService.getRecentlyListened(userCred, count);
+            Optional<RecentPlays> plays = after.isPresent()
+                    ? activityService.readRecentlyListenedAfter(userCred, count, after.getAsLong(), PLAYS_READER)
+                    : activityService.readRecentlyListened(userCred, count, PLAYS_READER);
+            return plays.orElse(RecentPlays.NONE);
         } catch (SpotifyUnauthorizedException e) {
-            return emptyList();
+            return RecentPlays.NONE;
         }
     }
 
-    private Map<String, AudioFeatures> getAudioFeatures(SpotifyUserCredentials userCred, List<PlayHistory> listenedTracks) {
-        List<String> listenedTrackIds = listenedTracks.stream()
-                .map(PlayHistory::getTrack)
-                .map(TrackSimplified::getId)
-                .distinct()
-                .collect(toList());
+    /**
+     * The cursor is only read from Redis the first time we poll the user; after that, the window holds it.
+     *
+     * If Redis can't be read, the poll goes ahead with no cursor, and the user is left out of the window, so the next
+     * poll tries to load them again.
+     */
+    private OptionalLong getCursor(SpotifyUserCredentials userCred, BoundValueOperations<String, Object> cursor) {
+        try {
+            return window.getCursor(userCred.getUserId(), () -> {
+                // Small numbers come back from the json serializer as integers, so don't assume a long.
+                Object after = cursor.get();
+                return after instanceof Number ? OptionalLong.of(((Number) after).longValue()) : OptionalLong.empty();
+            });
+        } catch (DataAccessException e) {
+            LOG.warn("Unable to read cursor for user {}, polling without one:", userCred, e);
+            return OptionalLong.empty();
+        }
+    }
 
+    /**
+     * The cursor only moves forward, and only once the plays it covers have made it into the track cache;
+     * if a poll fails before then, the next poll asks for the same plays again.
+     *
+     * If Redis can't be written to, the cursor still moves forward in the window. The copy in Redis is only read
+     * after a restart, and if it's behind, the next poll asks for plays we've already seen, which are deduplicated.
+     * Like the track cache, it expires if the user stops playing anything new.
+     */
+    private void updateCursor(SpotifyUserCredentials userCred, BoundValueOperations<String, Object> cursor, RecentPlays plays) {
+        long latest = plays.getLatestPlayedAt();
+        if (!window.advanceCursor(userCred.getUserId(), latest)) {
+            return;
+        }
+
+        try {
+            cursor.set(latest, EventConstants.RECENTLY_LISTENED_TTL.getSeconds(), TimeUnit.SECONDS);
+        } catch (DataAccessException e) {
+            LOG.warn("Unable to save cursor for user {}, keeping it in memory:", userCred, e);
+        }
+    }
+
+    private Map<String, AudioFeatures> getAudioFeatures(SpotifyUserCredentials userCred, RecentPlays listenedTracks) {
         List<AudioFeatures> features = new ArrayList<>();
         try {
-            features = activityService.getAudioFeatures(userCred, listenedTrackIds);
+            features = featuresCache.getAudioFeatures(userCred, getTrackIds(listenedTracks));
         } catch (SpotifyUnauthorizedException e) {
             return emptyMap();
         }
 
+        return getFeaturesByTrack(features);
+    }
+
+    private List<String> getTrackIds(RecentPlays listenedTracks) {
+        return listenedTracks.getTracks().stream()
+                .map(ListenedTrack::getTrackId)
+                .distinct()
+                .collect(toList());
+    }
+
+    private Map<String, AudioFeatures> getFeaturesByTrack(List<AudioFeatures> features) {
         return features.stream().collect(toMap(AudioFeatures::getId, Function.identity()));
     }
 
-    private Set<String> getCachedTracksKeys(SpotifyUserCredentials userCred) {
-        return redis.boundZSetOps(getTrackCacheKey(userCred)).range(0, -1).stream()
-                .map(track -> (String) track)
-                .collect(toSet());
-    }
-
-    private List<ListenedTrack> getListenedTracks(SpotifyUserCredentials userCred, List<PlayHistory> plays,
-                                                         Map<String, AudioFeatures> featuresByTrack) {
-        Function<PlayHistory, ListenedTrack> mapper = play -> {
-            ListenedTrack track = new ListenedTrack();
-            track.setKey(getListenedTrackKey(play, userCred));
-            track.setUserId(userCred.getUserId());
-            track.setUserDisplayName(userCred.getUserDisplayName());
-            track.setTrackId(play.getTrack().getId());
-            track.setPlayedAt(getTimestamp(play.getPlayedAt()));
-            track.setArtistId(play.getTrack().getArtists()[0].getId());
-            track.setArtistName(play.getTrack().getArtists()[0].getName());
-            track.setDurationMs(play.getTrack().getDurationMs());
-            track.setName(play.getTrack().getName());
-            track.setPreviewUrl(play.getTrack().getPreviewUrl());
-            
-            AudioFeatures features = featuresByTrack.get(play.getTrack().getId());
-            track.setAcousticness(features.getAcousticness());
-            track.setDanceability(features.getDanceability());
-            track.setEnergy(features.getEnergy());
-            track.setInstrumentalness(features.getInstrumentalness());
-            track.setKeySignature(features.getKey());
-            track.setLiveness(features.getLiveness());
-            track.setLoudness(features.getLoudness());
-            track.setMode(features.getMode().getType());
-            track.setSpeechiness(features.getSpeechiness());
-            track.setTempo(features.getTempo());
-            track.setTimeSignature(features.getTimeSignature());
-            track.setValence(features.getValence());
-
-            return track;
-        };
-
-        return plays.stream().map(mapper).collect(toList());
+    /**
+     * Completes the plays' tracks with their features, then filters out any we have already seen, and remembers the rest.
+     */
+    private List<ListenedTrack> getNewTracks(SpotifyUserCredentials userCred, BoundValueOperations<String, Object> cursor,
+                                             RecentPlays plays, Map<String, AudioFeatures> featuresByTrack) {
+        if (featuresByTrack.isEmpty()) {
+            return emptyList();
+        }
+
+        List<ListenedTrack> newTracks = addNewTracks(userCred, getListenedTracks(userCred, plays, featuresByTrack));
+        updateCursor(userCred, cursor, plays);
+
+        return newTracks;
     }
 
     /**
+     * Adds the tracks to the user's recently listened cache, returning those which weren't there yet.
+     *
+     * Tracks the window has already seen are dropped without asking Redis, so a poll which only finds plays we've
+     * seen makes no round trip at all. The rest are checked against, and added to, the cache in Redis. If Redis is
+     * unavailable, they're taken as new as long as the window has been loaded for this user, as anything it hasn't
+     * seen was then played after the last poll we handled. If it hasn't, e.g. Redis went down before we first polled
+     * the user, there's no telling which tracks are new, so none are, and the next poll fetches them again.
+     *
+     * Tracks new to the cache are finally checked against the {@link PublishedTrackFilter}, which catches plays too
+     * old to still be in the cache.
+     */
+    private List<ListenedTrack> addNewTracks(SpotifyUserCredentials userCred, List<ListenedTrack> tracks) {
+        String userId = userCred.getUserId();
+        List<ListenedTrack> unseen = tracks.stream()
+                .filter(track -> !window.contains(userId, track.getTrackId(), track.getPlayedAt()))
+                .collect(toList());
+        if (unseen.isEmpty()) {
+            return emptyList();
+        }
+
+        List<ListenedTrack> added;
+        try {
+            added = addToCache(userCred, unseen);
+        } catch (DataAccessException e) {
+            if (!window.isLoaded(userId)) {
+                LOG.warn("Unable to reach the track cache for user {}, leaving their tracks for the next poll:", userCred, e);
+                return emptyList();
+            }
+            LOG.warn("Unable to reach the track cache for user {}, deduplicating in memory only:", userCred, e);
+            added = unseen;
+        }
+
+        unseen.forEach(track -> window.add(userId, track.getTrackId(), track.getPlayedAt()));
+        return publishedFilter.addUnpublished(added);
+    }
+
+    /**
+     * Adds the tracks to the user's recently listened cache in Redis, returning those which weren't there yet.
+     *
      * Spotify counts tracks as "listened to" if the user listens for >= 30 seconds.
      * This means each call to Spotify will return a maximum of recently listened tracks:
      * Poll Period (in seconds) / 30s = MAX_RECENTLY_LISTENED_TO
      *
-     * Thus, we only need to keep the last MAX_RECENTLY_LISTENED_TO count of tracks in memory.
+     * Thus, we only need to keep the last MAX_RECENTLY_LISTENED_TO count of tracks in memory. Checking, adding and
+     * trimming all happen in one script, so a poll makes a single round trip to Redis however many tracks it fetched,
+     * and two polls for the same user can't both see a track as new. The cache's expiry is renewed at the same time.
+     *
+     * Members are the tracks' 8 byte hashes, written as they are, rather than their json quoted keys; the user is
+     * already in the cache's key. Caches written before then still hold json quoted keys, so each track's legacy
+     * member is sent along too, and a track found under it is converted to its hash rather than taken as new.
      */
-    private void updateCache(List<ListenedTrack> tracks, SpotifyUserCredentials userCred) {
-        BoundZSetOperations userCache = redis.boundZSetOps(getTrackCacheKey(userCred));
-        if (userCache.zCard() == EventConstants.MAX_RECENTLY_LISTENED_TO) {
-            userCache.removeRange(0L, tracks.size() - 1L);
+    @SuppressWarnings("unchecked")
+    private List<ListenedTrack> addToCache(SpotifyUserCredentials userCred, List<ListenedTrack> tracks) {
+        Object[] args = new Object[2 + 3 * tracks.size()];
+        args[0] = EventConstants.MAX_RECENTLY_LISTENED_TO;
+        args[1] = EventConstants.RECENTLY_LISTENED_TTL.getSeconds();
+        for (int i = 0; i < tracks.size(); i++) {
+            args[2 + 3 * i] = getTrackHash(tracks.get(i));
+            args[3 + 3 * i] = tracks.get(i).getPlayedAt();
+            args[4 + 3 * i] = getLegacyTrackMember(tracks.get(i), userCred);
         }
 
-        for (ListenedTrack track : tracks) {
-            userCache.add(track.getKey(), track.getPlayedAt());
+        // The script replies with integers, which no serializer touches.
+        List<?> added = redis.execute(ADD_NEW_TRACKS, ScriptArgsSerializer.INSTANCE, (RedisSerializer) ScriptArgsSerializer.INSTANCE,
+                singletonList(getTrackCacheKey(userCred)), args);
+        if (added == null || added.isEmpty()) {
+            return emptyList();
         }
+
+        // Positions are counted from 1, as Lua does.
+        return added.stream()
+                .map(position -> tracks.get(((Number) position).intValue() - 1))
+                .collect(toList());
+    }
+
+    /**
+     * The plays' tracks already hold their track fields, as read by the {@link RecentlyPlayedReader}; this adds the
+     * user and the audio features.
+     */
+    private List<ListenedTrack> getListenedTracks(SpotifyUserCredentials userCred, RecentPlays plays,
+                                                  Map<String, AudioFeatures> featuresByTrack) {
+        // Spotify has no audio features for some tracks, e.g. local files; those plays can't be published.
+        return plays.getTracks().stream()
+                .filter(track -> featuresByTrack.containsKey(track.getTrackId()))
+                .map(track -> complete(track, userCred, featuresByTrack.get(track.getTrackId())))
+                .collect(toList());
+    }
+
+    private static ListenedTrack complete(ListenedTrack track, SpotifyUserCredentials userCred, AudioFeatures features) {
+        track.setKey(getListenedTrackKey(track, userCred));
+        track.setUserId(userCred.getUserId());
+        track.setUserDisplayName(userCred.getUserDisplayName());
+
+        track.setAcousticness(features.getAcousticness());
+        track.setDanceability(features.getDanceability());
+        track.setEnergy(features.getEnergy());
+        track.setInstrumentalness(features.getInstrumentalness());
+        track.setKeySignature(features.getKey());
+        track.setLiveness(features.getLiveness());
+        track.setLoudness(features.getLoudness());
+        track.setMode(features.getMode().getType());
+        track.setSpeechiness(features.getSpeechiness());
+        track.setTempo(features.getTempo());
+        track.setTimeSignature(features.getTimeSignature());
+        track.setValence(features.getValence());
+        return track;
+    }
+
+    private static RedisScript<List> getAddNewTracksScript() {
+        DefaultRedisScript<List> script = new DefaultRedisScript<>();
+        script.setScriptSource(new ResourceScriptSource(new ClassPathResource("redis/add-new-tracks.lua")));
+        script.setResultType(List.class);
+        return script;
     }
 
-    static String getListenedTrackKey(PlayHistory play, SpotifyUserCredentials userCred) {
-        return userCred.getUserId() + "-" + play.getTrack().getId() + "-" + getTimestamp(play.getPlayedAt());
+    static String getListenedTrackKey(ListenedTrack track, SpotifyUserCredentials userCred) {
+        return userCred.getUserId() + "-" + track.getTrackId() + "-" + track.getPlayedAt();
+    }
+
+    /**
+     * A track's member in the user's recently listened cache: a 64 bit hash of the track and when it was played.
+     */
+    static byte[] getTrackHash(ListenedTrack track) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(RecentTracksWindow.hash(track.getTrackId(), track.getPlayedAt())).array();
+    }
+
+    /**
+     * A track's member in a recently listened cache written by an earlier version: its key, as the template's json
+     * serializer wrote it.
+     */
+    static byte[] getLegacyTrackMember(ListenedTrack track, SpotifyUserCredentials userCred) {
+        return LEGACY_MEMBER_SERIALIZER.serialize(getListenedTrackKey(track, userCred));
     }
 
     static String getTrackCacheKey(SpotifyUserCredentials userCred) {
         return EventConstants.RECENTLY_LISTENED_KEY_PREFIX + userCred.getUserId();
     }
+
+    static String getCursorKey(SpotifyUserCredentials userCred) {
+        return EventConstants.CURSOR_KEY_PREFIX + userCred.getUserId();
+    }
     
-    static long getTimestamp(Date date) {
-        return date.toInstant().atZone(ZoneId.of("GMT")).truncatedTo(ChronoUnit.MINUTES).toEpochSecond();
+    /**
+     * Plays are published to the minute, as unix timestamps in seconds.
+     */
+    static long getTimestamp(long playedAtMillis) {
+        return Instant.ofEpochMilli(playedAtMillis).truncatedTo(ChronoUnit.MINUTES).getEpochSecond();
     }
 
 }
@@ -0,0 +1,116 @@
+package org.ciakraa.wavelet.event;
+
+import org.apache.commons.lang3.Validate;
+
+import java.time.Duration;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * The time budget of one poll run, handed down to each of its steps.
+ *
+ * Each step names the stage the poll is in, so that if the poll overruns, the {@link PollTimingWheel} can say where it
+ * got stuck. A step which blocks its thread, e.g. on Redis or Kafka, is watched while it runs: once the poll is
+ * expired, that thread is interrupted. Steps started after the budget has run out are refused with a
+ * {@link PollDeadlineExceededException}, so an abandoned poll stops before touching anything else.
+ */
+final class PollDeadline {
+
+    private final long expiresAtNanos;
+    private final boolean bounded;
+    private final LongSupplier nanoTime;
+
+    // All guarded by this.
+    private String stage = "starting";
+    private Thread blocked;
+    private boolean expired;
+    private boolean interrupted;
+
+    PollDeadline(Duration budget, LongSupplier nanoTime) {
+        Validate.isTrue(!budget.isNegative() && !budget.isZero());
+        Validate.notNull(nanoTime);
+
+        this.nanoTime = nanoTime;
+        this.expiresAtNanos = nanoTime.getAsLong() + budget.toNanos();
+        this.bounded = true;
+    }
+
+    private PollDeadline() {
+        this.nanoTime = System::nanoTime;
+        this.expiresAtNanos = 0;
+        this.bounded = false;
+    }
+
+    /**
+     * A deadline which never runs out, for polls run outside of the wheel.
+     */
+    static PollDeadline unbounded() {
+        return new PollDeadline();
+    }
+
+    /**
+     * Enters the stage and runs its step, unless the budget has already run out. If the step blocks past the deadline,
+     * its thread is interrupted. A step which only starts async work returns as soon as it's started, but the poll
+     * stays in its stage until the next one is entered.
+     */
+    <T> T during(String stage, Supplier<T> step) {
+        enter(stage, true);
+        try {
+            return step.get();
+        } finally {
+            leave();
+        }
+    }
+
+    /**
+     * As {@link #during(String, Supplier)}, but the step is run even if the budget has run out: for steps which can't be
+     * left undone once the poll has got this far, e.g. publishing tracks already recorded as seen.
+     */
+    void completing(String stage, Runnable step) {
+        enter(stage, false);
+        try {
+            step.run();
+        } finally {
+            leave();
+        }
+    }
+
+    boolean isOverdue() {
+        return bounded && nanoTime.getAsLong() - expiresAtNanos >= 0;
+    }
+
+    synchronized String getStage() {
+        return stage;
+    }
+
+    /**
+     * Marks the poll as abandoned, interrupting the thread of any step blocked on it. Returns the stage it was in.
+     */
+    synchronized String expire() {
+        expired = true;
+        if (blocked != null && !interrupted) {
+            interrupted = true;
+            blocked.interrupt();
+        }
+        return stage;
+    }
+
+    private synchronized void enter(String stage, boolean refuseIfOverdue) {
+        if (refuseIfOverdue && (expired || isOverdue())) {
+            throw new PollDeadlineExceededException(stage);
+        }
+
+        this.stage = stage;
+        this.blocked = Thread.currentThread();
+    }
+
+    private synchronized void leave() {
+        blocked = null;
+
+        // The interrupt was meant for the step, not whatever the thread runs next.
+        if (interrupted) {
+            interrupted = false;
+            Thread.interrupted();
+        }
+    }
+}
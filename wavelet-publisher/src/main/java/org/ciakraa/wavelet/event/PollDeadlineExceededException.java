@@ -0,0 +1,22 @@
+package org.ciakraa.wavelet.event;
+
+/**
+ * A poll step was refused, as the poll had already used up its {@link PollDeadline} budget.
+ * The poll has been, or is about to be, rescheduled by the {@link PollTimingWheel}; whatever it had left to do is
+ * picked up by its next run.
+ */
+class PollDeadlineExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String stage;
+
+    PollDeadlineExceededException(String stage) {
+        super("Poll ran out of time before " + stage);
+        this.stage = stage;
+    }
+
+    String getStage() {
+        return stage;
+    }
+}
@@ -0,0 +1,29 @@
+package org.ciakraa.wavelet.event;
+
+import org.apache.commons.lang3.Validate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.OptionalLong;
+import java.util.function.Supplier;
+
+/**
+ * Decides how long a {@link ListenedTrackPoll} waits before polling its user again.
+ */
+@FunctionalInterface
+interface PollInterval {
+
+    /**
+     * @param lastPlayedAt lazily looks up when the user last played a track (unix timestamp), if we have seen one at all.
+     * @param now
+     */
+    Duration getNextInterval(Supplier<OptionalLong> lastPlayedAt, Instant now);
+
+    /**
+     * Polls every period, regardless of what the user is up to. The user's last play is never looked up.
+     */
+    static PollInterval fixed(Duration period) {
+        Validate.isTrue(!period.isNegative() && !period.isZero());
+        return (lastPlayedAt, now) -> period;
+    }
+}
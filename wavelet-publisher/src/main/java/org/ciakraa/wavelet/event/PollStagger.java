@@ -0,0 +1,49 @@
+package org.ciakraa.wavelet.event;
+
+import org.apache.commons.lang3.Validate;
+import org.ciakraa.wavelet.common.Hashing;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Spreads user polls evenly across the poll period, so a deploy doesn't send every user to Spotify, Redis and Kafka
+ * in the same second (and then again every period, in lockstep).
+ *
+ * Each user has a fixed phase within the period, derived from a hash of their user id. Phases are anchored to the
+ * epoch rather than to when the app started, so a user keeps polling at the same point of the period across restarts.
+ * A small random jitter is added on top, so users whose phases collide don't all land on the same tick.
+ */
+final class PollStagger {
+
+    private PollStagger() {
+        // Static utility class doesn't need to be instantiated!
+    }
+
+    /**
+     * The user's offset within the period, e.g. a phase of 2 minutes means the user is polled at 2, 12, 22... minutes
+     * past the hour for a 10 minute period.
+     */
+    static Duration getPhase(String userId, Duration period) {
+        Validate.notBlank(userId);
+        Validate.isTrue(!period.isNegative() && !period.isZero());
+
+        // String hash codes of similar user ids sit close together; mixing spreads them across all 64 bits.
+        return Duration.ofMillis(Math.floorMod(Hashing.mix(userId.hashCode()), period.toMillis()));
+    }
+
+    /**
+     * How long to wait before the user's first poll, so that it lands on the user's phase plus up to maxJitter.
+     */
+    static Duration getInitialDelay(String userId, Duration period, Duration maxJitter, Instant now) {
+        Validate.isTrue(!maxJitter.isNegative());
+
+        long periodMillis = period.toMillis();
+        long phaseMillis = getPhase(userId, period).toMillis();
+        long delayMillis = Math.floorMod(phaseMillis - now.toEpochMilli(), periodMillis);
+        long jitterMillis = maxJitter.isZero() ? 0 : ThreadLocalRandom.current().nextLong(maxJitter.toMillis());
+
+        return Duration.ofMillis(delayMillis + jitterMillis);
+    }
+}
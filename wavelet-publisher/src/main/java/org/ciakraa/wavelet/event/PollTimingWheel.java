@@ -0,0 +1,334 @@
+package org.ciakraa.wavelet.event;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A hashed timing wheel for recurring {@link ListenedTrackPoll}s.
+ *
+ * Rather than carrying one scheduled future per user in the {@link TaskScheduler} delay queue, each poll is hashed
+ * into one of a fixed ring of buckets by its deadline tick. A single recurring task advances the wheel once per tick,
+ * and hands every poll that is due in the current bucket to the workers. The tick thread never runs a poll itself,
+ * so a slow Spotify, Redis or Kafka call can hold up a worker but never the wheel.
+ *
+ * Each {@link PacedTask} decides how long to wait before its next run once it has finished running (or, for a task
+ * which runs asynchronously, once the future it returns has completed), so a task never overlaps itself. The delay is
+ * measured from the task's previous deadline rather than from when it finished, so a task with a constant delay keeps
+ * a fixed rate without drifting.
+ *
+ * Scheduling and cancelling are O(1). Only the tick thread touches the buckets; other threads hand over new polls
+ * through a concurrent queue which is drained at the start of each tick.
+ *
+ * Every run is given a {@link PollDeadline} of the run budget. The tick thread doubles as the runs' watchdog: a run
+ * still going once its budget is up is expired, which interrupts any step blocked on it, and its task is rescheduled
+ * as if the run had finished. However long a Spotify, Redis or Kafka call hangs, a task is never kept off the wheel
+ * for longer than its budget. Overruns are counted by the stage they were stuck in.
+ *
+ * @see <a href="http://www.cs.columbia.edu/~nahum/w6998/papers/sosp87-timing-wheels.pdf">Hashed and Hierarchical Timing Wheels</a>
+ */
+final class PollTimingWheel {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PollTimingWheel.class);
+
+    private final Duration tickDuration;
+    private final long tickMillis;
+    private final int mask;
+    private final List<Queue<Timeout>> buckets;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final Executor workers;
+    private final Duration runBudget;
+    private final LongSupplier nanoTime;
+    private final Set<Timeout> running = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, LongAdder> overruns = new ConcurrentHashMap<>();
+
+    // Only read and written by the tick thread.
+    private long currentTick;
+
+    private ScheduledFuture<?> ticker;
+
+    PollTimingWheel(Duration tickDuration, int ticksPerWheel, Executor workers) {
+        this(tickDuration, ticksPerWheel, workers, EventConstants.POLL_BUDGET);
+    }
+
+    PollTimingWheel(Duration tickDuration, int ticksPerWheel, Executor workers, Duration runBudget) {
+        this(tickDuration, ticksPerWheel, workers, runBudget, System::nanoTime);
+    }
+
+    PollTimingWheel(Duration tickDuration, int ticksPerWheel, Executor workers, Duration runBudget, LongSupplier nanoTime) {
+        Validate.isTrue(!tickDuration.isNegative() && !tickDuration.isZero());
+        Validate.inclusiveBetween(1, 1 << 30, ticksPerWheel);
+        Validate.notNull(workers);
+        Validate.isTrue(!runBudget.isNegative() && !runBudget.isZero());
+        Validate.notNull(nanoTime);
+
+        this.tickDuration = tickDuration;
+        this.tickMillis = tickDuration.toMillis();
+        this.workers = workers;
+        this.runBudget = runBudget;
+        this.nanoTime = nanoTime;
+
+        int wheelSize = normalize(ticksPerWheel);
+        this.mask = wheelSize - 1;
+        this.buckets = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            buckets.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Starts advancing the wheel, one tick per tick duration. This is the only task the scheduler has to carry,
+     * no matter how many polls are on the wheel.
+     */
+    synchronized void start(TaskScheduler scheduler) {
+        Validate.validState(ticker == null, "Poll timing wheel has already been started.");
+        ticker = scheduler.scheduleAtFixedRate(this::tick, tickDuration);
+    }
+
+    synchronized void stop() {
+        if (ticker != null) {
+            ticker.cancel(false);
+        }
+    }
+
+    /**
+     * Places a recurring task on the wheel. It will first run after the initial delay, rounded up to the next tick,
+     * and then after whatever delay the task asks for following each run.
+     */
+    Timeout schedule(PacedTask task, Duration initialDelay) {
+        Validate.notNull(task);
+        Validate.isTrue(!initialDelay.isNegative());
+
+        Timeout timeout = new Timeout(this, task);
+        timeout.delayTicks = toTicks(initialDelay);
+        size.incrementAndGet();
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * The number of scheduled tasks which have not been cancelled.
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * The number of runs which overran their budget, by the stage they were stuck in.
+     */
+    Map<String, Long> getOverruns() {
+        Map<String, Long> counts = new TreeMap<>();
+        overruns.forEach((stage, count) -> counts.put(stage, count.sum()));
+        return counts;
+    }
+
+    /**
+     * Advances the wheel by one tick, reschedules any runs which have overrun, and dispatches every task due in the
+     * new tick's bucket to the workers.
+     */
+    void tick() {
+        long tick = ++currentTick;
+        expireOverdue();
+        transferPending();
+
+        Iterator<Timeout> bucket = buckets.get((int) (tick & mask)).iterator();
+        while (bucket.hasNext()) {
+            Timeout timeout = bucket.next();
+            if (timeout.isCancelled()) {
+                bucket.remove();
+            } else if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            } else {
+                bucket.remove();
+                dispatch(timeout);
+            }
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+
+            // New tasks are measured from now, re-armed tasks from their previous deadline.
+            long base = timeout.armed ? timeout.deadlineTick : currentTick;
+            timeout.deadlineTick = Math.max(base + timeout.delayTicks, currentTick);
+            timeout.armed = true;
+            place(timeout);
+        }
+    }
+
+    private void place(Timeout timeout) {
+        // Anything already overdue lands in the current bucket, which is processed right after pending polls are placed.
+        timeout.remainingRounds = (timeout.deadlineTick - currentTick) / buckets.size();
+        buckets.get((int) (timeout.deadlineTick & mask)).add(timeout);
+    }
+
+    private void dispatch(Timeout timeout) {
+        try {
+            workers.execute(() -> run(timeout));
+        } catch (RejectedExecutionException e) {
+            // Workers are shutting down or saturated; skip this run rather than lose the task from the wheel.
+            LOG.warn("Poll workers rejected a due poll, skipping to its next run:", e);
+            rearm(timeout);
+        }
+    }
+
+    private void run(Timeout timeout) {
+        if (timeout.isCancelled()) {
+            return;
+        }
+
+        PollDeadline deadline = new PollDeadline(runBudget, nanoTime);
+        timeout.run.set(deadline);
+        running.add(timeout);
+
+        CompletionStage<?> done;
+        try {
+            done = timeout.task.runAsync(deadline);
+        } catch (RuntimeException e) {
+            LOG.error("Scheduled poll failed:", e);
+            finish(timeout, deadline);
+            return;
+        }
+
+        done.whenComplete((result, e) -> {
+            if (e != null) {
+                LOG.error("Scheduled poll failed:", e);
+            }
+            finish(timeout, deadline);
+        });
+    }
+
+    /**
+     * Re-arms the task once its run has finished, unless the watchdog has already given up on that run.
+     */
+    private void finish(Timeout timeout, PollDeadline deadline) {
+        if (timeout.run.compareAndSet(deadline, null)) {
+            running.remove(timeout);
+            rearm(timeout);
+        }
+    }
+
+    private void expireOverdue() {
+        for (Timeout timeout : running) {
+            PollDeadline deadline = timeout.run.get();
+            if (deadline == null || !deadline.isOverdue() || !timeout.run.compareAndSet(deadline, null)) {
+                continue;
+            }
+
+            running.remove(timeout);
+            String stage = deadline.expire();
+            overruns.computeIfAbsent(stage, s -> new LongAdder()).increment();
+            LOG.warn("Scheduled poll overran its {} ms budget while in stage {}, rescheduling it", runBudget.toMillis(), stage);
+            rearm(timeout);
+        }
+    }
+
+    private void rearm(Timeout timeout) {
+        if (timeout.isCancelled()) {
+            return;
+        }
+
+        Duration nextDelay = timeout.task.getNextDelay();
+        timeout.delayTicks = Math.max(1, toTicks(nextDelay));
+        pending.add(timeout);
+    }
+
+    private long toTicks(Duration duration) {
+        long millis = Math.max(0, duration.toMillis());
+        return (millis + tickMillis - 1) / tickMillis;
+    }
+
+    private static int normalize(int ticksPerWheel) {
+        int wheelSize = 1;
+        while (wheelSize < ticksPerWheel) {
+            wheelSize <<= 1;
+        }
+        return wheelSize;
+    }
+
+    /**
+     * A recurring task which picks its own pace.
+     */
+    interface PacedTask extends Runnable {
+
+        /**
+         * Starts a run of the task, returning once the task no longer needs the worker; the task isn't due again until
+         * the returned stage completes, or the run's deadline is up. Tasks which block for their whole run needn't
+         * override this.
+         */
+        default CompletionStage<?> runAsync(PollDeadline deadline) {
+            run();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        /**
+         * Asked after every run: how long to wait, from this run's deadline, before running again.
+         */
+        Duration getNextDelay();
+    }
+
+    /**
+     * Handle for a task on the wheel. Cancelling is O(1); the task is lazily dropped from its bucket on the next pass.
+     */
+    static final class Timeout {
+
+        private final PollTimingWheel wheel;
+        private final PacedTask task;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+
+        // The deadline of the task's current run, or null between runs.
+        private final AtomicReference<PollDeadline> run = new AtomicReference<>();
+
+        // Written by whichever thread hands the task to the pending queue, which safely publishes it to the tick thread.
+        private long delayTicks;
+
+        // Only read and written by the tick thread.
+        private boolean armed;
+        private long deadlineTick;
+        private long remainingRounds;
+
+        private Timeout(PollTimingWheel wheel, PacedTask task) {
+            this.wheel = wheel;
+            this.task = task;
+        }
+
+        void cancel() {
+            if (cancelled.compareAndSet(false, true)) {
+                wheel.size.decrementAndGet();
+            }
+        }
+
+        boolean isCancelled() {
+            return cancelled.get();
+        }
+    }
+}
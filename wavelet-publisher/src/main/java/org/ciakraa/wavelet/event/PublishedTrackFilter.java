@@ -0,0 +1,163 @@
+package org.ciakraa.wavelet.event;
+
+import org.apache.commons.lang3.Validate;
+import org.ciakraa.wavelet.common.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.Collections.emptyList;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * A Bloom filter over the keys of every {@link ListenedTrack} we've published, shared by all publisher instances.
+ *
+ * Each user's recently listened cache only holds their latest tracks, so a play Spotify hands back again after that
+ * has moved on, e.g. after a long idle spell, would otherwise be published twice. The filter remembers every key at a
+ * couple of bytes each, at the cost of wrongly taking a small share of new tracks (the false positive rate) as already
+ * published.
+ *
+ * The filter is a Redis bitmap per generation, sized for the expected number of tracks per generation. A new
+ * generation is started every rotation period, and tracks are checked against both the current and the previous one,
+ * so each key is remembered for at least one full period, and old generations simply expire.
+ *
+ * Redis is a best-effort tier here: if it can't be reached, tracks are taken as unpublished.
+ */
+class PublishedTrackFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PublishedTrackFilter.class);
+
+    private static final RedisScript<List> ADD_PUBLISHED_TRACKS = getAddPublishedTracksScript();
+
+    /**
+     * Redis bitmaps top out at 2^32 bits.
+     */
+    private static final long MAX_BITS = 1L << 32;
+
+    private final RedisOperations<String, Object> redis;
+    private final long bits;
+    private final int hashes;
+    private final Duration rotation;
+    private final Clock clock;
+
+    PublishedTrackFilter(RedisOperations<String, Object> redis, long expectedPerRotation, double falsePositiveRate,
+                         Duration rotation) {
+        this(redis, expectedPerRotation, falsePositiveRate, rotation, Clock.systemUTC());
+    }
+
+    PublishedTrackFilter(RedisOperations<String, Object> redis, long expectedPerRotation, double falsePositiveRate,
+                         Duration rotation, Clock clock) {
+        Validate.notNull(redis);
+        Validate.isTrue(expectedPerRotation > 0);
+        Validate.isTrue(falsePositiveRate > 0 && falsePositiveRate < 1);
+        Validate.isTrue(!rotation.isNegative() && rotation.getSeconds() > 0);
+        Validate.notNull(clock);
+
+        this.redis = redis;
+        this.bits = getBits(expectedPerRotation, falsePositiveRate);
+        this.hashes = getHashes(expectedPerRotation, bits);
+        this.rotation = rotation;
+        this.clock = clock;
+    }
+
+    /**
+     * Adds the tracks to the filter, returning those which weren't in it yet, in the order given.
+     */
+    List<ListenedTrack> addUnpublished(List<ListenedTrack> tracks) {
+        if (tracks.isEmpty()) {
+            return emptyList();
+        }
+
+        Object[] args = new Object[2 + hashes * tracks.size()];
+        args[0] = rotation.multipliedBy(2).getSeconds();
+        args[1] = hashes;
+        for (int i = 0; i < tracks.size(); i++) {
+            long[] offsets = getOffsets(tracks.get(i).getKey());
+            for (int j = 0; j < hashes; j++) {
+                args[2 + i * hashes + j] = offsets[j];
+            }
+        }
+
+        List<?> unpublished;
+        try {
+            unpublished = redis.execute(ADD_PUBLISHED_TRACKS, getGenerationKeys(), args);
+        } catch (DataAccessException e) {
+            LOG.warn("Unable to reach the published tracks filter, taking {} tracks as unpublished:", tracks.size(), e);
+            return tracks;
+        }
+
+        if (unpublished == null || unpublished.isEmpty()) {
+            return emptyList();
+        }
+
+        // Positions are counted from 1, as Lua does.
+        return unpublished.stream()
+                .map(position -> tracks.get(((Number) position).intValue() - 1))
+                .collect(toList());
+    }
+
+    long getBits() {
+        return bits;
+    }
+
+    int getHashes() {
+        return hashes;
+    }
+
+    /**
+     * The current generation's key, then the previous one's.
+     */
+    List<String> getGenerationKeys() {
+        long generation = clock.millis() / rotation.toMillis();
+        return Arrays.asList(EventConstants.PUBLISHED_FILTER_KEY_PREFIX + generation,
+                EventConstants.PUBLISHED_FILTER_KEY_PREFIX + (generation - 1));
+    }
+
+    /**
+     * The key's bits, from two 64 bit hashes combined as h1 + i * h2 (Kirsch and Mitzenmacher), which is as good as
+     * k independent hashes for a Bloom filter.
+     */
+    long[] getOffsets(String key) {
+        long h1 = Hashing.fnv1a(key);
+        long h2 = Hashing.mix(h1) | 1;
+
+        long[] offsets = new long[hashes];
+        for (int i = 0; i < hashes; i++) {
+            offsets[i] = Math.floorMod(h1 + i * h2, bits);
+        }
+        return offsets;
+    }
+
+    /**
+     * m = -n ln p / (ln 2)^2
+     */
+    static long getBits(long expected, double falsePositiveRate) {
+        long bits = (long) Math.ceil(-expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        Validate.isTrue(bits <= MAX_BITS, "Filter of %d bits won't fit in a Redis bitmap", bits);
+        return bits;
+    }
+
+    /**
+     * k = m / n ln 2
+     */
+    static int getHashes(long expected, long bits) {
+        return Math.max(1, (int) Math.round((double) bits / expected * Math.log(2)));
+    }
+
+    private static RedisScript<List> getAddPublishedTracksScript() {
+        DefaultRedisScript<List> script = new DefaultRedisScript<>();
+        script.setScriptSource(new ResourceScriptSource(new ClassPathResource("redis/add-published-tracks.lua")));
+        script.setResultType(List.class);
+        return script;
+    }
+}
@@ -0,0 +1,170 @@
+package org.ciakraa.wavelet.event;
+
+import org.apache.commons.lang3.Validate;
+import org.ciakraa.wavelet.common.Hashing;
+
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * An in-process copy of what each user's recently listened cache and cursor in Redis tell us, so that a poll which
+ * finds nothing new doesn't have to ask Redis.
+ *
+ * Each user gets a fixed-size ring of the tracks we've last seen them play, held as a 64 bit hash of the track id and
+ * the minute it was played at, in two primitive arrays. Whatever the ring says has been seen, has been; anything it
+ * doesn't know about still has to be checked against Redis. Each user's cursor is loaded from Redis the first time
+ * it's needed, and from then on kept here, and only written back when it moves forward. When the user last played a
+ * track is kept the same way, for pacing their polls.
+ *
+ * If Redis becomes unavailable, users already loaded can go on being polled and deduplicated from here alone.
+ */
+final class RecentTracksWindow {
+
+    private final int capacity;
+    private final ConcurrentMap<String, UserWindow> windows = new ConcurrentHashMap<>();
+
+    RecentTracksWindow(int capacity) {
+        Validate.isTrue(capacity > 0);
+        this.capacity = capacity;
+    }
+
+    /**
+     * The user's cursor, loading it on first use; a failure to load leaves the user unloaded, to try again next time.
+     */
+    OptionalLong getCursor(String userId, Supplier<OptionalLong> loader) {
+        UserWindow window = windows.get(userId);
+        if (window == null) {
+            window = windows.computeIfAbsent(userId, id -> new UserWindow(capacity, loader.get()));
+        }
+        return window.getCursor();
+    }
+
+    /**
+     * Moves the user's cursor forward to the given time (in millis). Returns false if it was already there or beyond,
+     * or if the user isn't loaded.
+     */
+    boolean advanceCursor(String userId, long playedAtMillis) {
+        UserWindow window = windows.get(userId);
+        return window != null && window.advanceCursor(playedAtMillis);
+    }
+
+    /**
+     * When the user last played a track (unix timestamp), loading it on first use if no track has been added since
+     * the user was loaded. A user who isn't loaded is looked up every time.
+     */
+    OptionalLong getLastPlayedAt(String userId, Supplier<OptionalLong> loader) {
+        UserWindow window = windows.get(userId);
+        return window != null ? window.getLastPlayedAt(loader) : loader.get();
+    }
+
+    boolean isLoaded(String userId) {
+        return windows.containsKey(userId);
+    }
+
+    boolean contains(String userId, String trackId, long playedAt) {
+        UserWindow window = windows.get(userId);
+        return window != null && window.contains(hash(trackId, playedAt));
+    }
+
+    /**
+     * Remembers a track as seen, pushing out the oldest one the user's ring holds if it's full.
+     * Does nothing if the user isn't loaded.
+     */
+    void add(String userId, String trackId, long playedAt) {
+        UserWindow window = windows.get(userId);
+        if (window != null) {
+            window.add(hash(trackId, playedAt), playedAt);
+        }
+    }
+
+    /**
+     * Drops everything held for the user, e.g. once we stop polling them.
+     */
+    void forget(String userId) {
+        windows.remove(userId);
+    }
+
+    int size() {
+        return windows.size();
+    }
+
+    /**
+     * 64 bit FNV-1a over the track id and the minute it was played at.
+     */
+    static long hash(String trackId, long playedAt) {
+        return Hashing.fnv1a(Hashing.fnv1a(trackId), playedAt);
+    }
+
+    /**
+     * One user's ring of track hashes and their cursor.
+     */
+    private static final class UserWindow {
+
+        // All guarded by this.
+        private final long[] hashes;
+        private int size;
+        private int next;
+        private boolean hasCursor;
+        private long cursor;
+        private OptionalLong lastPlayedAt;
+
+        private UserWindow(int capacity, OptionalLong cursor) {
+            this.hashes = new long[capacity];
+            this.hasCursor = cursor.isPresent();
+            this.cursor = cursor.orElse(0);
+        }
+
+        private synchronized OptionalLong getCursor() {
+            return hasCursor ? OptionalLong.of(cursor) : OptionalLong.empty();
+        }
+
+        private synchronized boolean advanceCursor(long playedAtMillis) {
+            if (hasCursor && playedAtMillis <= cursor) {
+                return false;
+            }
+
+            hasCursor = true;
+            cursor = playedAtMillis;
+            return true;
+        }
+
+        private OptionalLong getLastPlayedAt(Supplier<OptionalLong> loader) {
+            synchronized (this) {
+                if (lastPlayedAt != null) {
+                    return lastPlayedAt;
+                }
+            }
+
+            // Loaded outside the lock, so a slow load doesn't hold up the poll adding tracks.
+            OptionalLong loaded = loader.get();
+            synchronized (this) {
+                if (lastPlayedAt == null) {
+                    lastPlayedAt = loaded;
+                }
+                return lastPlayedAt;
+            }
+        }
+
+        private synchronized boolean contains(long hash) {
+            for (int i = 0; i < size; i++) {
+                if (hashes[i] == hash) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private synchronized void add(long hash, long playedAt) {
+            // Anything added is newer than the cursor, so newer than anything a load would find.
+            if (lastPlayedAt == null || !lastPlayedAt.isPresent() || playedAt > lastPlayedAt.getAsLong()) {
+                lastPlayedAt = OptionalLong.of(playedAt);
+            }
+
+            hashes[next] = hash;
+            next = (next + 1) % hashes.length;
+            size = Math.min(size + 1, hashes.length);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.ciakraa.wavelet.event;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.ciakraa.wavelet.web_api.SpotifyJsonReader;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Collections.emptyList;
+
+/**
+ * Reads a recently played response straight into {@link ListenedTrack}, filling in only the track fields we publish:
+ * id, name, duration, preview url, the first artist, and when it was played. Everything else in the response, e.g.
+ * markets, external urls and the play's context, is skipped over without being built.
+ *
+ * The user and audio features fields are left for {@link ListenedTrackService} to fill in. The latest play's time is
+ * kept to the milli, as the cursor for the next poll.
+ *
+ * @see <a href="https://beta.developer.spotify.com/documentation/web-api/reference/player/get-recently-played/">Get Current User's Recently Played Tracks</a>
+ */
+final class RecentlyPlayedReader implements SpotifyJsonReader<RecentlyPlayedReader.RecentPlays> {
+
+    @Override
+    public RecentPlays read(JsonParser parser) throws IOException {
+        List<ListenedTrack> tracks = new ArrayList<>();
+        long latestPlayedAt = 0;
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return RecentPlays.NONE;
+        }
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("items".equals(field) && value == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    ListenedTrack track = new ListenedTrack();
+                    long playedAt = readPlay(parser, track);
+                    track.setPlayedAt(ListenedTrackService.getTimestamp(playedAt));
+                    latestPlayedAt = Math.max(latestPlayedAt, playedAt);
+                    tracks.add(track);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return new RecentPlays(tracks, latestPlayedAt);
+    }
+
+    /**
+     * Reads one play history object into the track, returning when it was played, in millis.
+     */
+    private static long readPlay(JsonParser parser, ListenedTrack track) throws IOException {
+        long playedAt = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("track".equals(field) && value == JsonToken.START_OBJECT) {
+                readTrack(parser, track);
+            } else if ("played_at".equals(field) && value == JsonToken.VALUE_STRING) {
+                playedAt = parsePlayedAt(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return playedAt;
+    }
+
+    private static long parsePlayedAt(JsonParser parser) throws IOException {
+        try {
+            return Instant.parse(parser.getText()).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new JsonParseException(parser, "Invalid played_at: " + parser.getText(), e);
+        }
+    }
+
+    private static void readTrack(JsonParser parser, ListenedTrack track) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.VALUE_NULL) {
+                continue;
+            }
+
+            switch (field) {
+                case "id":
+                    track.setTrackId(parser.getText());
+                    break;
+                case "name":
+                    track.setName(parser.getText());
+                    break;
+                case "duration_ms":
+                    track.setDurationMs(parser.getIntValue());
+                    break;
+                case "preview_url":
+                    track.setPreviewUrl(parser.getText());
+                    break;
+                case "artists":
+                    readFirstArtist(parser, track);
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+    }
+
+    private static void readFirstArtist(JsonParser parser, ListenedTrack track) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return;
+        }
+
+        boolean first = true;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (!first || parser.getCurrentToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+
+            first = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("id".equals(field) && value == JsonToken.VALUE_STRING) {
+                    track.setArtistId(parser.getText());
+                } else if ("name".equals(field) && value == JsonToken.VALUE_STRING) {
+                    track.setArtistName(parser.getText());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    /**
+     * The tracks in a recently played response, in the order Spotify returned them, and when the latest was played.
+     */
+    static final class RecentPlays {
+
+        static final RecentPlays NONE = new RecentPlays(emptyList(), 0);
+
+        private final List<ListenedTrack> tracks;
+        private final long latestPlayedAt;
+
+        RecentPlays(List<ListenedTrack> tracks, long latestPlayedAt) {
+            this.tracks = tracks;
+            this.latestPlayedAt = latestPlayedAt;
+        }
+
+        List<ListenedTrack> getTracks() {
+            return tracks;
+        }
+
+        /**
+         * When the latest play happened, as a unix timestamp in millis.
+         */
+        long getLatestPlayedAt() {
+            return latestPlayedAt;
+        }
+
+        boolean isEmpty() {
+            return tracks.isEmpty();
+        }
+    }
+}
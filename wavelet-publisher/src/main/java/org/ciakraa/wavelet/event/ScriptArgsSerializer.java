@@ -0,0 +1,31 @@
+package org.ciakraa.wavelet.event;
+
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Passes binary script args to Redis as they are, rather than through the template's json serializer, which would
+ * base64 and quote them. Anything else, e.g. a score or a count, is sent as text, the way Redis parses numbers.
+ * Replies are handed back as raw bytes.
+ */
+final class ScriptArgsSerializer implements RedisSerializer<Object> {
+
+    static final ScriptArgsSerializer INSTANCE = new ScriptArgsSerializer();
+
+    private ScriptArgsSerializer() {
+    }
+
+    @Override
+    public byte[] serialize(Object arg) {
+        if (arg == null) {
+            return null;
+        }
+        return arg instanceof byte[] ? (byte[]) arg : arg.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) {
+        return bytes;
+    }
+}
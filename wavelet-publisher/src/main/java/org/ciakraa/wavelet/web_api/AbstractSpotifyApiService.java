@@ -7,17 +7,31 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.Optional;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Abstract class to support any services that rely on querying Spotify API.
- * Mainly concerned with exception handling.
+ * Mainly concerned with exception handling, and with pacing every request through the shared {@link SpotifyRateLimiter}.
+ *
+ * Requests can be executed in one of two ways: blocking the calling thread, or asynchronously through
+ * the {@link SpotifyRetryScheduler}, which never parks the caller while a request waits on a rate limit or a retry.
+ * Async requests given a key are also deduplicated: see {@link SpotifyRequestCoalescer}.
  */
 abstract class AbstractSpotifyApiService {
 
     private static final Logger LOG = LoggerFactory.getLogger(AbstractSpotifyApiService.class);
 
+    private final SpotifyRateLimiter rateLimiter;
+    private final SpotifyRetryScheduler retryScheduler;
+    private final SpotifyRequestCoalescer coalescer = new SpotifyRequestCoalescer();
+
+    AbstractSpotifyApiService(SpotifyRateLimiter rateLimiter, SpotifyRetryScheduler retryScheduler) {
+        this.rateLimiter = rateLimiter;
+        this.retryScheduler = retryScheduler;
+    }
+
     /**
      * Any call to execute SpotifyAPI and it's request objects will satisfy this functional interface.
      */
@@ -30,8 +44,9 @@ abstract class AbstractSpotifyApiService {
      * For ease of simplicity in this here hobby project, our services won't be too granular with responding to Spotify API status codes.
      * Here's how we handle the status codes:
      *
-     * 429: "Rate Limiting Has Been Applied". Sleep the thread until we can try again, with a finite number of tries.
+     * 429: "Rate Limiting Has Been Applied". Pause every request until we can try again, with a finite number of tries.
      * 401: "Unauthorized Access". The service caller should handle this, likely with refreshing an access token.
+     * Circuit open: Spotify is failing on this endpoint, see {@link SpotifyCircuitBreaker}. Return an empty result without trying.
      * Everything else: Return an empty result.
      */
     <T> Optional<T> executeWithAccess(SpotifyApiSupplier<T> supplier) throws SpotifyUnauthorizedException {
@@ -44,6 +59,10 @@ abstract class AbstractSpotifyApiService {
             return Optional.empty();
         }
 
+        if (!acquire()) {
+            return Optional.empty();
+        }
+
         try {
             return Optional.ofNullable(supplier.get());
         } catch (TooManyRequestsException exp) {
@@ -53,6 +72,9 @@ abstract class AbstractSpotifyApiService {
         } catch(UnauthorizedException exp) {
             LOG.error("Spotify request execution with access failed due to unauthorized error:", exp);
             throw new SpotifyUnauthorizedException();
+        } catch (SpotifyCircuitOpenException exp) {
+            LOG.warn("Spotify request execution with access refused: {}", exp.getMessage());
+            return Optional.empty();
         } catch (IOException | SpotifyWebApiException exp) {
             LOG.error("Spotify request execution with access failed due to exception:", exp);
             return Optional.empty();
@@ -60,12 +82,7 @@ abstract class AbstractSpotifyApiService {
     }
 
     <T> Optional<T> retryWithAccess(SpotifyApiSupplier<T> supplier, int retryAfter, int retries) throws SpotifyUnauthorizedException {
-        try {
-            TimeUnit.SECONDS.sleep(retryAfter);
-        } catch (InterruptedException exp) {
-            LOG.error("Spotify retry interrupted", exp);
-            Thread.currentThread().interrupt();
-        }
+        rateLimiter.pause(Duration.ofSeconds(retryAfter));
         return executeWithAccess(supplier, --retries);
     }
 
@@ -82,12 +99,19 @@ abstract class AbstractSpotifyApiService {
             return Optional.empty();
         }
 
+        if (!acquire()) {
+            return Optional.empty();
+        }
+
         try {
             return Optional.ofNullable(supplier.get());
         } catch (TooManyRequestsException exp) {
             // Spotify rounds down retry seconds, e.g. 32000ms to 3 seconds, so add one to be safe.
             LOG.info("Spotify has returned a Too Many Requests status. Waiting {} seconds. {} retries remain.", exp.getRetryAfter() + 1, retries);
             return retryWithoutAccess(supplier, exp.getRetryAfter() + 1, --retries);
+        } catch (SpotifyCircuitOpenException exp) {
+            LOG.warn("Spotify request execution without access refused: {}", exp.getMessage());
+            return Optional.empty();
         }  catch (IOException | SpotifyWebApiException exp) {
             LOG.error("Spotify request execution without access failed due to exception:", exp);
             return Optional.empty();
@@ -95,13 +119,45 @@ abstract class AbstractSpotifyApiService {
     }
 
     <T> Optional<T> retryWithoutAccess(SpotifyApiSupplier<T> supplier, int retryAfter, int retries) {
+        rateLimiter.pause(Duration.ofSeconds(retryAfter));
+        return executeWithoutAccess(supplier, --retries);
+    }
+
+    /**
+     * Executes the request without blocking, retrying with backoff as described in {@link SpotifyRetryScheduler}.
+     * The future fails with {@link SpotifyUnauthorizedException} if Spotify answers with a 401, and with
+     * {@link SpotifyCircuitOpenException} if the request is refused by the {@link SpotifyCircuitBreaker}.
+     */
+    <T> CompletableFuture<Optional<T>> executeWithAccessAsync(SpotifyApiSupplier<T> supplier) {
+        return retryScheduler.execute(supplier, true);
+    }
+
+    <T> CompletableFuture<Optional<T>> executeWithoutAccessAsync(SpotifyApiSupplier<T> supplier) {
+        return retryScheduler.execute(supplier, false);
+    }
+
+    /**
+     * As {@link #executeWithAccessAsync(SpotifyApiSupplier)}, but shares the result of an identical request already in
+     * flight, identified by the key, rather than sending another. The key should name the endpoint and every parameter
+     * which changes the answer. If Spotify rejects the shared request's access token, a request which joined it is sent
+     * again with its own.
+     */
+    <T> CompletableFuture<Optional<T>> executeWithAccessAsync(String key, SpotifyApiSupplier<T> supplier) {
+        return coalescer.execute(key, () -> executeWithAccessAsync(supplier), e -> e instanceof SpotifyUnauthorizedException);
+    }
+
+    /**
+     * Waits for the rate limiter to let us through. Returns false if we were interrupted while waiting.
+     */
+    private boolean acquire() {
         try {
-            TimeUnit.SECONDS.sleep(retryAfter);
+            rateLimiter.acquire();
+            return true;
         } catch (InterruptedException exp) {
-            LOG.error("Spotify retry interrupted", exp);
+            LOG.error("Spotify request interrupted while waiting on rate limit", exp);
             Thread.currentThread().interrupt();
+            return false;
         }
-        return executeWithoutAccess(supplier, --retries);
     }
 
 }
@@ -0,0 +1,98 @@
+package org.ciakraa.wavelet.web_api;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.wrapper.spotify.enums.Modality;
+import com.wrapper.spotify.model_objects.specification.AudioFeatures;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads an audio features response into {@link AudioFeatures} holding only the id and the features we publish,
+ * skipping the uri, track and analysis urls. Like the library, a track Spotify has no features for comes back as null.
+ *
+ * @see <a href="https://beta.developer.spotify.com/documentation/web-api/reference/tracks/get-several-audio-features/">Get Audio Features for Several Tracks</a>
+ */
+final class AudioFeaturesJsonReader implements SpotifyJsonReader<List<AudioFeatures>> {
+
+    @Override
+    public List<AudioFeatures> read(JsonParser parser) throws IOException {
+        List<AudioFeatures> features = new ArrayList<>();
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return features;
+        }
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("audio_features".equals(field) && value == JsonToken.START_ARRAY) {
+                while ((value = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    features.add(value == JsonToken.START_OBJECT ? readFeatures(parser) : null);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return features;
+    }
+
+    private static AudioFeatures readFeatures(JsonParser parser) throws IOException {
+        AudioFeatures.Builder builder = new AudioFeatures.Builder();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            switch (field) {
+                case "id":
+                    builder.setId(parser.getValueAsString());
+                    break;
+                case "acousticness":
+                    builder.setAcousticness(parser.getFloatValue());
+                    break;
+                case "danceability":
+                    builder.setDanceability(parser.getFloatValue());
+                    break;
+                case "duration_ms":
+                    builder.setDurationMs(parser.getIntValue());
+                    break;
+                case "energy":
+                    builder.setEnergy(parser.getFloatValue());
+                    break;
+                case "instrumentalness":
+                    builder.setInstrumentalness(parser.getFloatValue());
+                    break;
+                case "key":
+                    builder.setKey(parser.getIntValue());
+                    break;
+                case "liveness":
+                    builder.setLiveness(parser.getFloatValue());
+                    break;
+                case "loudness":
+                    builder.setLoudness(parser.getFloatValue());
+                    break;
+                case "mode":
+                    builder.setMode(Modality.keyOf(parser.getIntValue()));
+                    break;
+                case "speechiness":
+                    builder.setSpeechiness(parser.getFloatValue());
+                    break;
+                case "tempo":
+                    builder.setTempo(parser.getFloatValue());
+                    break;
+                case "time_signature":
+                    builder.setTimeSignature(parser.getIntValue());
+                    break;
+                case "valence":
+                    builder.setValence(parser.getFloatValue());
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        return builder.build();
+    }
+}
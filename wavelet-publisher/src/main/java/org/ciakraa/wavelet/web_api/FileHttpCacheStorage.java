@@ -0,0 +1,155 @@
+package org.ciakraa.wavelet.web_api;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.Validate;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheEntrySerializer;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.impl.client.cache.DefaultHttpCacheEntrySerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Keeps cached HTTP responses as files in a local directory, so the cache survives restarts.
+ *
+ * Each entry is one file, named after a hash of its cache key. Writes go to a temporary file which is then moved into
+ * place, so a reader never sees half an entry. Once there are more than the max number of entries, the least recently
+ * written ones are deleted. Entries are kept in write order in memory, so a write never has to list the directory;
+ * it's only listed once, on startup, to pick up what an earlier run left there. An entry which can't be read is
+ * treated as missing.
+ */
+final class FileHttpCacheStorage implements HttpCacheStorage {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileHttpCacheStorage.class);
+
+    private static final String ENTRY_SUFFIX = ".entry";
+
+    private final Path dir;
+    private final int maxEntries;
+    private final HttpCacheEntrySerializer serializer = new DefaultHttpCacheEntrySerializer();
+
+    // Every entry file, least recently written first. Guarded by this.
+    private final Set<Path> entries = new LinkedHashSet<>();
+
+    FileHttpCacheStorage(Path dir, int maxEntries) throws IOException {
+        Validate.notNull(dir);
+        Validate.isTrue(maxEntries > 0);
+
+        this.dir = Files.createDirectories(dir);
+        this.maxEntries = maxEntries;
+
+        try (Stream<Path> files = Files.list(this.dir)) {
+            files.filter(file -> file.toString().endsWith(ENTRY_SUFFIX))
+                    .sorted(Comparator.comparingLong(FileHttpCacheStorage::getLastModified))
+                    .forEach(entries::add);
+        }
+        evictOldest();
+    }
+
+    @Override
+    public synchronized void putEntry(String key, HttpCacheEntry entry) throws IOException {
+        write(key, entry);
+        evictOldest();
+    }
+
+    @Override
+    public synchronized HttpCacheEntry getEntry(String key) {
+        Path file = getFile(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            return serializer.readFrom(in);
+        } catch (IOException e) {
+            LOG.warn("Unable to read cached response from {}, dropping it:", file, e);
+            remove(file);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void removeEntry(String key) {
+        remove(getFile(key));
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized void updateEntry(String key, HttpCacheUpdateCallback callback) throws IOException {
+        HttpCacheEntry updated = callback.update(getEntry(key));
+        if (updated != null) {
+            write(key, updated);
+        } else {
+            removeEntry(key);
+        }
+    }
+
+    private void write(String key, HttpCacheEntry entry) throws IOException {
+        Path temp = Files.createTempFile(dir, "write", ".tmp");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                serializer.writeTo(entry, out);
+            }
+            Path file = getFile(key);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            // Moves a rewritten entry to the back of the line.
+            entries.remove(file);
+            entries.add(file);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void evictOldest() {
+        Iterator<Path> oldest = entries.iterator();
+        while (entries.size() > maxEntries) {
+            Path file = oldest.next();
+            oldest.remove();
+            delete(file);
+        }
+    }
+
+    private void remove(Path file) {
+        entries.remove(file);
+        delete(file);
+    }
+
+    private Path getFile(String key) {
+        return dir.resolve(DigestUtils.sha256Hex(key) + ENTRY_SUFFIX);
+    }
+
+    private static long getLastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.warn("Unable to delete cached response {}:", file, e);
+        }
+    }
+}
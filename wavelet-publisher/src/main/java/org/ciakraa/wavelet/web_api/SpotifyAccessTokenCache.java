@@ -0,0 +1,113 @@
+package org.ciakraa.wavelet.web_api;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the latest credentials for each user, so their access token is reused until it's about to expire.
+ *
+ * Access tokens last an hour, while a user is polled every few minutes, so refreshing before every poll is mostly
+ * wasted round-trips to the accounts service. Tokens are refreshed here only when they're within
+ * {@link WebApiConstants#ACCESS_TOKEN_REFRESH_MARGIN} of expiring, or when Spotify rejects one anyway.
+ *
+ * Normally the {@link SpotifyTokenRefresher} has already put a fresh token here well before then, so a poll only
+ * refreshes a token itself as a fallback.
+ */
+@Service
+public class SpotifyAccessTokenCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpotifyAccessTokenCache.class);
+
+    private final SpotifyAuthorizationService authService;
+    private final Clock clock;
+    private final ConcurrentMap<String, SpotifyUserCredentials> users = new ConcurrentHashMap<>();
+
+    @Autowired
+    public SpotifyAccessTokenCache(SpotifyAuthorizationService authService) {
+        this(authService, Clock.systemUTC());
+    }
+
+    SpotifyAccessTokenCache(SpotifyAuthorizationService authService, Clock clock) {
+        this.authService = authService;
+        this.clock = clock;
+    }
+
+    /**
+     * Credentials for the user with an access token which is good for a while yet, refreshing it only if it isn't.
+     * Whichever of the given and cached credentials expires last is used.
+     *
+     * An empty Optional is returned if the token needed refreshing and Spotify failed to refresh it.
+     * The future fails with {@link SpotifyUnauthorizedException} if the refresh token has been revoked.
+     */
+    public CompletableFuture<Optional<SpotifyUserCredentials>> getAuthorizedUserAsync(SpotifyUserCredentials userCred) {
+        Validate.isTrue(userCred.validate());
+
+        SpotifyUserCredentials latest = users.merge(userCred.getUserId(), userCred, SpotifyAccessTokenCache::getLatest);
+        if (latest.isAccessTokenValidAt(getRefreshDeadline())) {
+            return CompletableFuture.completedFuture(Optional.of(latest));
+        }
+
+        return refresh(latest);
+    }
+
+    /**
+     * Spotify rejected the user's access token before we expected it to expire, so it's refreshed right away.
+     * If the cache has already moved on to a newer token, that token is used instead.
+     */
+    public CompletableFuture<Optional<SpotifyUserCredentials>> refreshRejectedUserAsync(SpotifyUserCredentials rejectedCred) {
+        Validate.isTrue(rejectedCred.validate());
+
+        SpotifyUserCredentials cached = users.get(rejectedCred.getUserId());
+        if (cached != null && !cached.getAccessToken().equals(rejectedCred.getAccessToken())
+                && cached.isAccessTokenValidAt(getRefreshDeadline())) {
+            return CompletableFuture.completedFuture(Optional.of(cached));
+        }
+
+        LOG.info("Access token was rejected, refreshing it early for user {}", rejectedCred);
+        return refresh(rejectedCred);
+    }
+
+    /**
+     * Credentials refreshed elsewhere, e.g. by the {@link SpotifyTokenRefresher}, which polls should pick up from now on.
+     */
+    void put(SpotifyUserCredentials userCred) {
+        Validate.isTrue(userCred.validate());
+        users.merge(userCred.getUserId(), userCred, SpotifyAccessTokenCache::getLatest);
+    }
+
+    /**
+     * Drops the user's cached credentials, e.g. once they are no longer polled here.
+     */
+    public void forget(String userId) {
+        users.remove(userId);
+    }
+
+    Optional<SpotifyUserCredentials> getCachedUser(String userId) {
+        return Optional.ofNullable(users.get(userId));
+    }
+
+    private CompletableFuture<Optional<SpotifyUserCredentials>> refresh(SpotifyUserCredentials userCred) {
+        return authService.refreshUserAsync(userCred).thenApply(refreshed -> {
+            refreshed.ifPresent(cred -> users.merge(cred.getUserId(), cred, SpotifyAccessTokenCache::getLatest));
+            return refreshed;
+        });
+    }
+
+    private Instant getRefreshDeadline() {
+        return clock.instant().plus(WebApiConstants.ACCESS_TOKEN_REFRESH_MARGIN);
+    }
+
+    private static SpotifyUserCredentials getLatest(SpotifyUserCredentials cached, SpotifyUserCredentials given) {
+        return given.getAccessTokenExpiresAt() >= cached.getAccessTokenExpiresAt() ? given : cached;
+    }
+}
@@ -1,21 +1,32 @@
 package org.ciakraa.wavelet.web_api;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.wrapper.spotify.SpotifyApi;
+import com.wrapper.spotify.exceptions.SpotifyWebApiException;
 import com.wrapper.spotify.model_objects.specification.AudioFeatures;
 import com.wrapper.spotify.model_objects.specification.PagingCursorbased;
 import com.wrapper.spotify.model_objects.specification.PlayHistory;
+import com.wrapper.spotify.requests.AbstractRequest;
 import com.wrapper.spotify.requests.data.player.GetCurrentUsersRecentlyPlayedTracksRequest;
 import com.wrapper.spotify.requests.data.tracks.GetAudioFeaturesForSeveralTracksRequest;
 import org.apache.commons.lang3.Validate;
+import org.apache.http.Header;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.UnaryOperator;
 
 import static java.util.Collections.emptyList;
 import static java.util.stream.Collectors.toList;
@@ -26,6 +37,13 @@ import static java.util.stream.Collectors.toList;
  * You will need to have created a {@link SpotifyClientCredentials} for any API request,
  * and {@link SpotifyUserCredentials} for any API request involving user data.
  *
+ * Recently played and audio features queries come in a blocking and an async flavour. The async flavour runs through our own
+ * {@link SpotifyRetryScheduler} rather than the requests' executeAsync(), which would bypass the shared rate limiter
+ * and hand each call to an unbounded thread pool that blocks for the whole request anyway.
+ *
+ * Recently played tracks can also be read with a {@link SpotifyJsonReader}, which skips the library's PlayHistory graph
+ * and keeps only what the caller asks for. Audio features are always read this way.
+ *
  * @see <a href="https://beta.developer.spotify.com/documentation/web-api/reference/">Spotify Web API Reference</a>
  * @see <a href="https://github.com/thelinmichael/spotify-web-api-java">Spotify Web API Java</a>
  */
@@ -34,11 +52,17 @@ public class SpotifyActivityService extends AbstractSpotifyApiService {
 
     private static final Logger LOG = LoggerFactory.getLogger(SpotifyActivityService.class);
 
+    private static final SpotifyJsonReader<List<AudioFeatures>> AUDIO_FEATURES_READER = new AudioFeaturesJsonReader();
+
     // SpotifyApiFactory is used to better facilitate mocking in unit tests; it adds no functionality here.
     private final SpotifyApiFactory apiFactory;
 
+    // Thread safe, and expensive enough to create that it's shared by every request.
+    private final JsonFactory jsonFactory = new JsonFactory();
+
     @Autowired
-    public SpotifyActivityService(SpotifyApiFactory apiFactory) {
+    public SpotifyActivityService(SpotifyApiFactory apiFactory, SpotifyRateLimiter rateLimiter, SpotifyRetryScheduler retryScheduler) {
+        super(rateLimiter, retryScheduler);
         this.apiFactory = apiFactory;
     }
 
@@ -54,26 +78,143 @@ public class SpotifyActivityService extends AbstractSpotifyApiService {
     }
 
     /**
-     * Fetches up to 50 most recently listened tracks for a given user, since a unix timestamp.
+     * Fetches up to 50 most recently listened tracks for a given user, before a unix timestamp (in millis).
      * Will return an empty list if an error is encountered while querying Spotify.
      *
      * @see <a href="https://beta.developer.spotify.com/documentation/web-api/reference/player/get-recently-played/">Get Current User's Recently Played Tracks</a>
      */
     public List<PlayHistory> getRecentlyListened(SpotifyUserCredentials userCred, int count, long beforeTimestamp) throws SpotifyUnauthorizedException {
-        Validate.isTrue(userCred.validate());
-        Validate.inclusiveBetween(1, WebApiConstants.MAX_RECENTLY_LISTENED_TO, count);
         Validate.isTrue(beforeTimestamp >= 0);
 
-        SpotifyApi.Builder apiBuilder = new SpotifyApi.Builder().setAccessToken(userCred.getAccessToken());
-        SpotifyApi spotifyApi = apiFactory.build(apiBuilder);
+        return getRecentlyListened(userCred, count,
+                builder -> beforeTimestamp > 0 ? builder.setQueryParameter("before", beforeTimestamp) : builder);
+    }
+
+    /**
+     * Fetches up to 50 tracks a given user has listened to after a unix timestamp (in millis), i.e. only plays we have
+     * not seen yet when the timestamp is the latest play we have.
+     * Will return an empty list if there are no such plays, or if an error is encountered while querying Spotify.
+     *
+     * @see <a href="https://beta.developer.spotify.com/documentation/web-api/reference/player/get-recently-played/">Get Current User's Recently Played Tracks</a>
+     */
+    public List<PlayHistory> getRecentlyListenedAfter(SpotifyUserCredentials userCred, int count, long afterTimestamp) throws SpotifyUnauthorizedException {
+        Validate.isTrue(afterTimestamp >= 0);
+
+        return getRecentlyListened(userCred, count, builder -> builder.setQueryParameter("after", afterTimestamp));
+    }
 
-        GetCurrentUsersRecentlyPlayedTracksRequest.Builder recentlyPlayedBuilder = spotifyApi.getCurrentUsersRecentlyPlayedTracks().limit(count);
-        if (beforeTimestamp > 0) {
-            recentlyPlayedBuilder = recentlyPlayedBuilder.before(new Date(beforeTimestamp));
+    /**
+     * Async version of {@link #getRecentlyListened(SpotifyUserCredentials, int)}, which never blocks the calling thread.
+     * The future fails with {@link SpotifyUnauthorizedException} if Spotify answers with a 401.
+     */
+    public CompletableFuture<List<PlayHistory>> getRecentlyListenedAsync(SpotifyUserCredentials userCred, int count) {
+        GetCurrentUsersRecentlyPlayedTracksRequest recentlyPlayedRequest = buildRecentlyPlayedRequest(userCred, count, builder -> builder);
+        return executeWithAccessAsync(getRecentlyPlayedKey(userCred, count, ""), recentlyPlayedRequest::execute)
+                .thenApply(playHistory -> getPlays(userCred, playHistory));
+    }
+
+    /**
+     * Async version of {@link #getRecentlyListenedAfter(SpotifyUserCredentials, int, long)}, which never blocks the calling thread.
+     * The future fails with {@link SpotifyUnauthorizedException} if Spotify answers with a 401.
+     */
+    public CompletableFuture<List<PlayHistory>> getRecentlyListenedAfterAsync(SpotifyUserCredentials userCred, int count, long afterTimestamp) {
+        Validate.isTrue(afterTimestamp >= 0);
+
+        GetCurrentUsersRecentlyPlayedTracksRequest recentlyPlayedRequest = buildRecentlyPlayedRequest(userCred, count,
+                builder -> builder.setQueryParameter("after", afterTimestamp));
+        return executeWithAccessAsync(getRecentlyPlayedKey(userCred, count, "after=" + afterTimestamp), recentlyPlayedRequest::execute)
+                .thenApply(playHistory -> getPlays(userCred, playHistory));
+    }
+
+    /**
+     * As {@link #getRecentlyListened(SpotifyUserCredentials, int)}, but the response is read by the given reader rather
+     * than mapped to PlayHistory. Will return an empty result if an error is encountered while querying Spotify.
+     */
+    public <T> Optional<T> readRecentlyListened(SpotifyUserCredentials userCred, int count, SpotifyJsonReader<T> reader)
+            throws SpotifyUnauthorizedException {
+        GetCurrentUsersRecentlyPlayedTracksRequest recentlyPlayedRequest = buildRecentlyPlayedRequest(userCred, count, builder -> builder);
+        return logIfEmpty(userCred, executeWithAccess(() -> read(recentlyPlayedRequest, reader)));
+    }
+
+    /**
+     * As {@link #getRecentlyListenedAfter(SpotifyUserCredentials, int, long)}, but the response is read by the given
+     * reader rather than mapped to PlayHistory. Will return an empty result if an error is encountered while querying Spotify.
+     */
+    public <T> Optional<T> readRecentlyListenedAfter(SpotifyUserCredentials userCred, int count, long afterTimestamp,
+                                                     SpotifyJsonReader<T> reader) throws SpotifyUnauthorizedException {
+        Validate.isTrue(afterTimestamp >= 0);
+
+        GetCurrentUsersRecentlyPlayedTracksRequest recentlyPlayedRequest = buildRecentlyPlayedRequest(userCred, count,
+                builder -> builder.setQueryParameter("after", afterTimestamp));
+        return logIfEmpty(userCred, executeWithAccess(() -> read(recentlyPlayedRequest, reader)));
+    }
+
+    /**
+     * Async version of {@link #readRecentlyListened(SpotifyUserCredentials, int, SpotifyJsonReader)}, which never blocks
+     * the calling thread. The future fails with {@link SpotifyUnauthorizedException} if Spotify answers with a 401.
+     *
+     * Identical requests in flight share one result, so the reader should give the same answer whoever asks.
+     */
+    public <T> CompletableFuture<Optional<T>> readRecentlyListenedAsync(SpotifyUserCredentials userCred, int count,
+                                                                       SpotifyJsonReader<T> reader) {
+        GetCurrentUsersRecentlyPlayedTracksRequest recentlyPlayedRequest = buildRecentlyPlayedRequest(userCred, count, builder -> builder);
+        return executeWithAccessAsync(getRecentlyPlayedKey(userCred, count, "read"), () -> read(recentlyPlayedRequest, reader))
+                .thenApply(result -> logIfEmpty(userCred, result));
+    }
+
+    /**
+     * Async version of {@link #readRecentlyListenedAfter(SpotifyUserCredentials, int, long, SpotifyJsonReader)}, which
+     * never blocks the calling thread. The future fails with {@link SpotifyUnauthorizedException} if Spotify answers with a 401.
+     */
+    public <T> CompletableFuture<Optional<T>> readRecentlyListenedAfterAsync(SpotifyUserCredentials userCred, int count,
+                                                                            long afterTimestamp, SpotifyJsonReader<T> reader) {
+        Validate.isTrue(afterTimestamp >= 0);
+
+        GetCurrentUsersRecentlyPlayedTracksRequest recentlyPlayedRequest = buildRecentlyPlayedRequest(userCred, count,
+                builder -> builder.setQueryParameter("after", afterTimestamp));
+        return executeWithAccessAsync(getRecentlyPlayedKey(userCred, count, "read:after=" + afterTimestamp),
+                () -> read(recentlyPlayedRequest, reader))
+                .thenApply(result -> logIfEmpty(userCred, result));
+    }
+
+    private <T> Optional<T> logIfEmpty(SpotifyUserCredentials userCred, Optional<T> result) {
+        if (!result.isPresent()) {
+            LOG.error("Unable to retrieve recently listened tracks for user: {}", userCred);
         }
-        GetCurrentUsersRecentlyPlayedTracksRequest recentlyPlayedRequest = apiFactory.build(recentlyPlayedBuilder);
+        return result;
+    }
 
-        Optional<PagingCursorbased<PlayHistory>> playHistory = executeWithAccess(recentlyPlayedRequest::execute);
+    private List<PlayHistory> getRecentlyListened(SpotifyUserCredentials userCred, int count,
+                                                  UnaryOperator<GetCurrentUsersRecentlyPlayedTracksRequest.Builder> cursor)
+            throws SpotifyUnauthorizedException {
+        GetCurrentUsersRecentlyPlayedTracksRequest recentlyPlayedRequest = buildRecentlyPlayedRequest(userCred, count, cursor);
+        return getPlays(userCred, executeWithAccess(recentlyPlayedRequest::execute));
+    }
+
+    /**
+     * A user's recent plays are the same whichever of their access tokens asks for them.
+     */
+    private static String getRecentlyPlayedKey(SpotifyUserCredentials userCred, int count, String cursor) {
+        return "recently-played:" + userCred.getUserId() + ":" + count + ":" + cursor;
+    }
+
+    /**
+     * Spotify expects cursors as unix timestamps in millis, but the request builder's before(Date) and after(Date)
+     * format them as date strings, so cursors are set as raw query parameters instead.
+     */
+    private GetCurrentUsersRecentlyPlayedTracksRequest buildRecentlyPlayedRequest(SpotifyUserCredentials userCred, int count,
+                                                                                  UnaryOperator<GetCurrentUsersRecentlyPlayedTracksRequest.Builder> cursor) {
+        Validate.isTrue(userCred.validate());
+        Validate.inclusiveBetween(1, WebApiConstants.MAX_RECENTLY_LISTENED_TO, count);
+
+        SpotifyApi spotifyApi = apiFactory.getUserApi(userCred);
+
+        GetCurrentUsersRecentlyPlayedTracksRequest.Builder recentlyPlayedBuilder = cursor.apply(
+                spotifyApi.getCurrentUsersRecentlyPlayedTracks().limit(count));
+        return apiFactory.build(recentlyPlayedBuilder);
+    }
+
+    private List<PlayHistory> getPlays(SpotifyUserCredentials userCred, Optional<PagingCursorbased<PlayHistory>> playHistory) {
         if (!playHistory.isPresent()) {
             LOG.error("Unable to retrieve recently listened tracks for user: {}", userCred);
             return emptyList();
@@ -83,7 +224,7 @@ public class SpotifyActivityService extends AbstractSpotifyApiService {
     }
 
     /**
-     * Fetches Audio Features for given track ids.
+     * Fetches Audio Features for given track ids, split into as many requests as Spotify needs to take them all.
      * Will return an empty set if an error is encountered while querying Spotify.
      *
      * @see <a href="https://beta.developer.spotify.com/documentation/web-api/reference/tracks/get-several-tracks/">Get Several Tracks </a>
@@ -93,21 +234,134 @@ public class SpotifyActivityService extends AbstractSpotifyApiService {
         Validate.isTrue(userCred.validate());
         Validate.notEmpty(trackIds);
 
-        SpotifyApi.Builder apiBuilder = new SpotifyApi.Builder().setAccessToken(userCred.getAccessToken());
-        SpotifyApi spotifyApi = apiFactory.build(apiBuilder);
+        List<AudioFeatures> features = new ArrayList<>();
+        for (List<String> chunk : getChunks(trackIds)) {
+            GetAudioFeaturesForSeveralTracksRequest audioFeaturesReq = buildAudioFeaturesRequest(userCred, chunk);
+            List<AudioFeatures> chunkFeatures = getAudioFeatures(userCred, chunk,
+                    executeWithAccess(() -> read(audioFeaturesReq, AUDIO_FEATURES_READER)));
+            if (chunkFeatures.isEmpty()) {
+                return emptyList();
+            }
+            features.addAll(chunkFeatures);
+        }
+        return features;
+    }
+
+    /**
+     * Async version of {@link #getAudioFeatures(SpotifyUserCredentials, List)}, which never blocks the calling thread.
+     * The requests for each chunk of track ids are sent together. Audio features are the same for every user, so a
+     * chunk already being fetched for anyone is shared rather than fetched again.
+     * The future fails with {@link SpotifyUnauthorizedException} if Spotify answers with a 401.
+     */
+    public CompletableFuture<List<AudioFeatures>> getAudioFeaturesAsync(SpotifyUserCredentials userCred, List<String> trackIds) {
+        Validate.isTrue(userCred.validate());
+        Validate.notEmpty(trackIds);
+
+        List<CompletableFuture<List<AudioFeatures>>> chunks = getChunks(trackIds).stream()
+                .map(chunk -> {
+                    GetAudioFeaturesForSeveralTracksRequest audioFeaturesReq = buildAudioFeaturesRequest(userCred, chunk);
+                    return executeWithAccessAsync("audio-features:" + String.join(",", chunk),
+                                    () -> read(audioFeaturesReq, AUDIO_FEATURES_READER))
+                            .thenApply(audioFeatures -> getAudioFeatures(userCred, chunk, audioFeatures));
+                })
+                .collect(toList());
+
+        return allOf(chunks).thenApply(done -> {
+            List<AudioFeatures> features = new ArrayList<>();
+            for (CompletableFuture<List<AudioFeatures>> chunk : chunks) {
+                if (chunk.join().isEmpty()) {
+                    return emptyList();
+                }
+                features.addAll(chunk.join());
+            }
+            return features;
+        });
+    }
+
+    /**
+     * Drops what's kept between requests for the user, once we've stopped polling them.
+     */
+    public void forget(String userId) {
+        apiFactory.forget(userId);
+    }
+
+    private static CompletableFuture<Void> allOf(List<? extends CompletableFuture<?>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Spotify takes at most {@link WebApiConstants#MAX_AUDIO_FEATURES_IDS} track ids per audio features request.
+     */
+    private static List<List<String>> getChunks(List<String> trackIds) {
+        List<List<String>> chunks = new ArrayList<>();
+        for (int from = 0; from < trackIds.size(); from += WebApiConstants.MAX_AUDIO_FEATURES_IDS) {
+            chunks.add(trackIds.subList(from, Math.min(from + WebApiConstants.MAX_AUDIO_FEATURES_IDS, trackIds.size())));
+        }
+        return chunks;
+    }
+
+    private GetAudioFeaturesForSeveralTracksRequest buildAudioFeaturesRequest(SpotifyUserCredentials userCred, List<String> trackIds) {
+        SpotifyApi spotifyApi = apiFactory.getUserApi(userCred);
 
         GetAudioFeaturesForSeveralTracksRequest.Builder audioFeaturesBuilder = spotifyApi
                 .getAudioFeaturesForSeveralTracks(trackIds.toArray(new String[trackIds.size()]));
-        GetAudioFeaturesForSeveralTracksRequest audioFeaturesReq = apiFactory.build(audioFeaturesBuilder);
+        return apiFactory.build(audioFeaturesBuilder);
+    }
 
-        Optional<Object[]> audioFeatures = executeWithAccess(audioFeaturesReq::execute);
+    private List<AudioFeatures> getAudioFeatures(SpotifyUserCredentials userCred, List<String> trackIds,
+                                                 Optional<List<AudioFeatures>> audioFeatures) {
         if (!audioFeatures.isPresent()) {
             LOG.error("Unable to retrieve featured tracks for user: {}, with tracks: {}", userCred, trackIds);
             return emptyList();
         }
 
-        return Arrays.stream(audioFeatures.get()).map(af -> (AudioFeatures) af).collect(toList());
+        return audioFeatures.get();
+    }
+
+    /**
+     * Sends the request as the library would, but hands the body to the reader. Through our own transport the body is
+     * parsed as it's received, rather than read into a string first. A body which isn't the JSON we expect is a failed
+     * request like any other error response, rather than something worth retrying.
+     */
+    private <T> T read(AbstractRequest request, SpotifyJsonReader<T> reader) throws IOException, SpotifyWebApiException {
+        if (request.getHttpManager() instanceof SpotifyHttpTransport) {
+            SpotifyHttpTransport transport = (SpotifyHttpTransport) request.getHttpManager();
+            Header[] headers = request.getHeaders().toArray(new Header[0]);
+            return transport.get(request.getUri(), headers, entity -> entity != null ? read(entity.getContent(), reader) : null);
+        }
 
+        String json = request.getJson();
+        if (json == null || json.isEmpty()) {
+            return null;
+        }
+
+        try (JsonParser parser = jsonFactory.createParser(json)) {
+            return read(parser, reader);
+        }
+    }
+
+    /**
+     * An empty body reads as null, as the library's own getJson() has it.
+     */
+    private <T> T read(InputStream body, SpotifyJsonReader<T> reader) throws IOException, SpotifyWebApiException {
+        PushbackInputStream content = new PushbackInputStream(body);
+        int first = content.read();
+        if (first == -1) {
+            return null;
+        }
+        content.unread(first);
+
+        try (JsonParser parser = jsonFactory.createParser(content)) {
+            return read(parser, reader);
+        }
+    }
+
+    private static <T> T read(JsonParser parser, SpotifyJsonReader<T> reader) throws IOException, SpotifyWebApiException {
+        try {
+            return reader.read(parser);
+        } catch (JsonProcessingException e) {
+            throw new SpotifyWebApiException("Unable to read Spotify response: " + e.getOriginalMessage());
+        }
     }
 
 }
@@ -1,5 +1,6 @@
 package org.ciakraa.wavelet.web_api;
 
+import com.wrapper.spotify.IHttpManager;
 import com.wrapper.spotify.SpotifyApi;
 import com.wrapper.spotify.requests.authorization.authorization_code.AuthorizationCodeRefreshRequest;
 import com.wrapper.spotify.requests.authorization.authorization_code.AuthorizationCodeRequest;
@@ -9,18 +10,59 @@ import com.wrapper.spotify.requests.data.tracks.GetAudioFeaturesForSeveralTracks
 import com.wrapper.spotify.requests.data.users_profile.GetCurrentUsersProfileRequest;
 import org.springframework.stereotype.Service;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 /**
  * This factory exists solely to abstract away the creation of SpotifyApi and request objects provided by the Spotify Web API Java.
  *
  * This allows us to easily mock SpotifyApi interactions for unit tests, as the Spotify Web API Java library
  * does not allow its builders to be mocked due to a final modifier.
  *
+ * Every SpotifyApi it builds sends its requests through the one shared {@link IHttpManager}. SpotifyApi objects are
+ * immutable, so rather than building one per request we keep one per user, which is only rebuilt when the user's
+ * access token changes, and one without any credentials for the authorization requests which take them as arguments.
  */
 @Service
 class SpotifyApiFactory {
 
+    private final IHttpManager httpManager;
+    private final SpotifyApi clientApi;
+    private final ConcurrentMap<String, SpotifyApi> userApis = new ConcurrentHashMap<>();
+
+    SpotifyApiFactory(IHttpManager httpManager) {
+        this.httpManager = httpManager;
+        this.clientApi = build(new SpotifyApi.Builder());
+    }
+
     SpotifyApi build(SpotifyApi.Builder builder) {
-        return builder.build();
+        return builder.setHttpManager(httpManager).build();
+    }
+
+    /**
+     * The cached SpotifyApi for the user, carrying their current access token.
+     */
+    SpotifyApi getUserApi(SpotifyUserCredentials userCred) {
+        return userApis.compute(userCred.getUserId(), (userId, api) -> {
+            if (api != null && api.getAccessToken().equals(userCred.getAccessToken())) {
+                return api;
+            }
+            return build(new SpotifyApi.Builder().setAccessToken(userCred.getAccessToken()));
+        });
+    }
+
+    /**
+     * Drops the user's cached SpotifyApi, e.g. once they are no longer polled here.
+     */
+    void forget(String userId) {
+        userApis.remove(userId);
+    }
+
+    /**
+     * A SpotifyApi without credentials, for requests which are handed their client credentials directly.
+     */
+    SpotifyApi getClientApi() {
+        return clientApi;
     }
 
     AuthorizationCodeUriRequest build(AuthorizationCodeUriRequest.Builder builder) {
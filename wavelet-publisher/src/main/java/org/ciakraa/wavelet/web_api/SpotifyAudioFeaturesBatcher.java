@@ -0,0 +1,181 @@
+package org.ciakraa.wavelet.web_api;
+
+import com.wrapper.spotify.model_objects.specification.AudioFeatures;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * Coalesces audio features lookups from every poll into as few Spotify requests as possible.
+ *
+ * A poll only ever asks for the features of a handful of tracks, while Spotify takes up to
+ * {@link WebApiConstants#MAX_AUDIO_FEATURES_IDS} per request. Lookups are collected for a short window, or until they
+ * add up to a full request, and their distinct track ids are sent together; each lookup then gets back the features of
+ * its own tracks. A lookup for more tracks than fit in one request is simply split by {@link SpotifyActivityService}.
+ *
+ * Audio features aren't private to a user, so a batch is sent with the access token of whichever lookup came first.
+ * If Spotify rejects that token, each lookup in the batch is sent again on its own, so only the lookups holding a bad
+ * token see the rejection.
+ */
+final class SpotifyAudioFeaturesBatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpotifyAudioFeaturesBatcher.class);
+
+    private final SpotifyActivityService activityService;
+    private final ScheduledExecutorService timer;
+    private final Duration window;
+    private final int maxBatchSize;
+
+    // All guarded by this.
+    private List<Lookup> pending = new ArrayList<>();
+    private Set<String> pendingIds = new LinkedHashSet<>();
+    private ScheduledFuture<?> scheduledFlush;
+
+    SpotifyAudioFeaturesBatcher(SpotifyActivityService activityService, ScheduledExecutorService timer, Duration window,
+                                int maxBatchSize) {
+        Validate.notNull(activityService);
+        Validate.notNull(timer);
+        Validate.isTrue(!window.isNegative());
+        Validate.isTrue(maxBatchSize > 0);
+
+        this.activityService = activityService;
+        this.timer = timer;
+        this.window = window;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Features for the given tracks, once the batch they join has been answered. Like
+     * {@link SpotifyActivityService#getAudioFeaturesAsync(SpotifyUserCredentials, List)}, the list is empty if Spotify
+     * fails to answer, and the future fails with {@link SpotifyUnauthorizedException} if the user's token is rejected.
+     */
+    CompletableFuture<List<AudioFeatures>> getAudioFeaturesAsync(SpotifyUserCredentials userCred, List<String> trackIds) {
+        Validate.isTrue(userCred.validate());
+        Validate.notEmpty(trackIds);
+
+        Lookup lookup = new Lookup(userCred, trackIds);
+        add(lookup).forEach(this::send);
+        return lookup.result;
+    }
+
+    /**
+     * Adds the lookup to the pending batch, returning any batches which are ready to be sent right away.
+     * A lookup which wouldn't fit in the pending batch goes into the next one, so no batch needs more than one request
+     * unless a single lookup does.
+     */
+    private synchronized List<List<Lookup>> add(Lookup lookup) {
+        List<List<Lookup>> ready = new ArrayList<>();
+        Set<String> newIds = new HashSet<>(lookup.trackIds);
+        newIds.removeAll(pendingIds);
+        if (!pending.isEmpty() && pendingIds.size() + newIds.size() > maxBatchSize) {
+            ready.add(takePending());
+        }
+
+        pending.add(lookup);
+        pendingIds.addAll(lookup.trackIds);
+
+        if (pendingIds.size() >= maxBatchSize) {
+            ready.add(takePending());
+        } else if (scheduledFlush == null) {
+            scheduledFlush = timer.schedule(this::flush, window.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        return ready;
+    }
+
+    /**
+     * Sends whatever is pending once the window is up.
+     */
+    void flush() {
+        List<Lookup> batch;
+        synchronized (this) {
+            scheduledFlush = null;
+            batch = takePending();
+        }
+        send(batch);
+    }
+
+    private List<Lookup> takePending() {
+        List<Lookup> batch = pending;
+        pending = new ArrayList<>();
+        pendingIds = new LinkedHashSet<>();
+
+        // Nothing is left for the window to flush.
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        return batch;
+    }
+
+    private void send(List<Lookup> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<String> trackIds = batch.stream().flatMap(lookup -> lookup.trackIds.stream()).distinct().collect(toList());
+        LOG.debug("Fetching audio features for {} tracks on behalf of {} polls", trackIds.size(), batch.size());
+
+        CompletableFuture<List<AudioFeatures>> features;
+        try {
+            features = activityService.getAudioFeaturesAsync(batch.get(0).userCred, trackIds);
+        } catch (RuntimeException e) {
+            batch.forEach(lookup -> lookup.result.completeExceptionally(e));
+            return;
+        }
+
+        features.whenComplete((fetched, e) -> {
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (cause instanceof SpotifyUnauthorizedException && batch.size() > 1) {
+                batch.forEach(this::sendAlone);
+            } else if (cause != null) {
+                batch.forEach(lookup -> lookup.result.completeExceptionally(cause));
+            } else {
+                Map<String, AudioFeatures> featuresByTrack = fetched.stream()
+                        .filter(Objects::nonNull)
+                        .collect(toMap(AudioFeatures::getId, af -> af, (a, b) -> a));
+                batch.forEach(lookup -> lookup.result.complete(lookup.trackIds.stream()
+                        .map(featuresByTrack::get)
+                        .filter(Objects::nonNull)
+                        .collect(toList())));
+            }
+        });
+    }
+
+    private void sendAlone(Lookup lookup) {
+        activityService.getAudioFeaturesAsync(lookup.userCred, lookup.trackIds).whenComplete((features, e) -> {
+            if (e != null) {
+                lookup.result.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+            } else {
+                lookup.result.complete(features);
+            }
+        });
+    }
+
+    private static final class Lookup {
+        private final SpotifyUserCredentials userCred;
+        private final List<String> trackIds;
+        private final CompletableFuture<List<AudioFeatures>> result = new CompletableFuture<>();
+
+        private Lookup(SpotifyUserCredentials userCred, List<String> trackIds) {
+            this.userCred = userCred;
+            this.trackIds = trackIds;
+        }
+    }
+}
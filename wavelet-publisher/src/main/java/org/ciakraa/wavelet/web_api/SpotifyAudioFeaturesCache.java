@@ -0,0 +1,424 @@
+package org.ciakraa.wavelet.web_api;
+
+import com.wrapper.spotify.enums.Modality;
+import com.wrapper.spotify.model_objects.specification.AudioFeatures;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scripting.support.ResourceScriptSource;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Collections.emptyList;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * A read-through cache of {@link AudioFeatures} by track id, in front of {@link SpotifyActivityService}.
+ *
+ * A track's audio features never change, and popular tracks are played by many of our users, so features are only
+ * ever fetched from Spotify once. They are looked up first in a bounded, least recently used map in this process,
+ * then in Redis, shared by every publisher instance, and only tracks found in neither are fetched from Spotify.
+ * Each track has its own Redis key, which expires a while after it was fetched, so the shared tier doesn't grow
+ * without bound; a track still being played then simply has its features fetched again.
+ *
+ * Redis is a best-effort tier: if it can't be reached, lookups fall through to Spotify rather than failing the poll.
+ * Hit and eviction counts are exported over JMX.
+ */
+@ManagedResource(objectName = "org.ciakraa.wavelet:type=SpotifyAudioFeaturesCache")
+public class SpotifyAudioFeaturesCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpotifyAudioFeaturesCache.class);
+
+    private static final RedisScript<Long> SET_AUDIO_FEATURES = getSetAudioFeaturesScript();
+
+    private final SpotifyActivityService activityService;
+    private final SpotifyAudioFeaturesBatcher batcher;
+    private final RedisOperations<String, Object> redis;
+    private final int maxSize;
+    private final Duration redisTtl;
+
+    // Guarded by itself.
+    private final Map<String, AudioFeatures> localCache;
+
+    private final LongAdder localHits = new LongAdder();
+    private final LongAdder redisHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    SpotifyAudioFeaturesCache(SpotifyActivityService activityService, SpotifyAudioFeaturesBatcher batcher,
+                              RedisOperations<String, Object> redis, int maxSize, Duration redisTtl) {
+        Validate.notNull(activityService);
+        Validate.notNull(batcher);
+        Validate.notNull(redis);
+        Validate.isTrue(maxSize > 0);
+        Validate.isTrue(!redisTtl.isNegative() && redisTtl.getSeconds() > 0);
+
+        this.activityService = activityService;
+        this.batcher = batcher;
+        this.redis = redis;
+        this.maxSize = maxSize;
+        this.redisTtl = redisTtl;
+        this.localCache = new LinkedHashMap<String, AudioFeatures>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, AudioFeatures> eldest) {
+                boolean evict = size() > SpotifyAudioFeaturesCache.this.maxSize;
+                if (evict) {
+                    evictions.increment();
+                }
+                return evict;
+            }
+        };
+    }
+
+    /**
+     * Audio features for the given tracks, in the same order, fetching only uncached tracks from Spotify.
+     * Will return an empty list if Spotify fails to return features for the uncached tracks.
+     */
+    public List<AudioFeatures> getAudioFeatures(SpotifyUserCredentials userCred, List<String> trackIds)
+            throws SpotifyUnauthorizedException {
+        Validate.notEmpty(trackIds);
+
+        Map<String, AudioFeatures> found = getCached(trackIds);
+        List<String> uncached = getUncached(trackIds, found);
+        if (uncached.isEmpty()) {
+            return getInOrder(trackIds, found);
+        }
+
+        return getWithFetched(trackIds, found, uncached, activityService.getAudioFeatures(userCred, uncached));
+    }
+
+    /**
+     * Async version of {@link #getAudioFeatures(SpotifyUserCredentials, List)}; when every track is cached, the future
+     * is already complete. Uncached tracks are fetched along with other polls' by the {@link SpotifyAudioFeaturesBatcher}.
+     */
+    public CompletableFuture<List<AudioFeatures>> getAudioFeaturesAsync(SpotifyUserCredentials userCred, List<String> trackIds) {
+        Validate.notEmpty(trackIds);
+
+        Map<String, AudioFeatures> found = getCached(trackIds);
+        List<String> uncached = getUncached(trackIds, found);
+        if (uncached.isEmpty()) {
+            return CompletableFuture.completedFuture(getInOrder(trackIds, found));
+        }
+
+        return batcher.getAudioFeaturesAsync(userCred, uncached)
+                .thenApply(fetched -> getWithFetched(trackIds, found, uncached, fetched));
+    }
+
+    @ManagedAttribute(description = "Lookups answered from this process")
+    public long getLocalHits() {
+        return localHits.sum();
+    }
+
+    @ManagedAttribute(description = "Lookups answered from Redis")
+    public long getRedisHits() {
+        return redisHits.sum();
+    }
+
+    @ManagedAttribute(description = "Lookups which had to go to Spotify")
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @ManagedAttribute(description = "Tracks evicted from this process to stay within its size")
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @ManagedAttribute(description = "Fraction of lookups answered without going to Spotify")
+    public double getHitRate() {
+        long hits = getLocalHits() + getRedisHits();
+        long lookups = hits + getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @ManagedAttribute(description = "Tracks cached in this process")
+    public int getSize() {
+        synchronized (localCache) {
+            return localCache.size();
+        }
+    }
+
+    private Map<String, AudioFeatures> getCached(List<String> trackIds) {
+        Map<String, AudioFeatures> found = new HashMap<>();
+        synchronized (localCache) {
+            for (String trackId : trackIds) {
+                AudioFeatures features = localCache.get(trackId);
+                if (features != null) {
+                    found.put(trackId, features);
+                }
+            }
+        }
+        localHits.add(found.size());
+
+        List<String> notLocal = getUncached(trackIds, found);
+        if (!notLocal.isEmpty()) {
+            Map<String, AudioFeatures> fromRedis = getFromRedis(notLocal);
+            redisHits.add(fromRedis.size());
+            putLocal(fromRedis.values());
+            found.putAll(fromRedis);
+        }
+
+        misses.add(trackIds.size() - found.size());
+        return found;
+    }
+
+    private List<AudioFeatures> getWithFetched(List<String> trackIds, Map<String, AudioFeatures> found, List<String> uncached,
+                                               List<AudioFeatures> fetched) {
+        // Spotify has no features for some tracks, e.g. local files, and answers with nulls for them.
+        List<AudioFeatures> features = fetched.stream().filter(Objects::nonNull).collect(toList());
+        if (features.isEmpty()) {
+            LOG.warn("No audio features found for tracks: {}", uncached);
+            return found.isEmpty() ? emptyList() : getInOrder(trackIds, found);
+        }
+
+        putLocal(features);
+        putRedis(features);
+        features.forEach(af -> found.put(af.getId(), af));
+        return getInOrder(trackIds, found);
+    }
+
+    private Map<String, AudioFeatures> getFromRedis(List<String> trackIds) {
+        Map<String, AudioFeatures> found = new HashMap<>();
+        try {
+            List<Object> values = redis.opsForValue().multiGet(getRedisKeys(trackIds));
+            for (Object value : values) {
+                if (value instanceof CachedAudioFeatures) {
+                    AudioFeatures features = ((CachedAudioFeatures) value).toAudioFeatures();
+                    found.put(features.getId(), features);
+                }
+            }
+        } catch (DataAccessException e) {
+            LOG.warn("Unable to read audio features from Redis, fetching them from Spotify:", e);
+        }
+        return found;
+    }
+
+    private void putRedis(List<AudioFeatures> features) {
+        List<String> keys = getRedisKeys(features.stream().map(AudioFeatures::getId).collect(toList()));
+        Object[] args = new Object[1 + features.size()];
+        args[0] = redisTtl.getSeconds();
+        for (int i = 0; i < features.size(); i++) {
+            args[1 + i] = CachedAudioFeatures.of(features.get(i));
+        }
+
+        try {
+            redis.execute(SET_AUDIO_FEATURES, keys, args);
+        } catch (DataAccessException e) {
+            LOG.warn("Unable to write audio features to Redis:", e);
+        }
+    }
+
+    private void putLocal(Collection<AudioFeatures> features) {
+        synchronized (localCache) {
+            features.forEach(af -> localCache.put(af.getId(), af));
+        }
+    }
+
+    private static List<String> getRedisKeys(List<String> trackIds) {
+        return trackIds.stream().map(trackId -> WebApiConstants.AUDIO_FEATURES_KEY_PREFIX + trackId).collect(toList());
+    }
+
+    private static List<String> getUncached(List<String> trackIds, Map<String, AudioFeatures> found) {
+        return trackIds.stream().filter(trackId -> !found.containsKey(trackId)).distinct().collect(toList());
+    }
+
+    private static List<AudioFeatures> getInOrder(List<String> trackIds, Map<String, AudioFeatures> found) {
+        return trackIds.stream().map(found::get).filter(Objects::nonNull).collect(toList());
+    }
+
+    private static RedisScript<Long> getSetAudioFeaturesScript() {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setScriptSource(new ResourceScriptSource(new ClassPathResource("redis/set-audio-features.lua")));
+        script.setResultType(Long.class);
+        return script;
+    }
+
+    /**
+     * The library's {@link AudioFeatures} can only be built through its builder, so Redis holds this plain copy instead.
+     * It mustn't be final: the Redis serializer only records the type of non-final classes, and can't read them back without it.
+     */
+    static class CachedAudioFeatures {
+
+        private String id;
+        private Float acousticness;
+        private Float danceability;
+        private Integer durationMs;
+        private Float energy;
+        private Float instrumentalness;
+        private Integer key;
+        private Float liveness;
+        private Float loudness;
+        private Integer mode;
+        private Float speechiness;
+        private Float tempo;
+        private Integer timeSignature;
+        private Float valence;
+
+        static CachedAudioFeatures of(AudioFeatures features) {
+            CachedAudioFeatures cached = new CachedAudioFeatures();
+            cached.id = features.getId();
+            cached.acousticness = features.getAcousticness();
+            cached.danceability = features.getDanceability();
+            cached.durationMs = features.getDurationMs();
+            cached.energy = features.getEnergy();
+            cached.instrumentalness = features.getInstrumentalness();
+            cached.key = features.getKey();
+            cached.liveness = features.getLiveness();
+            cached.loudness = features.getLoudness();
+            cached.mode = features.getMode() != null ? features.getMode().getType() : null;
+            cached.speechiness = features.getSpeechiness();
+            cached.tempo = features.getTempo();
+            cached.timeSignature = features.getTimeSignature();
+            cached.valence = features.getValence();
+            return cached;
+        }
+
+        AudioFeatures toAudioFeatures() {
+            return new AudioFeatures.Builder()
+                    .setId(id)
+                    .setAcousticness(acousticness)
+                    .setDanceability(danceability)
+                    .setDurationMs(durationMs)
+                    .setEnergy(energy)
+                    .setInstrumentalness(instrumentalness)
+                    .setKey(key)
+                    .setLiveness(liveness)
+                    .setLoudness(loudness)
+                    .setMode(mode != null ? Modality.keyOf(mode) : null)
+                    .setSpeechiness(speechiness)
+                    .setTempo(tempo)
+                    .setTimeSignature(timeSignature)
+                    .setValence(valence)
+                    .build();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public Float getAcousticness() {
+            return acousticness;
+        }
+
+        public void setAcousticness(Float acousticness) {
+            this.acousticness = acousticness;
+        }
+
+        public Float getDanceability() {
+            return danceability;
+        }
+
+        public void setDanceability(Float danceability) {
+            this.danceability = danceability;
+        }
+
+        public Integer getDurationMs() {
+            return durationMs;
+        }
+
+        public void setDurationMs(Integer durationMs) {
+            this.durationMs = durationMs;
+        }
+
+        public Float getEnergy() {
+            return energy;
+        }
+
+        public void setEnergy(Float energy) {
+            this.energy = energy;
+        }
+
+        public Float getInstrumentalness() {
+            return instrumentalness;
+        }
+
+        public void setInstrumentalness(Float instrumentalness) {
+            this.instrumentalness = instrumentalness;
+        }
+
+        public Integer getKey() {
+            return key;
+        }
+
+        public void setKey(Integer key) {
+            this.key = key;
+        }
+
+        public Float getLiveness() {
+            return liveness;
+        }
+
+        public void setLiveness(Float liveness) {
+            this.liveness = liveness;
+        }
+
+        public Float getLoudness() {
+            return loudness;
+        }
+
+        public void setLoudness(Float loudness) {
+            this.loudness = loudness;
+        }
+
+        public Integer getMode() {
+            return mode;
+        }
+
+        public void setMode(Integer mode) {
+            this.mode = mode;
+        }
+
+        public Float getSpeechiness() {
+            return speechiness;
+        }
+
+        public void setSpeechiness(Float speechiness) {
+            this.speechiness = speechiness;
+        }
+
+        public Float getTempo() {
+            return tempo;
+        }
+
+        public void setTempo(Float tempo) {
+            this.tempo = tempo;
+        }
+
+        public Integer getTimeSignature() {
+            return timeSignature;
+        }
+
+        public void setTimeSignature(Integer timeSignature) {
+            this.timeSignature = timeSignature;
+        }
+
+        public Float getValence() {
+            return valence;
+        }
+
+        public void setValence(Float valence) {
+            this.valence = valence;
+        }
+    }
+}
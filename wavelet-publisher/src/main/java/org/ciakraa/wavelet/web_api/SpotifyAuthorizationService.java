@@ -17,7 +17,9 @@ import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.stereotype.Service;
 
 import java.net.URI;
+import java.time.Instant;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Responsible for the Spotify Authorization Code Flow, which depends on a 4 step process:
@@ -47,7 +49,10 @@ public class SpotifyAuthorizationService extends AbstractSpotifyApiService {
     public SpotifyAuthorizationService(SpotifyClientCredentials clientCred,
                                 SpotifyApiFactory apiFactory,
                                 RedisOperations<String, Object> redis,
-                                SpotifyUserService userService) {
+                                SpotifyUserService userService,
+                                SpotifyRateLimiter rateLimiter,
+                                SpotifyRetryScheduler retryScheduler) {
+        super(rateLimiter, retryScheduler);
         this.clientCred = clientCred;
         this.apiFactory = apiFactory;
         this.states = redis.boundSetOps(WebApiConstants.STATES_KEY);
@@ -63,13 +68,8 @@ public class SpotifyAuthorizationService extends AbstractSpotifyApiService {
         Validate.notNull(redirectUri);
         Validate.notBlank(scopes);
 
-        SpotifyApi.Builder apiBuilder = new SpotifyApi.Builder()
-                .setClientId(clientCred.getClientId())
-                .setClientSecret(clientCred.getClientSecret())
-                .setRedirectUri(redirectUri);
-        SpotifyApi spotifyApi = apiFactory.build(apiBuilder);
-
-        AuthorizationCodeUriRequest.Builder uriRequestBuilder = spotifyApi.authorizationCodeUri()
+        AuthorizationCodeUriRequest.Builder uriRequestBuilder = apiFactory.getClientApi()
+                .authorizationCodeUri(clientCred.getClientId(), redirectUri)
                 .state(generateState())
                 .scope(String.join(",", scopes))
                 .show_dialog(true);
@@ -86,7 +86,7 @@ public class SpotifyAuthorizationService extends AbstractSpotifyApiService {
      * 401: {@link SpotifyUnauthorizedException} is thrown if Spotify API requires an access token for a request.
      * Since these methods are concerned with authorization, the exception would likely mean the app's client id/secret are invalid.
      *
-     * 429: "Rate Limiting Has Been applied". We will sleep the thread for the specified time and try again, for a
+     * 429: "Rate Limiting Has Been applied". We will pause all Spotify requests for the specified time and try again, for a
      * maximum of two tries. If that still fails, an empty Optional is returned.
      *
      * Null args and/or invalid credentials throw an NPE.
@@ -96,6 +96,8 @@ public class SpotifyAuthorizationService extends AbstractSpotifyApiService {
         Validate.notNull(code);
         Validate.notNull(redirectUri);
 
+        // Authorizing is rare, and the library's authorizationCode(clientId, clientSecret, code, redirectUri) ignores
+        // its credentials in favour of the SpotifyApi's, so this request gets an api of its own.
         SpotifyApi.Builder apiBuilder = new SpotifyApi.Builder()
                 .setClientId(clientCred.getClientId())
                 .setClientSecret(clientCred.getClientSecret())
@@ -122,6 +124,7 @@ public class SpotifyAuthorizationService extends AbstractSpotifyApiService {
                 .setAccessToken(authCred.get().getAccessToken())
                 .setRefreshToken(authCred.get().getRefreshToken())
                 .setClientCred(clientCred)
+                .setAccessTokenExpiresAt(getExpiresAt(authCred.get()))
                 .build();
 
         userService.save(userCred);
@@ -144,24 +147,38 @@ public class SpotifyAuthorizationService extends AbstractSpotifyApiService {
      * 401: {@link SpotifyUnauthorizedException} is thrown if Spotify API requires an access token for a request.
      * Since these methods are concerned with authorization, the exception would likely mean the app's client id/secret are invalid.
      *
-     * 429: "Rate Limiting Has Been applied". We will sleep the thread for the specified time and try again, for a
+     * 429: "Rate Limiting Has Been applied". We will pause all Spotify requests for the specified time and try again, for a
      * maximum of two tries. If that still fails, an empty Optional is returned.
      *
      * Null args and/or invalid credentials throws an NPE.
      */
     public Optional<SpotifyUserCredentials> refreshUser(SpotifyUserCredentials userCred) throws SpotifyUnauthorizedException {
-        Validate.isTrue(userCred.validate());
+        AuthorizationCodeRefreshRequest refreshRequest = buildRefreshRequest(userCred);
+        return getRefreshedUser(userCred, executeWithAccess(refreshRequest::execute));
+    }
 
-        SpotifyApi.Builder apiBuilder = new SpotifyApi.Builder()
-                .setClientId(clientCred.getClientId())
-                .setClientSecret(clientCred.getClientSecret())
-                .setRefreshToken(userCred.getRefreshToken());
-        SpotifyApi spotifyApi = apiFactory.build(apiBuilder);
+    /**
+     * Async version of {@link #refreshUser(SpotifyUserCredentials)}, which never blocks the calling thread.
+     * The future fails with {@link SpotifyUnauthorizedException} if Spotify answers with a 401.
+     *
+     * Concurrent refreshes of the same token, e.g. by the {@link SpotifyTokenRefresher} and a poll whose token was
+     * rejected, share one request and its new access token.
+     */
+    public CompletableFuture<Optional<SpotifyUserCredentials>> refreshUserAsync(SpotifyUserCredentials userCred) {
+        AuthorizationCodeRefreshRequest refreshRequest = buildRefreshRequest(userCred);
+        return executeWithAccessAsync("refresh:" + userCred.getUserId() + ":" + userCred.getRefreshToken(), refreshRequest::execute)
+                .thenApply(authCred -> getRefreshedUser(userCred, authCred));
+    }
 
-        AuthorizationCodeRefreshRequest.Builder refreshRequestBuilder = spotifyApi.authorizationCodeRefresh();
-        AuthorizationCodeRefreshRequest refreshRequest = apiFactory.build(refreshRequestBuilder);
+    private AuthorizationCodeRefreshRequest buildRefreshRequest(SpotifyUserCredentials userCred) {
+        Validate.isTrue(userCred.validate());
+
+        AuthorizationCodeRefreshRequest.Builder refreshRequestBuilder = apiFactory.getClientApi()
+                .authorizationCodeRefresh(clientCred.getClientId(), clientCred.getClientSecret(), userCred.getRefreshToken());
+        return apiFactory.build(refreshRequestBuilder);
+    }
 
-        Optional<AuthorizationCodeCredentials> authCred = executeWithAccess(refreshRequest::execute);
+    private Optional<SpotifyUserCredentials> getRefreshedUser(SpotifyUserCredentials userCred, Optional<AuthorizationCodeCredentials> authCred) {
         if (!authCred.isPresent()) {
             LOG.error("Failed to refresh user credentials for: {}", userCred);
             return Optional.empty();
@@ -173,13 +190,25 @@ public class SpotifyAuthorizationService extends AbstractSpotifyApiService {
                 .setAccessToken(authCred.get().getAccessToken())
                 .setRefreshToken(userCred.getRefreshToken())
                 .setClientCred(clientCred)
+                .setAccessTokenExpiresAt(getExpiresAt(authCred.get()))
                 .build();
 
-        userService.save(userCred);
+        // Saving the new access token lets polls which start later (after a restart, say) reuse it.
+        userService.save(refreshedUserCred);
 
         return Optional.of(refreshedUserCred);
     }
 
+    /**
+     * Without an expiry from Spotify, the token is treated as expired, and will be refreshed before its next use.
+     */
+    private static long getExpiresAt(AuthorizationCodeCredentials authCred) {
+        if (authCred.getExpiresIn() == null) {
+            return 0;
+        }
+        return Instant.now().plusSeconds(authCred.getExpiresIn()).toEpochMilli();
+    }
+
     /**
      * In addition to access tokens, we want the user's id and display name, which are necessary for model objects.
      */
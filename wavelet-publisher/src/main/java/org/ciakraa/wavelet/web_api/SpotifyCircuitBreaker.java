@@ -0,0 +1,217 @@
+package org.ciakraa.wavelet.web_api;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A circuit breaker per Spotify endpoint, so that while Spotify is failing our requests fail straight away rather than
+ * each waiting out its timeouts and retries.
+ *
+ * Each endpoint's circuit starts closed, and remembers whether each of its last few calls went badly: a 5xx, an IO
+ * error or timeout, or simply an answer slower than the slow call threshold. Once enough calls have been seen and the
+ * share of bad ones reaches the failure rate, the circuit opens, and calls to the endpoint are refused with a
+ * {@link SpotifyCircuitOpenException} which says when to come back. After the open period, the circuit is half open:
+ * a few trial calls are let through, and if they all go well the circuit closes again; if any goes badly, it reopens.
+ *
+ * A 429 isn't counted against an endpoint, as the {@link SpotifyRateLimiter} already holds everyone back.
+ * Each circuit's state, and how many calls have been refused, are exported over JMX.
+ *
+ * @see <a href="https://martinfowler.com/bliki/CircuitBreaker.html">CircuitBreaker</a>
+ */
+@ManagedResource(objectName = "org.ciakraa.wavelet:type=SpotifyCircuitBreaker")
+public class SpotifyCircuitBreaker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpotifyCircuitBreaker.class);
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int windowSize;
+    private final int minCalls;
+    private final double failureRate;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final int halfOpenCalls;
+    private final LongSupplier nanoTime;
+
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+
+    SpotifyCircuitBreaker(int windowSize, int minCalls, double failureRate, Duration slowCall, Duration open,
+                          int halfOpenCalls) {
+        this(windowSize, minCalls, failureRate, slowCall, open, halfOpenCalls, System::nanoTime);
+    }
+
+    SpotifyCircuitBreaker(int windowSize, int minCalls, double failureRate, Duration slowCall, Duration open,
+                          int halfOpenCalls, LongSupplier nanoTime) {
+        Validate.isTrue(windowSize > 0);
+        Validate.isTrue(minCalls > 0 && minCalls <= windowSize);
+        Validate.isTrue(failureRate > 0 && failureRate <= 1);
+        Validate.isTrue(!slowCall.isNegative() && !slowCall.isZero());
+        Validate.isTrue(!open.isNegative() && !open.isZero());
+        Validate.isTrue(halfOpenCalls > 0);
+        Validate.notNull(nanoTime);
+
+        this.windowSize = windowSize;
+        this.minCalls = minCalls;
+        this.failureRate = failureRate;
+        this.slowCallNanos = slowCall.toNanos();
+        this.openNanos = open.toNanos();
+        this.halfOpenCalls = halfOpenCalls;
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * Lets a call to the endpoint through, or refuses it if the endpoint's circuit is open. Every call let through
+     * must be followed by a {@link #record(String, boolean, long)} of how it went.
+     */
+    void acquire(String endpoint) throws SpotifyCircuitOpenException {
+        long waitNanos = getCircuit(endpoint).tryAcquire(nanoTime.getAsLong());
+        if (waitNanos > 0) {
+            rejected.increment();
+            throw new SpotifyCircuitOpenException(endpoint, Duration.ofNanos(waitNanos));
+        }
+    }
+
+    /**
+     * Records how a call let through by {@link #acquire(String)} went.
+     *
+     * @param failed whether Spotify failed to answer, as opposed to answering with an error of ours, e.g. a 401
+     */
+    void record(String endpoint, boolean failed, long latencyNanos) {
+        getCircuit(endpoint).record(failed || latencyNanos > slowCallNanos, nanoTime.getAsLong());
+    }
+
+    State getState(String endpoint) {
+        Circuit circuit = circuits.get(endpoint);
+        return circuit != null ? circuit.getState() : State.CLOSED;
+    }
+
+    @ManagedAttribute(description = "Calls refused while a circuit was open")
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @ManagedAttribute(description = "Circuit state by endpoint")
+    public Map<String, String> getCircuits() {
+        Map<String, String> states = new TreeMap<>();
+        circuits.forEach((endpoint, circuit) -> states.put(endpoint, circuit.getState().name()));
+        return states;
+    }
+
+    private Circuit getCircuit(String endpoint) {
+        return circuits.computeIfAbsent(endpoint, Circuit::new);
+    }
+
+    /**
+     * One endpoint's circuit. The last calls' outcomes are kept in a ring, with a running count of the bad ones.
+     */
+    private final class Circuit {
+
+        private final String endpoint;
+
+        // All guarded by this.
+        private final boolean[] outcomes = new boolean[windowSize];
+        private int calls;
+        private int next;
+        private int badCalls;
+        private State state = State.CLOSED;
+        private long openUntilNanos;
+        private int trialsStarted;
+        private int trialsPassed;
+
+        private Circuit(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * Returns 0 if the call may go ahead, or else how long (in nanos) until it's worth trying again.
+         */
+        private synchronized long tryAcquire(long now) {
+            if (state == State.OPEN) {
+                if (now - openUntilNanos < 0) {
+                    return openUntilNanos - now;
+                }
+                state = State.HALF_OPEN;
+                trialsStarted = 0;
+                trialsPassed = 0;
+                LOG.info("Circuit for {} is half open, trying {} calls", endpoint, halfOpenCalls);
+            }
+            if (state == State.HALF_OPEN) {
+                // Whoever isn't a trial comes back after another open period, by which time the trials have decided.
+                if (trialsStarted >= halfOpenCalls) {
+                    return openNanos;
+                }
+                trialsStarted++;
+            }
+            return 0;
+        }
+
+        private synchronized void record(boolean bad, long now) {
+            switch (state) {
+                case HALF_OPEN:
+                    if (bad) {
+                        LOG.warn("Circuit for {} failed its trial calls", endpoint);
+                        open(now);
+                    } else if (++trialsPassed >= halfOpenCalls) {
+                        close();
+                    }
+                    break;
+                case CLOSED:
+                    if (calls == windowSize && outcomes[next]) {
+                        badCalls--;
+                    }
+                    outcomes[next] = bad;
+                    next = (next + 1) % windowSize;
+                    calls = Math.min(calls + 1, windowSize);
+                    if (bad) {
+                        badCalls++;
+                    }
+                    if (calls >= minCalls && badCalls >= failureRate * calls) {
+                        LOG.warn("{} of the last {} calls to {} went badly", badCalls, calls, endpoint);
+                        open(now);
+                    }
+                    break;
+                default:
+                    // A call let through before the circuit opened; the circuit has already made up its mind.
+                    break;
+            }
+        }
+
+        private void open(long now) {
+            LOG.warn("Circuit for {} is open for {} ms", endpoint, TimeUnit.NANOSECONDS.toMillis(openNanos));
+            state = State.OPEN;
+            openUntilNanos = now + openNanos;
+            reset();
+        }
+
+        private void close() {
+            LOG.info("Circuit for {} is closed", endpoint);
+            state = State.CLOSED;
+            reset();
+        }
+
+        private void reset() {
+            calls = 0;
+            next = 0;
+            badCalls = 0;
+            Arrays.fill(outcomes, false);
+        }
+
+        private synchronized State getState() {
+            return state;
+        }
+    }
+}
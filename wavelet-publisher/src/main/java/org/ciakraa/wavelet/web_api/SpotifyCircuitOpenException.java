@@ -0,0 +1,24 @@
+package org.ciakraa.wavelet.web_api;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * A request was refused without being sent, as the {@link SpotifyCircuitBreaker} has seen its endpoint failing.
+ * Retrying straight away would only be refused again; the caller should come back once the retry-after period is up.
+ */
+public class SpotifyCircuitOpenException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Duration retryAfter;
+
+    public SpotifyCircuitOpenException(String endpoint, Duration retryAfter) {
+        super("Circuit open for " + endpoint + ", retry after " + retryAfter.toMillis() + " ms");
+        this.retryAfter = retryAfter;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,101 @@
+package org.ciakraa.wavelet.web_api;
+
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How the {@link SpotifyHttpTransport}'s response cache answers each endpoint, exported over JMX.
+ *
+ * A hit is served from the cache without asking Spotify; a revalidation asks Spotify whether a cached response is still
+ * current, and is usually answered with a body-less 304; a miss is a full response from Spotify.
+ */
+@ManagedResource(objectName = "org.ciakraa.wavelet:type=SpotifyHttpCacheStats")
+public class SpotifyHttpCacheStats {
+
+    private final ConcurrentMap<String, EndpointStats> endpoints = new ConcurrentHashMap<>();
+
+    void record(URI uri, CacheResponseStatus status) {
+        if (status == null) {
+            return;
+        }
+
+        EndpointStats stats = endpoints.computeIfAbsent(getEndpoint(uri), endpoint -> new EndpointStats());
+        switch (status) {
+            case CACHE_HIT:
+                stats.hits.increment();
+                break;
+            case VALIDATED:
+                stats.revalidations.increment();
+                break;
+            case CACHE_MISS:
+                stats.misses.increment();
+                break;
+            default:
+                // Answered by the cache module itself, e.g. a 504 for an only-if-cached request; not a lookup.
+                break;
+        }
+    }
+
+    @ManagedAttribute(description = "Responses served from the cache")
+    public long getHits() {
+        return endpoints.values().stream().mapToLong(stats -> stats.hits.sum()).sum();
+    }
+
+    @ManagedAttribute(description = "Cached responses revalidated with Spotify")
+    public long getRevalidations() {
+        return endpoints.values().stream().mapToLong(stats -> stats.revalidations.sum()).sum();
+    }
+
+    @ManagedAttribute(description = "Responses fetched from Spotify in full")
+    public long getMisses() {
+        return endpoints.values().stream().mapToLong(stats -> stats.misses.sum()).sum();
+    }
+
+    @ManagedAttribute(description = "Hits, revalidations and misses by endpoint")
+    public Map<String, String> getEndpoints() {
+        Map<String, String> summary = new TreeMap<>();
+        endpoints.forEach((endpoint, stats) -> summary.put(endpoint, stats.toString()));
+        return summary;
+    }
+
+    long getHits(String endpoint) {
+        EndpointStats stats = endpoints.get(endpoint);
+        return stats != null ? stats.hits.sum() : 0;
+    }
+
+    long getRevalidations(String endpoint) {
+        EndpointStats stats = endpoints.get(endpoint);
+        return stats != null ? stats.revalidations.sum() : 0;
+    }
+
+    long getMisses(String endpoint) {
+        EndpointStats stats = endpoints.get(endpoint);
+        return stats != null ? stats.misses.sum() : 0;
+    }
+
+    /**
+     * Every endpoint we call carries its parameters in the query, so the path alone names the endpoint.
+     */
+    static String getEndpoint(URI uri) {
+        return uri.getHost() + uri.getPath();
+    }
+
+    private static final class EndpointStats {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder revalidations = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        @Override
+        public String toString() {
+            return "hits=" + hits.sum() + ", revalidations=" + revalidations.sum() + ", misses=" + misses.sum();
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package org.ciakraa.wavelet.web_api;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.wrapper.spotify.HttpDeleteBody;
+import com.wrapper.spotify.IHttpManager;
+import com.wrapper.spotify.exceptions.SpotifyWebApiException;
+import com.wrapper.spotify.exceptions.detailed.BadGatewayException;
+import com.wrapper.spotify.exceptions.detailed.BadRequestException;
+import com.wrapper.spotify.exceptions.detailed.ForbiddenException;
+import com.wrapper.spotify.exceptions.detailed.InternalServerErrorException;
+import com.wrapper.spotify.exceptions.detailed.NotFoundException;
+import com.wrapper.spotify.exceptions.detailed.ServiceUnavailableException;
+import com.wrapper.spotify.exceptions.detailed.TooManyRequestsException;
+import com.wrapper.spotify.exceptions.detailed.UnauthorizedException;
+import org.apache.commons.lang3.Validate;
+import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.cache.HttpCacheContext;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The one HTTP transport behind every Spotify request.
+ *
+ * The library's default {@link com.wrapper.spotify.SpotifyHttpManager} shares a client whose pool size and timeouts
+ * can't be tuned, so a slow Spotify can hold a request thread indefinitely. This transport keeps a bounded pool of
+ * keep-alive connections to Spotify's hosts, with connect and read timeouts, and can open connections ahead of the
+ * first poll so that no poll pays for a TCP and TLS handshake.
+ *
+ * Responses can also be cached, honouring Cache-Control and revalidating with ETags, so a response which hasn't changed
+ * comes back as a cheap 304. The cache is a private one in HTTP terms, since nearly every request carries an access
+ * token and Spotify marks most responses private, which a shared cache would never store. Responses to requests with an
+ * access token are cached as varying on it, so a response is only ever served again to the same token, and one user's
+ * data is never served to another. How each endpoint is answered is recorded in {@link SpotifyHttpCacheStats}.
+ *
+ * Every request can also pass through a {@link SpotifyCircuitBreaker}, which refuses requests to an endpoint Spotify is
+ * failing on, so they fail straight away rather than waiting out the read timeout.
+ *
+ * Responses are mapped to the same exceptions the library throws, so request and retry handling stays unchanged.
+ * A successful response's body can also be handed to a {@link ResponseReader} as it's received, rather than read into
+ * a string first.
+ */
+final class SpotifyHttpTransport implements IHttpManager, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpotifyHttpTransport.class);
+
+    private static final ResponseReader<String> STRING_READER =
+            entity -> entity != null ? EntityUtils.toString(entity, StandardCharsets.UTF_8) : null;
+
+    private final PoolingHttpClientConnectionManager connections;
+    private final CloseableHttpClient httpClient;
+    private final Duration keepAlive;
+    private final Duration connectTimeout;
+    private final SpotifyHttpCacheStats cacheStats = new SpotifyHttpCacheStats();
+    private final SpotifyCircuitBreaker circuitBreaker;
+
+    SpotifyHttpTransport(int maxConnections, Duration keepAlive, Duration connectTimeout, Duration readTimeout) {
+        this(maxConnections, keepAlive, connectTimeout, readTimeout, null, 0, null);
+    }
+
+    /**
+     * @param cacheStorage where to cache responses, or null to not cache them
+     * @param maxCachedBytes the largest response body which will be cached
+     * @param circuitBreaker the breaker every request passes through, or null to always send requests
+     */
+    SpotifyHttpTransport(int maxConnections, Duration keepAlive, Duration connectTimeout, Duration readTimeout,
+                         HttpCacheStorage cacheStorage, int maxCachedBytes, SpotifyCircuitBreaker circuitBreaker) {
+        Validate.isTrue(maxConnections > 0);
+        Validate.isTrue(!keepAlive.isNegative() && !keepAlive.isZero());
+        Validate.isTrue(!connectTimeout.isNegative() && !connectTimeout.isZero());
+        Validate.isTrue(!readTimeout.isNegative() && !readTimeout.isZero());
+
+        this.keepAlive = keepAlive;
+        this.connectTimeout = connectTimeout;
+        this.circuitBreaker = circuitBreaker;
+
+        // Nearly every request goes to one of two hosts, so any route may use the whole pool.
+        this.connections = new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(maxConnections);
+        connections.setDefaultMaxPerRoute(maxConnections);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setCookieSpec(CookieSpecs.DEFAULT)
+                .setConnectTimeout((int) connectTimeout.toMillis())
+                .setConnectionRequestTimeout((int) connectTimeout.toMillis())
+                .setSocketTimeout((int) readTimeout.toMillis())
+                .build();
+
+        HttpClientBuilder clientBuilder = cacheStorage != null
+                ? new PerTokenCachingHttpClientBuilder()
+                        .setHttpCacheStorage(cacheStorage)
+                        .setCacheConfig(CacheConfig.custom().setMaxObjectSize(maxCachedBytes).setSharedCache(false).build())
+                : HttpClients.custom();
+
+        this.httpClient = clientBuilder
+                .setConnectionManager(connections)
+                .setDefaultRequestConfig(requestConfig)
+                .setDefaultConnectionConfig(ConnectionConfig.custom().setCharset(StandardCharsets.UTF_8).build())
+                .setKeepAliveStrategy(this::getKeepAliveMillis)
+                .evictIdleConnections(keepAlive.toMillis(), TimeUnit.MILLISECONDS)
+                .evictExpiredConnections()
+                .build();
+    }
+
+    @Override
+    public String get(URI uri, Header[] headers) throws IOException, SpotifyWebApiException {
+        HttpGet request = new HttpGet(uri);
+        request.setHeaders(headers);
+        return execute(request, STRING_READER);
+    }
+
+    /**
+     * As {@link #get(URI, Header[])}, but a successful response's body is handed to the reader as it's received.
+     */
+    <T> T get(URI uri, Header[] headers, ResponseReader<T> reader) throws IOException, SpotifyWebApiException {
+        HttpGet request = new HttpGet(uri);
+        request.setHeaders(headers);
+        return execute(request, reader);
+    }
+
+    @Override
+    public String post(URI uri, Header[] headers, HttpEntity body) throws IOException, SpotifyWebApiException {
+        HttpPost request = new HttpPost(uri);
+        request.setHeaders(headers);
+        request.setEntity(body);
+        return execute(request, STRING_READER);
+    }
+
+    @Override
+    public String put(URI uri, Header[] headers, HttpEntity body) throws IOException, SpotifyWebApiException {
+        HttpPut request = new HttpPut(uri);
+        request.setHeaders(headers);
+        request.setEntity(body);
+        return execute(request, STRING_READER);
+    }
+
+    @Override
+    public String delete(URI uri, Header[] headers, HttpEntity body) throws IOException, SpotifyWebApiException {
+        HttpDeleteBody request = new HttpDeleteBody(uri);
+        request.setHeaders(headers);
+        request.setEntity(body);
+        return execute(request, STRING_READER);
+    }
+
+    /**
+     * Opens connections to each host and leaves them idle in the pool, so the first requests skip the handshake.
+     * A host which can't be reached is logged and skipped; requests will simply connect on demand.
+     */
+    void warmUp(Collection<HttpHost> hosts, int connectionsPerHost) {
+        Validate.isTrue(connectionsPerHost >= 0);
+
+        for (HttpHost host : hosts) {
+            HttpRoute route = new HttpRoute(host, null, "https".equalsIgnoreCase(host.getSchemeName()));
+            List<HttpClientConnection> opened = new ArrayList<>();
+            try {
+                for (int i = 0; i < connectionsPerHost; i++) {
+                    opened.add(connect(route));
+                }
+                LOG.info("Opened {} connections to {}", opened.size(), host);
+            } catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+                LOG.warn("Unable to warm up connections to {}:", host, e);
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+            } finally {
+                opened.forEach(conn -> connections.releaseConnection(conn, null, keepAlive.toMillis(), TimeUnit.MILLISECONDS));
+            }
+        }
+    }
+
+    SpotifyHttpCacheStats getCacheStats() {
+        return cacheStats;
+    }
+
+    /**
+     * Connections which are open, whether leased to a request or idle in the pool.
+     */
+    PoolStats getStats() {
+        return connections.getTotalStats();
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+
+    private HttpClientConnection connect(HttpRoute route) throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        ConnectionRequest request = connections.requestConnection(route, null);
+        HttpClientConnection conn = request.get(connectTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        if (!conn.isOpen()) {
+            HttpContext context = new BasicHttpContext();
+            try {
+                connections.connect(conn, route, (int) connectTimeout.toMillis(), context);
+                connections.routeComplete(conn, route, context);
+            } catch (IOException e) {
+                connections.releaseConnection(conn, null, 0, TimeUnit.MILLISECONDS);
+                throw e;
+            }
+        }
+        return conn;
+    }
+
+    private <T> T execute(HttpRequestBase request, ResponseReader<T> reader)
+            throws IOException, SpotifyWebApiException {
+        if (circuitBreaker == null) {
+            return send(request, reader);
+        }
+
+        String endpoint = SpotifyHttpCacheStats.getEndpoint(request.getURI());
+        circuitBreaker.acquire(endpoint);
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T body = send(request, reader);
+            failed = false;
+            return body;
+        } catch (SpotifyWebApiException e) {
+            failed = isUpstreamFailure(e);
+            throw e;
+        } finally {
+            circuitBreaker.record(endpoint, failed, System.nanoTime() - start);
+        }
+    }
+
+    private <T> T send(HttpRequestBase request, ResponseReader<T> reader) throws IOException, SpotifyWebApiException {
+        HttpCacheContext context = HttpCacheContext.create();
+        try (CloseableHttpResponse response = httpClient.execute(request, context)) {
+            cacheStats.record(request.getURI(), context.getCacheResponseStatus());
+
+            // Reading the whole body hands the connection back to the pool; whatever the reader left is read off here.
+            try {
+                return getResponseBody(response, reader);
+            } finally {
+                EntityUtils.consumeQuietly(response.getEntity());
+            }
+        }
+    }
+
+    /**
+     * Only a 5xx says Spotify itself is struggling; other errors are answers to the request we sent, e.g. a bad token.
+     */
+    private static boolean isUpstreamFailure(SpotifyWebApiException e) {
+        return e instanceof InternalServerErrorException || e instanceof BadGatewayException
+                || e instanceof ServiceUnavailableException;
+    }
+
+    /**
+     * Spotify doesn't always say how long it keeps a connection alive, so we never hold one for longer than our own
+     * keep-alive, and drop it sooner if Spotify asks.
+     */
+    private long getKeepAliveMillis(HttpResponse response, HttpContext context) {
+        long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+        return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAlive.toMillis()) : keepAlive.toMillis();
+    }
+
+    /**
+     * Mirrors the library's own response handling, so callers see the same exceptions whichever transport is used.
+     * Only the body of a response which isn't an error is handed to the reader.
+     */
+    private static <T> T getResponseBody(HttpResponse response, ResponseReader<T> reader)
+            throws IOException, SpotifyWebApiException {
+        StatusLine statusLine = response.getStatusLine();
+        if (!isError(statusLine.getStatusCode())) {
+            return reader.read(response.getEntity());
+        }
+
+        String message = getErrorMessage(statusLine, STRING_READER.read(response.getEntity()));
+        switch (statusLine.getStatusCode()) {
+            case HttpStatus.SC_BAD_REQUEST:
+                throw new BadRequestException(message);
+            case HttpStatus.SC_UNAUTHORIZED:
+                throw new UnauthorizedException(message);
+            case HttpStatus.SC_FORBIDDEN:
+                throw new ForbiddenException(message);
+            case HttpStatus.SC_NOT_FOUND:
+                throw new NotFoundException(message);
+            case 429:
+                throw getTooManyRequestsException(message, response.getFirstHeader(HttpHeaders.RETRY_AFTER));
+            case HttpStatus.SC_INTERNAL_SERVER_ERROR:
+                throw new InternalServerErrorException(message);
+            case HttpStatus.SC_BAD_GATEWAY:
+                throw new BadGatewayException(message);
+            default:
+                throw new ServiceUnavailableException(message);
+        }
+    }
+
+    /**
+     * Retry-After is either a number of seconds or an HTTP-date. Whatever else Spotify sends is ignored, leaving the
+     * caller's own backoff to decide how long to wait.
+     */
+    private static TooManyRequestsException getTooManyRequestsException(String message, Header retryAfter) {
+        if (retryAfter == null) {
+            return new TooManyRequestsException(message);
+        }
+
+        String value = retryAfter.getValue().trim();
+        try {
+            return new TooManyRequestsException(message, Math.max(0, Integer.parseInt(value)));
+        } catch (NumberFormatException e) {
+            // Not delta-seconds; it may still be a date.
+        }
+
+        Date date = DateUtils.parseDate(value);
+        if (date == null) {
+            LOG.warn("Ignoring unreadable Retry-After header: {}", value);
+            return new TooManyRequestsException(message);
+        }
+        long seconds = TimeUnit.MILLISECONDS.toSeconds(date.getTime() - System.currentTimeMillis() + 999);
+        return new TooManyRequestsException(message, (int) Math.min(Integer.MAX_VALUE, Math.max(0, seconds)));
+    }
+
+    private static boolean isError(int statusCode) {
+        switch (statusCode) {
+            case HttpStatus.SC_BAD_REQUEST:
+            case HttpStatus.SC_UNAUTHORIZED:
+            case HttpStatus.SC_FORBIDDEN:
+            case HttpStatus.SC_NOT_FOUND:
+            case 429:
+            case HttpStatus.SC_INTERNAL_SERVER_ERROR:
+            case HttpStatus.SC_BAD_GATEWAY:
+            case HttpStatus.SC_SERVICE_UNAVAILABLE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String getErrorMessage(StatusLine statusLine, String body) {
+        if (body == null) {
+            return statusLine.getReasonPhrase();
+        }
+
+        try {
+            JsonObject json = new JsonParser().parse(body).getAsJsonObject();
+            if (!json.has("error")) {
+                return statusLine.getReasonPhrase();
+            }
+            if (json.has("error_description")) {
+                return json.get("error_description").getAsString();
+            }
+            if (json.get("error").isJsonObject() && json.getAsJsonObject("error").has("message")) {
+                return json.getAsJsonObject("error").get("message").getAsString();
+            }
+        } catch (JsonSyntaxException | IllegalStateException e) {
+            // Not JSON, or not an object; the status line will have to do.
+        }
+        return statusLine.getReasonPhrase();
+    }
+
+    /**
+     * Marks every response to a request with an access token as varying on it, before the cache sees the response, so
+     * the cache keeps a separate variant per token.
+     */
+    private static final class PerTokenCachingHttpClientBuilder extends CachingHttpClientBuilder {
+
+        @Override
+        protected ClientExecChain decorateMainExec(ClientExecChain mainExec) {
+            return super.decorateMainExec((route, request, context, execAware) -> {
+                CloseableHttpResponse response = mainExec.execute(route, request, context, execAware);
+                if (request.containsHeader(HttpHeaders.AUTHORIZATION)) {
+                    response.addHeader(HttpHeaders.VARY, HttpHeaders.AUTHORIZATION);
+                }
+                return response;
+            });
+        }
+    }
+
+    /**
+     * Reads a successful response's body, which may be null, e.g. for a 204.
+     */
+    @FunctionalInterface
+    interface ResponseReader<T> {
+
+        T read(HttpEntity entity) throws IOException, SpotifyWebApiException;
+    }
+}
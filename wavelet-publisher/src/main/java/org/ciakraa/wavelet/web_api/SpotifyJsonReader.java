@@ -0,0 +1,18 @@
+package org.ciakraa.wavelet.web_api;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+
+/**
+ * Reads a Spotify response body straight off Jackson's token stream, keeping only the fields the caller needs.
+ *
+ * The library maps every response to its full model object graph, by way of a complete Gson tree of the JSON; on our
+ * busiest requests we only keep a handful of fields, so those are read with one of these instead. The parser is
+ * positioned before the first token.
+ */
+@FunctionalInterface
+public interface SpotifyJsonReader<T> {
+
+    T read(JsonParser parser) throws IOException;
+}
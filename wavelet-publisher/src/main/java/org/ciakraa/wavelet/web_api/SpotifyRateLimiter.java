@@ -0,0 +1,93 @@
+package org.ciakraa.wavelet.web_api;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket shared by every call this app makes to Spotify, so that all threads together stay under our quota
+ * rather than each thread finding the limit on its own.
+ *
+ * Tokens refill at a steady rate, up to the burst size; each call takes one token, or waits until one is available.
+ * When Spotify does answer with a 429, the bucket is paused for the Retry-After period: every caller waits it out,
+ * not just the one which got the 429, and calls then resume at the steady rate rather than in one burst.
+ *
+ * The bucket is kept as a single "theoretical arrival time" (the generic cell rate algorithm), so taking a token is
+ * O(1) and needs no background refill.
+ *
+ * @see <a href="https://en.wikipedia.org/wiki/Generic_cell_rate_algorithm">Generic cell rate algorithm</a>
+ */
+final class SpotifyRateLimiter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpotifyRateLimiter.class);
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final LongSupplier nanoTime;
+
+    // Guarded by this.
+    private long arrivalNanos = Long.MIN_VALUE;
+    private long pausedUntilNanos = Long.MIN_VALUE;
+
+    SpotifyRateLimiter(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, System::nanoTime);
+    }
+
+    SpotifyRateLimiter(double permitsPerSecond, int burst, LongSupplier nanoTime) {
+        Validate.isTrue(permitsPerSecond > 0);
+        Validate.isTrue(burst > 0);
+        Validate.notNull(nanoTime);
+
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.burstNanos = (burst - 1) * intervalNanos;
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * Blocks until the caller may make a call to Spotify.
+     */
+    void acquire() throws InterruptedException {
+        long waitNanos = reserve();
+        while (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+
+            // A 429 may have paused everyone while we were waiting for our turn, in which case our turn is void.
+            waitNanos = isPaused() ? reserve() : 0;
+        }
+    }
+
+    /**
+     * Takes the next token, returning how long (in nanos) the caller has to wait before it may use it.
+     */
+    synchronized long reserve() {
+        long now = nanoTime.getAsLong();
+        long earliest = Math.max(now, pausedUntilNanos);
+
+        long arrival = Math.max(arrivalNanos, earliest);
+        long allowedAt = Math.max(earliest, arrival - burstNanos);
+        arrivalNanos = arrival + intervalNanos;
+
+        return allowedAt - now;
+    }
+
+    /**
+     * Holds back every caller until the pause is over. The bucket is empty once the pause ends, so calls pick up at
+     * the steady rate instead of all going out at once.
+     */
+    synchronized void pause(Duration retryAfter) {
+        long until = nanoTime.getAsLong() + retryAfter.toNanos();
+        if (until > pausedUntilNanos) {
+            LOG.info("Pausing all Spotify requests for {} seconds.", retryAfter.getSeconds());
+            pausedUntilNanos = until;
+            arrivalNanos = Math.max(arrivalNanos, until + burstNanos);
+        }
+    }
+
+    synchronized boolean isPaused() {
+        return nanoTime.getAsLong() < pausedUntilNanos;
+    }
+}
@@ -0,0 +1,72 @@
+package org.ciakraa.wavelet.web_api;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Lets concurrent identical requests share one call to Spotify, and its result.
+ *
+ * Requests are identified by a key naming the endpoint and its parameters. The first request for a key is sent; any
+ * request with the same key made while it's in flight waits for that one's result instead of sending its own. Only
+ * requests in flight are remembered, so memory is bounded by how many requests can be in flight at once.
+ *
+ * Some failures belong to the request which was actually sent rather than to the key, e.g. Spotify rejecting the access
+ * token it was sent with. Requests which joined it are sent again on their own after such failures.
+ */
+final class SpotifyRequestCoalescer {
+
+    private final ConcurrentMap<String, CompletableFuture<?>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Sends the request, or joins the identical request already in flight.
+     *
+     * @param sendAloneOn failures of the shared request after which a request which joined it is sent on its own
+     */
+    <T> CompletableFuture<T> execute(String key, Supplier<CompletableFuture<T>> request, Predicate<Throwable> sendAloneOn) {
+        Validate.notBlank(key);
+
+        CompletableFuture<T> shared = new CompletableFuture<>();
+        @SuppressWarnings("unchecked")
+        CompletableFuture<T> existing = (CompletableFuture<T>) inFlight.putIfAbsent(key, shared);
+        if (existing != null) {
+            return existing.handle((result, e) -> {
+                Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                if (cause != null && sendAloneOn.test(cause)) {
+                    return request.get();
+                }
+                return existing;
+            }).thenCompose(Function.identity());
+        }
+
+        try {
+            request.get().whenComplete((result, e) -> {
+                inFlight.remove(key, shared);
+                if (e != null) {
+                    shared.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+                } else {
+                    shared.complete(result);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, shared);
+            shared.completeExceptionally(e);
+        }
+
+        // Callers get their own stage, so none of them can complete or cancel the one the others are waiting on.
+        return shared.thenApply(Function.identity());
+    }
+
+    /**
+     * The number of distinct requests in flight.
+     */
+    int size() {
+        return inFlight.size();
+    }
+}
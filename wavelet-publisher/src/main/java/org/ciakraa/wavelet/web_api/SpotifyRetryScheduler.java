@@ -0,0 +1,219 @@
+package org.ciakraa.wavelet.web_api;
+
+import com.wrapper.spotify.exceptions.SpotifyWebApiException;
+import com.wrapper.spotify.exceptions.detailed.BadGatewayException;
+import com.wrapper.spotify.exceptions.detailed.InternalServerErrorException;
+import com.wrapper.spotify.exceptions.detailed.ServiceUnavailableException;
+import com.wrapper.spotify.exceptions.detailed.TooManyRequestsException;
+import com.wrapper.spotify.exceptions.detailed.UnauthorizedException;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes Spotify requests without ever parking the caller's thread: every wait, whether for the {@link SpotifyRateLimiter}
+ * or before a retry, is a task on a timer, and the request itself runs on a dedicated request executor.
+ * The caller gets a future straight away, and is free to poll other users while this one waits.
+ *
+ * Failed requests are retried with exponential backoff and full jitter, i.e. a random delay of up to
+ * base * 2^attempt (capped at the max delay), so that requests which failed together don't retry together.
+ * A request gives up (with an empty result) once it runs out of attempts, or once its next retry would land
+ * past its deadline.
+ *
+ * Status codes are handled as in {@link AbstractSpotifyApiService}, except that 5xx responses and IO errors are
+ * retried too, since they are usually transient:
+ *
+ * 429: Every request is paused for the Retry-After period, then this one is retried.
+ * 401: The future fails with {@link SpotifyUnauthorizedException} for requests with access; others return an empty result.
+ * Circuit open: The future fails with {@link SpotifyCircuitOpenException} straight away rather than retrying, as the
+ * circuit keeps refusing until Spotify recovers. The caller decides when to come back.
+ * 500, 502, 503 and IO errors: Retried.
+ * Everything else: An empty result.
+ *
+ * @see <a href="https://aws.amazon.com/blogs/architecture/exponential-backoff-and-jitter/">Exponential Backoff And Jitter</a>
+ */
+final class SpotifyRetryScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpotifyRetryScheduler.class);
+
+    private final SpotifyRateLimiter rateLimiter;
+    private final ScheduledExecutorService timer;
+    private final Executor requests;
+    private final long baseDelayNanos;
+    private final long maxDelayNanos;
+    private final int maxAttempts;
+    private final long deadlineNanos;
+
+    SpotifyRetryScheduler(SpotifyRateLimiter rateLimiter, ScheduledExecutorService timer, Executor requests,
+                          Duration baseDelay, Duration maxDelay, int maxAttempts, Duration deadline) {
+        Validate.notNull(rateLimiter);
+        Validate.notNull(timer);
+        Validate.notNull(requests);
+        Validate.isTrue(!baseDelay.isNegative() && !baseDelay.isZero());
+        Validate.isTrue(maxDelay.compareTo(baseDelay) >= 0);
+        Validate.isTrue(maxAttempts > 0);
+        Validate.isTrue(!deadline.isNegative() && !deadline.isZero());
+
+        this.rateLimiter = rateLimiter;
+        this.timer = timer;
+        this.requests = requests;
+        this.baseDelayNanos = baseDelay.toNanos();
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.maxAttempts = maxAttempts;
+        this.deadlineNanos = deadline.toNanos();
+    }
+
+    /**
+     * Starts executing the request, returning a future of its (possibly empty) result.
+     */
+    <T> CompletableFuture<Optional<T>> execute(AbstractSpotifyApiService.SpotifyApiSupplier<T> supplier, boolean withAccess) {
+        Validate.notNull(supplier);
+
+        Attempts<T> attempts = new Attempts<>(supplier, withAccess, System.nanoTime() + deadlineNanos);
+        attempts.acquire();
+        return attempts.result;
+    }
+
+    /**
+     * A random delay of up to base * 2^attempt, capped at the max delay.
+     */
+    long getBackoffNanos(int attempt) {
+        // The max delay is long reached by the 20th doubling, and shifting any further could overflow.
+        long ceiling = Math.min(maxDelayNanos, baseDelayNanos << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * The state of one request across its attempts. Only one step of a request ever runs at a time, each step
+     * handing over to the next through the timer or the request executor.
+     */
+    private final class Attempts<T> {
+
+        private final AbstractSpotifyApiService.SpotifyApiSupplier<T> supplier;
+        private final boolean withAccess;
+        private final long deadline;
+        private final CompletableFuture<Optional<T>> result = new CompletableFuture<>();
+        private int attempt;
+
+        private Attempts(AbstractSpotifyApiService.SpotifyApiSupplier<T> supplier, boolean withAccess, long deadline) {
+            this.supplier = supplier;
+            this.withAccess = withAccess;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Takes a token from the rate limiter, then runs the request once the token is ours.
+         */
+        private void acquire() {
+            long waitNanos = rateLimiter.reserve();
+            if (waitNanos <= 0) {
+                run(requests, this::call);
+            } else if (!isPastDeadline(waitNanos)) {
+                // A 429 may pause everyone while we wait for our turn, in which case our turn is void.
+                schedule(waitNanos, () -> {
+                    if (rateLimiter.isPaused()) {
+                        acquire();
+                    } else {
+                        run(requests, this::call);
+                    }
+                });
+            }
+        }
+
+        private void call() {
+            try {
+                result.complete(Optional.ofNullable(supplier.get()));
+            } catch (TooManyRequestsException exp) {
+                // Spotify rounds down retry seconds, e.g. 32000ms to 3 seconds, so add one to be safe.
+                Duration retryAfter = Duration.ofSeconds(exp.getRetryAfter() + 1);
+                rateLimiter.pause(retryAfter);
+                retry(Math.max(retryAfter.toNanos(), getBackoffNanos(attempt)), exp);
+            } catch (UnauthorizedException exp) {
+                if (withAccess) {
+                    LOG.error("Spotify request execution with access failed due to unauthorized error:", exp);
+                    result.completeExceptionally(new SpotifyUnauthorizedException());
+                } else {
+                    LOG.error("Spotify request execution without access failed due to exception:", exp);
+                    result.complete(Optional.empty());
+                }
+            } catch (SpotifyCircuitOpenException exp) {
+                LOG.debug("Spotify request refused: {}", exp.getMessage());
+                result.completeExceptionally(exp);
+            } catch (InternalServerErrorException | BadGatewayException | ServiceUnavailableException | IOException exp) {
+                retry(getBackoffNanos(attempt), exp);
+            } catch (SpotifyWebApiException exp) {
+                LOG.error("Spotify request execution failed due to exception:", exp);
+                result.complete(Optional.empty());
+            } catch (RuntimeException exp) {
+                result.completeExceptionally(exp);
+            }
+        }
+
+        private void retry(long delayNanos, Exception cause) {
+            if (++attempt >= maxAttempts) {
+                LOG.error("Unable to execute spotify request due to no more retries:", cause);
+                result.complete(Optional.empty());
+                return;
+            }
+            if (isPastDeadline(delayNanos)) {
+                return;
+            }
+
+            LOG.info("Spotify request failed with {}. Retrying in {} ms, attempt {} of {}.", cause.getClass().getSimpleName(),
+                    TimeUnit.NANOSECONDS.toMillis(delayNanos), attempt + 1, maxAttempts);
+            schedule(delayNanos, this::acquire);
+        }
+
+        private boolean isPastDeadline(long delayNanos) {
+            if (System.nanoTime() + delayNanos - deadline <= 0) {
+                return false;
+            }
+
+            LOG.error("Unable to execute spotify request before its deadline.");
+            result.complete(Optional.empty());
+            return true;
+        }
+
+        private void schedule(long delayNanos, Runnable step) {
+            try {
+                timer.schedule(() -> run(step), delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException exp) {
+                fail(exp);
+            }
+        }
+
+        private void run(Executor executor, Runnable step) {
+            try {
+                executor.execute(() -> run(step));
+            } catch (RejectedExecutionException exp) {
+                fail(exp);
+            }
+        }
+
+        /**
+         * Whatever goes wrong in a step, the future must still complete, or its caller would wait forever.
+         */
+        private void run(Runnable step) {
+            try {
+                step.run();
+            } catch (RuntimeException exp) {
+                result.completeExceptionally(exp);
+            }
+        }
+
+        private void fail(RejectedExecutionException exp) {
+            LOG.error("Unable to schedule spotify request, as executors are shutting down:", exp);
+            result.complete(Optional.empty());
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.ciakraa.wavelet.web_api;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Refreshes access tokens in the background, a while before they expire, and hands the new credentials to the
+ * {@link SpotifyAccessTokenCache} that polls read from.
+ *
+ * Tracked users sit in a queue ordered by when their token is due for a refresh: {@link WebApiConstants#TOKEN_REFRESH_LEAD}
+ * ahead of its expiry. Every {@link WebApiConstants#TOKEN_REFRESH_PERIOD} the refresher takes at most a batch of due
+ * users off the head of the queue and refreshes them, paced by the shared rate limiter like any other request. The lead
+ * is longer than the cache's own refresh margin, so a poll only ever refreshes a token itself if the refresher has been
+ * failing for several minutes.
+ *
+ * A refresh which fails is retried after {@link WebApiConstants#TOKEN_REFRESH_RETRY_DELAY}; a revoked refresh token
+ * drops the user from the queue.
+ */
+public class SpotifyTokenRefresher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpotifyTokenRefresher.class);
+
+    private final SpotifyAuthorizationService authService;
+    private final SpotifyAccessTokenCache tokenCache;
+    private final Duration leadTime;
+    private final int batchSize;
+
+    // Both guarded by this. A user's queued refresh is only live while it is also the one in the tracked map;
+    // anything else left in the queue has been replaced or untracked, and is skipped once it reaches the head.
+    private final Queue<Refresh> queue = new PriorityQueue<>(Comparator.comparing(refresh -> refresh.refreshAt));
+    private final Map<String, Refresh> tracked = new HashMap<>();
+
+    private ScheduledFuture<?> task;
+
+    SpotifyTokenRefresher(SpotifyAuthorizationService authService, SpotifyAccessTokenCache tokenCache, Duration leadTime,
+                          int batchSize) {
+        Validate.notNull(authService);
+        Validate.notNull(tokenCache);
+        Validate.isTrue(!leadTime.isNegative());
+        Validate.isTrue(batchSize > 0);
+
+        this.authService = authService;
+        this.tokenCache = tokenCache;
+        this.leadTime = leadTime;
+        this.batchSize = batchSize;
+    }
+
+    synchronized void start(TaskScheduler scheduler) {
+        Validate.validState(task == null, "Token refresher has already been started.");
+        task = scheduler.scheduleAtFixedRate(() -> refreshExpiring(Instant.now()), WebApiConstants.TOKEN_REFRESH_PERIOD);
+    }
+
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * Keeps the user's access token fresh from now on. Tracking a user again with newer credentials reschedules them.
+     */
+    public synchronized void track(SpotifyUserCredentials userCred) {
+        Validate.isTrue(userCred.validate());
+
+        Refresh existing = tracked.get(userCred.getUserId());
+        if (existing == null || existing.userCred.getAccessTokenExpiresAt() <= userCred.getAccessTokenExpiresAt()) {
+            enqueue(new Refresh(userCred, getRefreshAt(userCred)));
+        }
+    }
+
+    /**
+     * Stops refreshing the user's access token, e.g. once they are no longer polled here.
+     */
+    public synchronized void untrack(String userId) {
+        tracked.remove(userId);
+    }
+
+    /**
+     * The number of users whose tokens are being kept fresh.
+     */
+    synchronized int size() {
+        return tracked.size();
+    }
+
+    /**
+     * Refreshes the batch of tokens which are due soonest, if any are due. The future completes once all of them have
+     * been refreshed or have failed to.
+     */
+    CompletableFuture<Void> refreshExpiring(Instant now) {
+        List<Refresh> due = takeDue(now);
+        if (!due.isEmpty()) {
+            LOG.info("Refreshing access tokens for {} users", due.size());
+        }
+
+        return CompletableFuture.allOf(due.stream()
+                .map(refresh -> refresh(refresh, now))
+                .toArray(CompletableFuture<?>[]::new));
+    }
+
+    private synchronized List<Refresh> takeDue(Instant now) {
+        List<Refresh> due = new ArrayList<>();
+        while (due.size() < batchSize && !queue.isEmpty() && !queue.peek().refreshAt.isAfter(now)) {
+            Refresh refresh = queue.poll();
+            if (tracked.get(refresh.userCred.getUserId()) != refresh) {
+                continue;
+            }
+
+            // A poll may already have refreshed the token itself; if so, there's nothing to do until that one is due.
+            SpotifyUserCredentials cached = tokenCache.getCachedUser(refresh.userCred.getUserId()).orElse(refresh.userCred);
+            if (cached.getAccessTokenExpiresAt() > refresh.userCred.getAccessTokenExpiresAt()) {
+                enqueue(new Refresh(cached, getRefreshAt(cached)));
+                continue;
+            }
+
+            due.add(refresh);
+        }
+        return due;
+    }
+
+    private CompletableFuture<Void> refresh(Refresh refresh, Instant now) {
+        SpotifyUserCredentials userCred = refresh.userCred;
+        return authService.refreshUserAsync(userCred).handle((refreshed, e) -> {
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (cause instanceof SpotifyUnauthorizedException) {
+                LOG.warn("Refresh token was revoked, no longer refreshing access tokens for user {}", userCred);
+                untrack(refresh);
+            } else if (cause != null || !refreshed.isPresent()) {
+                LOG.warn("Failed to refresh access token for user {}, will try again:", userCred, cause);
+                replace(refresh, new Refresh(userCred, now.plus(WebApiConstants.TOKEN_REFRESH_RETRY_DELAY)));
+            } else {
+                tokenCache.put(refreshed.get());
+                replace(refresh, new Refresh(refreshed.get(), getRefreshAt(refreshed.get())));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Queues the next refresh for a user whose refresh has just finished, unless they've been untracked or re-tracked
+     * with other credentials in the meantime.
+     */
+    private synchronized void replace(Refresh finished, Refresh next) {
+        if (tracked.get(finished.userCred.getUserId()) == finished) {
+            enqueue(next);
+        }
+    }
+
+    private synchronized void untrack(Refresh refresh) {
+        tracked.remove(refresh.userCred.getUserId(), refresh);
+    }
+
+    private void enqueue(Refresh refresh) {
+        tracked.put(refresh.userCred.getUserId(), refresh);
+        queue.add(refresh);
+    }
+
+    private Instant getRefreshAt(SpotifyUserCredentials userCred) {
+        return Instant.ofEpochMilli(userCred.getAccessTokenExpiresAt()).minus(leadTime);
+    }
+
+    private static final class Refresh {
+        private final SpotifyUserCredentials userCred;
+        private final Instant refreshAt;
+
+        private Refresh(SpotifyUserCredentials userCred, Instant refreshAt) {
+            this.userCred = userCred;
+            this.refreshAt = refreshAt;
+        }
+    }
+}
@@ -6,6 +6,7 @@ import com.fasterxml.jackson.databind.annotation.JsonPOJOBuilder;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 
+import java.time.Instant;
 import java.util.Objects;
 
 /**
@@ -16,6 +17,9 @@ import java.util.Objects;
  *
  * An object should be unique on its userId, client credentials, and refreshToken.
  *
+ * Access tokens only last an hour, so the credentials also carry when theirs expires. Credentials saved before we
+ * kept track of this have an expiry of 0, and are treated as already expired.
+ *
  * @see <a href="https://beta.developer.spotify.com/documentation/general/guides/authorization-guide/#authorization-code-flow">Authorization Code Flow</>
  */
 @JsonTypeInfo(use = JsonTypeInfo.Id.CLASS, include = JsonTypeInfo.As.PROPERTY, property = "@class")
@@ -27,6 +31,7 @@ public class SpotifyUserCredentials {
     private final String accessToken;
     private final String refreshToken;
     private final SpotifyClientCredentials clientCred;
+    private final long accessTokenExpiresAt;
 
     private SpotifyUserCredentials(final Builder builder) {
         this.userId = builder.userId;
@@ -34,6 +39,7 @@ public class SpotifyUserCredentials {
         this.accessToken = builder.accessToken;
         this.refreshToken = builder.refreshToken;
         this.clientCred = builder.clientCred;
+        this.accessTokenExpiresAt = builder.accessTokenExpiresAt;
     }
 
     public String getAccessToken() {
@@ -56,6 +62,20 @@ public class SpotifyUserCredentials {
         return clientCred;
     }
 
+    /**
+     * Epoch millis at which Spotify stops accepting the access token.
+     */
+    public long getAccessTokenExpiresAt() {
+        return accessTokenExpiresAt;
+    }
+
+    /**
+     * Whether the access token will still be accepted at the given time.
+     */
+    public boolean isAccessTokenValidAt(Instant time) {
+        return time.toEpochMilli() < accessTokenExpiresAt;
+    }
+
     @JsonPOJOBuilder(withPrefix = "set")
     static final class Builder {
         private String userId;
@@ -63,6 +83,7 @@ public class SpotifyUserCredentials {
         private String accessToken;
         private String refreshToken;
         private SpotifyClientCredentials clientCred;
+        private long accessTokenExpiresAt;
 
         Builder setUserId(String userId) {
             this.userId = userId;
@@ -89,6 +110,11 @@ public class SpotifyUserCredentials {
             return this;
         }
 
+        Builder setAccessTokenExpiresAt(long accessTokenExpiresAt) {
+            this.accessTokenExpiresAt = accessTokenExpiresAt;
+            return this;
+        }
+
         SpotifyUserCredentials build() {
             Validate.isTrue(clientCred.validate());
             Validate.notBlank(userId, accessToken, refreshToken);
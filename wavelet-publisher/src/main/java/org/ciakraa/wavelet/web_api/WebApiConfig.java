@@ -1,8 +1,13 @@
 package org.ciakraa.wavelet.web_api;
 
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.impl.client.cache.BasicHttpCacheStorage;
+import org.apache.http.impl.client.cache.CacheConfig;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
 import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
 import org.springframework.data.redis.core.RedisOperations;
@@ -10,6 +15,15 @@ import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.repository.configuration.EnableRedisRepositories;
 import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 @Configuration
 @EnableRedisRepositories
@@ -27,11 +41,192 @@ class WebApiConfig {
     @Value("${redis.port}")
     private int redisPort;
 
+    @Value("${spotify.rateLimit.permitsPerSecond:10}")
+    private double permitsPerSecond;
+
+    @Value("${spotify.rateLimit.burst:20}")
+    private int burst;
+
+    @Value("${spotify.maxConcurrentRequests:16}")
+    private int maxConcurrentRequests;
+
+    @Value("${spotify.http.maxConnections:32}")
+    private int maxConnections;
+
+    @Value("${spotify.http.keepAliveSeconds:60}")
+    private long keepAliveSeconds;
+
+    @Value("${spotify.http.connectTimeoutMillis:2000}")
+    private long connectTimeoutMillis;
+
+    @Value("${spotify.http.readTimeoutMillis:10000}")
+    private long readTimeoutMillis;
+
+    @Value("${spotify.http.warmUpConnections:2}")
+    private int warmUpConnections;
+
+    @Value("${spotify.http.cache.storage:memory}")
+    private String httpCacheStorage;
+
+    @Value("${spotify.http.cache.dir:${java.io.tmpdir}/wavelet-http-cache}")
+    private String httpCacheDir;
+
+    @Value("${spotify.http.cache.maxEntries:1000}")
+    private int httpCacheMaxEntries;
+
+    @Value("${spotify.http.cache.maxObjectBytes:262144}")
+    private int httpCacheMaxObjectBytes;
+
+    @Value("${spotify.circuitBreaker.windowSize:20}")
+    private int circuitWindowSize;
+
+    @Value("${spotify.circuitBreaker.minCalls:10}")
+    private int circuitMinCalls;
+
+    @Value("${spotify.circuitBreaker.failureRate:0.5}")
+    private double circuitFailureRate;
+
+    @Value("${spotify.circuitBreaker.slowCallMillis:5000}")
+    private long circuitSlowCallMillis;
+
+    @Value("${spotify.circuitBreaker.openSeconds:30}")
+    private long circuitOpenSeconds;
+
+    @Value("${spotify.circuitBreaker.halfOpenCalls:3}")
+    private int circuitHalfOpenCalls;
+
+    @Value("${spotify.tokenRefresh.batchSize:20}")
+    private int tokenRefreshBatchSize;
+
+    @Value("${spotify.audioFeatures.cacheSize:10000}")
+    private int audioFeaturesCacheSize;
+
+    @Value("${spotify.audioFeatures.redisTtlDays:30}")
+    private int audioFeaturesRedisTtlDays;
+
     @Bean
     SpotifyClientCredentials clientCred() {
         return new SpotifyClientCredentials(clientId, clientSecret);
     }
 
+    /**
+     * Spotify doesn't publish its rate limits, so the defaults are kept well below where we've seen 429s.
+     */
+    @Bean
+    SpotifyRateLimiter spotifyRateLimiter() {
+        return new SpotifyRateLimiter(permitsPerSecond, burst);
+    }
+
+    /**
+     * Async Spotify requests wait out rate limits and retries on this timer, which never does anything slow itself.
+     */
+    @Bean(destroyMethod="shutdownNow")
+    ScheduledExecutorService spotifyRetryTimer() {
+        return Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("spotify-retry-"));
+    }
+
+    /**
+     * Async Spotify requests block on HTTP here, rather than on the threads which asked for them.
+     */
+    @Bean
+    ThreadPoolTaskExecutor spotifyRequestExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(maxConcurrentRequests);
+        executor.setMaxPoolSize(maxConcurrentRequests);
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.setThreadNamePrefix("spotify-");
+        return executor;
+    }
+
+    @Bean
+    SpotifyRetryScheduler spotifyRetryScheduler() {
+        return new SpotifyRetryScheduler(spotifyRateLimiter(), spotifyRetryTimer(), spotifyRequestExecutor(),
+                WebApiConstants.RETRY_BASE_DELAY, WebApiConstants.RETRY_MAX_DELAY, WebApiConstants.RETRY_MAX_ATTEMPTS,
+                WebApiConstants.RETRY_DEADLINE);
+    }
+
+    /**
+     * Every Spotify request, sync or async, shares this pool. It should hold at least one connection per request
+     * thread, so requests never queue for a connection.
+     */
+    @Bean(destroyMethod="close")
+    SpotifyHttpTransport spotifyHttpTransport() throws IOException {
+        return new SpotifyHttpTransport(maxConnections, Duration.ofSeconds(keepAliveSeconds),
+                Duration.ofMillis(connectTimeoutMillis), Duration.ofMillis(readTimeoutMillis),
+                httpCacheStorage(), httpCacheMaxObjectBytes, spotifyCircuitBreaker());
+    }
+
+    /**
+     * A call slower than half the read timeout already counts against its endpoint, so a Spotify which is merely
+     * crawling trips the breaker well before every request is timing out.
+     */
+    @Bean
+    SpotifyCircuitBreaker spotifyCircuitBreaker() {
+        return new SpotifyCircuitBreaker(circuitWindowSize, circuitMinCalls, circuitFailureRate,
+                Duration.ofMillis(circuitSlowCallMillis), Duration.ofSeconds(circuitOpenSeconds), circuitHalfOpenCalls);
+    }
+
+    @Bean
+    SpotifyHttpCacheStats spotifyHttpCacheStats() throws IOException {
+        return spotifyHttpTransport().getCacheStats();
+    }
+
+    /**
+     * Responses are cached in memory by default. The disk store keeps them across restarts; "none" turns caching off.
+     */
+    private HttpCacheStorage httpCacheStorage() throws IOException {
+        switch (httpCacheStorage) {
+            case "memory":
+                return new BasicHttpCacheStorage(CacheConfig.custom().setMaxCacheEntries(httpCacheMaxEntries).build());
+            case "disk":
+                return new FileHttpCacheStorage(Paths.get(httpCacheDir), httpCacheMaxEntries);
+            case "none":
+                return null;
+            default:
+                throw new IllegalArgumentException("Unknown spotify.http.cache.storage: " + httpCacheStorage);
+        }
+    }
+
+    /**
+     * Handshakes happen once the app is up rather than on the first polls; an unreachable Spotify doesn't hold up startup.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    void warmUpSpotifyConnections() throws IOException {
+        spotifyHttpTransport().warmUp(WebApiConstants.SPOTIFY_HOSTS, warmUpConnections);
+    }
+
+    /**
+     * At most a batch of tokens is refreshed per run, so a burst of expiries (e.g. on startup, when every stored token
+     * is stale) is spread over a few runs rather than crowding polls out of the rate limiter.
+     */
+    @Bean(destroyMethod="stop")
+    SpotifyTokenRefresher spotifyTokenRefresher(SpotifyAuthorizationService authService, SpotifyAccessTokenCache tokenCache,
+                                                TaskScheduler taskScheduler) {
+        SpotifyTokenRefresher refresher = new SpotifyTokenRefresher(authService, tokenCache,
+                WebApiConstants.TOKEN_REFRESH_LEAD, tokenRefreshBatchSize);
+        refresher.start(taskScheduler);
+        return refresher;
+    }
+
+    /**
+     * Features are a few hundred bytes per track, so the default size costs a few megabytes of heap. In Redis, each
+     * track's features expire a fixed number of days after they were fetched; reads don't extend them.
+     */
+    @Bean
+    SpotifyAudioFeaturesCache spotifyAudioFeaturesCache(SpotifyActivityService activityService) {
+        return new SpotifyAudioFeaturesCache(activityService, spotifyAudioFeaturesBatcher(activityService), redisTemplate(),
+                audioFeaturesCacheSize, Duration.ofDays(audioFeaturesRedisTtlDays));
+    }
+
+    /**
+     * Batches are only sent from the retry timer; the requests themselves run on the Spotify request threads.
+     */
+    @Bean
+    SpotifyAudioFeaturesBatcher spotifyAudioFeaturesBatcher(SpotifyActivityService activityService) {
+        return new SpotifyAudioFeaturesBatcher(activityService, spotifyRetryTimer(), WebApiConstants.AUDIO_FEATURES_BATCH_WINDOW,
+                WebApiConstants.MAX_AUDIO_FEATURES_IDS);
+    }
+
     @Bean
     LettuceConnectionFactory redisConnectionFactory() {
         // Configure for real...
@@ -1,5 +1,11 @@
 package org.ciakraa.wavelet.web_api;
 
+import org.apache.http.HttpHost;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
 final class WebApiConstants {
 
     private WebApiConstants() {
@@ -11,6 +17,16 @@ final class WebApiConstants {
      */
     static final int MAX_RECENTLY_LISTENED_TO = 50;
 
+    /**
+     * The max number of track ids Spotify will take in one audio features request.
+     */
+    static final int MAX_AUDIO_FEATURES_IDS = 100;
+
+    /**
+     * Audio features lookups from every poll are collected for up to 50 millis, then sent to Spotify together.
+     */
+    static final Duration AUDIO_FEATURES_BATCH_WINDOW = Duration.ofMillis(50);
+
     /**
      * Redis key for a set of state strings.
      */
@@ -26,4 +42,45 @@ final class WebApiConstants {
      */
     static final String USERS_KEY = "users";
 
+    /**
+     * Redis key prefix for a track's audio features, shared by every publisher instance.
+     */
+    static final String AUDIO_FEATURES_KEY_PREFIX = "audio-features:";
+
+    /**
+     * Async retries back off exponentially from 1 second, up to 30 seconds between attempts.
+     */
+    static final Duration RETRY_BASE_DELAY = Duration.ofSeconds(1);
+
+    static final Duration RETRY_MAX_DELAY = Duration.ofSeconds(30);
+
+    /**
+     * An async request is attempted at most 4 times, and gives up if it can't succeed within a minute.
+     */
+    static final int RETRY_MAX_ATTEMPTS = 4;
+
+    static final Duration RETRY_DEADLINE = Duration.ofMinutes(1);
+
+    /**
+     * Access tokens are refreshed once they're within 5 minutes of expiring, so a token never expires mid-poll.
+     */
+    static final Duration ACCESS_TOKEN_REFRESH_MARGIN = Duration.ofMinutes(5);
+
+    /**
+     * Tokens are refreshed in the background 10 minutes ahead of expiry, well before polls would refresh them, in
+     * batches taken every 30 seconds. A failed background refresh is retried a minute later.
+     */
+    static final Duration TOKEN_REFRESH_LEAD = Duration.ofMinutes(10);
+
+    static final Duration TOKEN_REFRESH_PERIOD = Duration.ofSeconds(30);
+
+    static final Duration TOKEN_REFRESH_RETRY_DELAY = Duration.ofMinutes(1);
+
+    /**
+     * Hosts behind every request we send: the Web API itself, and the accounts service which refreshes tokens.
+     */
+    static final List<HttpHost> SPOTIFY_HOSTS = Arrays.asList(
+            new HttpHost("api.spotify.com", 443, "https"),
+            new HttpHost("accounts.spotify.com", 443, "https"));
+
 }
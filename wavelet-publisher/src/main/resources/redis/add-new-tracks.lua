@@ -0,0 +1,27 @@
+-- Adds a user's newly fetched tracks to their recently listened cache, trims the cache and renews its expiry,
+-- in one round trip.
+--
+-- KEYS[1]: the user's recently listened sorted set, scored by when each track was played.
+-- ARGV[1]: how many of the latest tracks to keep.
+-- ARGV[2]: how long (in seconds) the cache outlives the user's last new track.
+-- ARGV[3..n]: triples of track hash, played at timestamp and legacy member, for every track fetched.
+--
+-- Earlier versions cached each track under its json quoted key rather than its hash. A track still cached that way
+-- isn't new: its legacy member is swapped for its hash, so the cache converts itself as plays come back.
+--
+-- Returns the positions (from 1) of the tracks which weren't cached yet, in the order they were given.
+
+local added = {}
+local track = 0
+for i = 3, #ARGV, 3 do
+    track = track + 1
+    if redis.call('ZREM', KEYS[1], ARGV[i + 2]) == 1 then
+        redis.call('ZADD', KEYS[1], ARGV[i + 1], ARGV[i])
+    elseif redis.call('ZADD', KEYS[1], 'NX', ARGV[i + 1], ARGV[i]) == 1 then
+        added[#added + 1] = track
+    end
+end
+
+redis.call('ZREMRANGEBYRANK', KEYS[1], 0, -(tonumber(ARGV[1]) + 1))
+redis.call('EXPIRE', KEYS[1], ARGV[2])
+return added
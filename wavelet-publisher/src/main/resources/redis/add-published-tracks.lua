@@ -0,0 +1,32 @@
+-- Checks a batch of tracks against the published tracks filter, and adds them to it, in one round trip.
+--
+-- KEYS[1]: the current generation's bitmap, which every track is added to.
+-- KEYS[2]: the previous generation's bitmap, which is only read.
+-- ARGV[1]: how long (in seconds) the current generation outlives its last write.
+-- ARGV[2]: how many bits each track sets.
+-- ARGV[3..n]: the bit offsets of each track in turn, ARGV[2] per track.
+--
+-- Returns the positions (from 1) of the tracks which weren't in either generation, in the order they were given.
+
+local bits = tonumber(ARGV[2])
+local unpublished = {}
+local track = 0
+for i = 3, #ARGV, bits do
+    track = track + 1
+    local inCurrent = true
+    local inPrevious = true
+    for j = i, i + bits - 1 do
+        if redis.call('SETBIT', KEYS[1], ARGV[j], 1) == 0 then
+            inCurrent = false
+        end
+        if inPrevious and redis.call('GETBIT', KEYS[2], ARGV[j]) == 0 then
+            inPrevious = false
+        end
+    end
+    if not inCurrent and not inPrevious then
+        unpublished[#unpublished + 1] = track
+    end
+end
+
+redis.call('EXPIRE', KEYS[1], ARGV[1])
+return unpublished
@@ -0,0 +1,13 @@
+-- Caches a batch of tracks' audio features, each under its own key with its own expiry, in one round trip.
+--
+-- KEYS[1..n]: each track's audio features key.
+-- ARGV[1]: how long (in seconds) each track's features are kept.
+-- ARGV[2..n+1]: each track's audio features, in the same order as the keys.
+--
+-- Returns how many tracks were cached.
+
+for i = 1, #KEYS do
+    redis.call('SET', KEYS[i], ARGV[i + 1], 'EX', ARGV[1])
+end
+
+return #KEYS
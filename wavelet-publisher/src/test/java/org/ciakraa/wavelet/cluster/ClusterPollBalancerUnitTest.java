@@ -0,0 +1,237 @@
+package org.ciakraa.wavelet.cluster;
+
+import org.ciakraa.wavelet.event.ListenedTrackPollService;
+import org.ciakraa.wavelet.web_api.SpotifyUserCredentials;
+import org.ciakraa.wavelet.web_api.SpotifyUserService;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.core.BoundZSetOperations;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs several publisher instances in the same JVM, sharing an in-memory stand-in for the Redis membership set.
+ */
+public final class ClusterPollBalancerUnitTest {
+
+    private static final Duration LEASE = ClusterConstants.LEASE_DURATION;
+    private static final Duration HEARTBEAT = ClusterConstants.HEARTBEAT_PERIOD;
+
+    // Stand-in for the cluster:members sorted set.
+    private Map<Object, Double> redisMembers;
+    private BoundZSetOperations<String, Object> members;
+    private boolean redisDown;
+
+    private Set<SpotifyUserCredentials> users;
+    private SpotifyUserService userService;
+
+    private Instance nodeA;
+    private Instance nodeB;
+    private Instance nodeC;
+
+    private Instant now = Instant.parse("2018-06-03T21:14:00Z");
+
+    @Before
+    public void setUp() {
+        redisMembers = new HashMap<>();
+        members = mockMembers();
+
+        users = new LinkedHashSet<>();
+        for (int i = 0; i < 300; i++) {
+            users.add(mockUser("user-" + i));
+        }
+        userService = mock(SpotifyUserService.class);
+        when(userService.findAll()).thenAnswer(invocation -> new HashSet<>(users));
+
+        nodeA = new Instance("node-a");
+        nodeB = new Instance("node-b");
+        nodeC = new Instance("node-c");
+    }
+
+    @Test
+    public void shouldPollEveryUserExactlyOnceAcrossInstances() {
+        // Until the last instance has joined, the first ones each think they own more users than they do.
+        heartbeat(nodeA, nodeB, nodeC);
+        heartbeat(nodeA, nodeB, nodeC);
+
+        assertEachUserPolledOnceBy(nodeA, nodeB, nodeC);
+        assertThat(nodeA.polls).isNotEmpty();
+        assertThat(nodeB.polls).isNotEmpty();
+        assertThat(nodeC.polls).isNotEmpty();
+    }
+
+    @Test
+    public void shouldHandUsersToNewInstanceWhenItJoins() {
+        heartbeat(nodeA, nodeB);
+        heartbeat(nodeA, nodeB);
+        assertEachUserPolledOnceBy(nodeA, nodeB);
+
+        heartbeat(nodeC, nodeA, nodeB);
+        assertEachUserPolledOnceBy(nodeA, nodeB, nodeC);
+    }
+
+    @Test
+    public void shouldTakeOverUsersOfAnInstanceWhichDies() {
+        heartbeat(nodeA, nodeB, nodeC);
+        heartbeat(nodeA, nodeB, nodeC);
+        Set<String> orphaned = new HashSet<>(nodeC.polls);
+
+        // Node C stops heartbeating; it's still a member until its lease runs out.
+        heartbeatFor(LEASE.minus(HEARTBEAT), nodeA, nodeB);
+        assertThat(nodeA.polls).doesNotContainAnyElementsOf(orphaned);
+        assertThat(nodeB.polls).doesNotContainAnyElementsOf(orphaned);
+
+        heartbeat(nodeA, nodeB);
+        assertEachUserPolledOnceBy(nodeA, nodeB);
+        assertThat(redisMembers).containsOnlyKeys("node-a", "node-b");
+    }
+
+    @Test
+    public void shouldTakeOverUsersStraightAwayWhenAnInstanceLeaves() {
+        heartbeat(nodeA, nodeB, nodeC);
+        heartbeat(nodeA, nodeB, nodeC);
+
+        nodeC.balancer.stop();
+        heartbeat(nodeA, nodeB);
+        assertEachUserPolledOnceBy(nodeA, nodeB);
+    }
+
+    @Test
+    public void shouldPickUpNewUsersOnResync() {
+        heartbeat(nodeA, nodeB);
+        heartbeat(nodeA, nodeB);
+        users.add(mockUser("newcomer"));
+
+        heartbeat(nodeA, nodeB);
+        assertThat(nodeA.polls).doesNotContain("newcomer");
+        assertThat(nodeB.polls).doesNotContain("newcomer");
+
+        heartbeatFor(ClusterConstants.RESYNC_PERIOD, nodeA, nodeB);
+        assertEachUserPolledOnceBy(nodeA, nodeB);
+    }
+
+    @Test
+    public void shouldStopPollingWhenLeaseCannotBeRenewed() {
+        heartbeat(nodeA);
+        assertEachUserPolledOnceBy(nodeA);
+
+        redisDown = true;
+        heartbeat(nodeA);
+        assertEachUserPolledOnceBy(nodeA);
+
+        heartbeatFor(LEASE, nodeA);
+        assertThat(nodeA.polls).isEmpty();
+
+        redisDown = false;
+        heartbeat(nodeA);
+        assertEachUserPolledOnceBy(nodeA);
+    }
+
+    /**
+     * Advances the clock by one heartbeat period, and beats each instance in turn.
+     */
+    private void heartbeat(Instance... instances) {
+        now = now.plus(HEARTBEAT);
+        for (Instance instance : instances) {
+            instance.balancer.heartbeat(now);
+        }
+    }
+
+    private void heartbeatFor(Duration duration, Instance... instances) {
+        for (long beats = duration.toMillis() / HEARTBEAT.toMillis(); beats > 0; beats--) {
+            heartbeat(instances);
+        }
+    }
+
+    private void assertEachUserPolledOnceBy(Instance... instances) {
+        List<String> polled = new ArrayList<>();
+        for (Instance instance : instances) {
+            polled.addAll(instance.polls);
+        }
+
+        Set<String> userIds = new HashSet<>();
+        users.forEach(user -> userIds.add(user.getUserId()));
+        assertThat(polled).doesNotHaveDuplicates();
+        assertThat(polled).containsExactlyInAnyOrderElementsOf(userIds);
+    }
+
+    private SpotifyUserCredentials mockUser(String userId) {
+        SpotifyUserCredentials userCred = mock(SpotifyUserCredentials.class);
+        when(userCred.getUserId()).thenReturn(userId);
+        return userCred;
+    }
+
+    @SuppressWarnings("unchecked")
+    private BoundZSetOperations<String, Object> mockMembers() {
+        BoundZSetOperations<String, Object> zSet = mock(BoundZSetOperations.class);
+        when(zSet.add(any(), anyDouble())).thenAnswer(invocation -> {
+            checkRedis();
+            return redisMembers.put(invocation.getArgument(0), invocation.getArgument(1)) == null;
+        });
+        doAnswer(invocation -> {
+            checkRedis();
+            double min = invocation.getArgument(0);
+            double max = invocation.getArgument(1);
+            redisMembers.values().removeIf(score -> score >= min && score <= max);
+            return null;
+        }).when(zSet).removeRangeByScore(anyDouble(), anyDouble());
+        when(zSet.rangeByScore(anyDouble(), anyDouble())).thenAnswer(invocation -> {
+            checkRedis();
+            double min = invocation.getArgument(0);
+            double max = invocation.getArgument(1);
+            Set<Object> inRange = new LinkedHashSet<>();
+            redisMembers.forEach((member, score) -> {
+                if (score >= min && score <= max) {
+                    inRange.add(member);
+                }
+            });
+            return inRange;
+        });
+        when(zSet.remove(any())).thenAnswer(invocation -> {
+            checkRedis();
+            return redisMembers.remove(invocation.getArgument(0)) == null ? 0L : 1L;
+        });
+        return zSet;
+    }
+
+    private void checkRedis() {
+        if (redisDown) {
+            throw new IllegalStateException("Redis is down");
+        }
+    }
+
+    /**
+     * A publisher instance, whose poll service just records which users it's polling.
+     */
+    private final class Instance {
+
+        private final Set<String> polls = new HashSet<>();
+        private final ClusterPollBalancer balancer;
+
+        private Instance(String nodeId) {
+            ListenedTrackPollService pollService = mock(ListenedTrackPollService.class);
+            doAnswer(invocation -> polls.add(invocation.<SpotifyUserCredentials>getArgument(0).getUserId()))
+                    .when(pollService).addPolls(any());
+            when(pollService.cancelPolls(any())).thenAnswer(invocation -> polls.remove(invocation.<String>getArgument(0)));
+            when(pollService.getUserIds()).thenAnswer(invocation -> new HashSet<>(polls));
+
+            ClusterMembership membership = new ClusterMembership(nodeId, LEASE, members);
+            balancer = new ClusterPollBalancer(membership, userService, pollService, LEASE);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.ciakraa.wavelet.cluster;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.assertj.core.api.Assertions.assertThatNullPointerException;
+
+public final class ConsistentHashRingUnitTest {
+
+    private static final int USERS = 10000;
+    private static final List<String> NODES = Arrays.asList("node-a", "node-b", "node-c", "node-d");
+
+    @Test
+    public void shouldThrowExceptionsWhenPassedInvalidArgs() {
+        assertThatIllegalArgumentException().isThrownBy(() -> new ConsistentHashRing(Collections.emptyList(), 1));
+        assertThatIllegalArgumentException().isThrownBy(() -> new ConsistentHashRing(NODES, 0));
+        assertThatNullPointerException().isThrownBy(() -> new ConsistentHashRing(NODES, 1).getNode(null));
+    }
+
+    @Test
+    public void shouldGiveEveryUserToTheOnlyNode() {
+        ConsistentHashRing ring = new ConsistentHashRing(Collections.singletonList("node-a"), ClusterConstants.VIRTUAL_NODES);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(ring.getNode("user-" + i)).isEqualTo("node-a");
+        }
+    }
+
+    @Test
+    public void shouldSpreadUsersEvenlyAcrossNodes() {
+        ConsistentHashRing ring = new ConsistentHashRing(NODES, ClusterConstants.VIRTUAL_NODES);
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < USERS; i++) {
+            counts.merge(ring.getNode("user-" + i), 1, Integer::sum);
+        }
+
+        // 2500 users per node if perfectly even.
+        assertThat(counts).containsOnlyKeys(NODES.toArray(new String[0]));
+        counts.values().forEach(count -> assertThat(count).isBetween(2000, 3000));
+    }
+
+    @Test
+    public void shouldOnlyMoveUsersToANodeWhichJoins() {
+        ConsistentHashRing before = new ConsistentHashRing(NODES, ClusterConstants.VIRTUAL_NODES);
+        ConsistentHashRing after = new ConsistentHashRing(Arrays.asList("node-a", "node-b", "node-c", "node-d", "node-e"),
+                ClusterConstants.VIRTUAL_NODES);
+
+        int moved = 0;
+        for (int i = 0; i < USERS; i++) {
+            String userId = "user-" + i;
+            if (!before.getNode(userId).equals(after.getNode(userId))) {
+                assertThat(after.getNode(userId)).isEqualTo("node-e");
+                moved++;
+            }
+        }
+
+        // The new node should take about a fifth of the users.
+        assertThat(moved).isBetween(1500, 2500);
+    }
+}
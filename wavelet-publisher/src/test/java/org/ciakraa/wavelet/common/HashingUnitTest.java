@@ -0,0 +1,29 @@
+package org.ciakraa.wavelet.common;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class HashingUnitTest {
+
+    @Test
+    public void shouldMatchFnv1aTestVectors() {
+        assertThat(Hashing.fnv1a("")).isEqualTo(0xcbf29ce484222325L);
+        assertThat(Hashing.fnv1a("a")).isEqualTo(0xaf63dc4c8601ec8cL);
+        assertThat(Hashing.fnv1a("foobar")).isEqualTo(0x85944171f73967e8L);
+    }
+
+    @Test
+    public void shouldCarryOnHashOverMoreInput() {
+        assertThat(Hashing.fnv1a(Hashing.fnv1a("foo"), "bar")).isEqualTo(Hashing.fnv1a("foobar"));
+
+        // A long is hashed as its 8 bytes, lowest first.
+        assertThat(Hashing.fnv1a(Hashing.fnv1a("foo"), 'a' | (long) 'b' << 8)).isEqualTo(Hashing.fnv1a("fooab\0\0\0\0\0\0"));
+    }
+
+    @Test
+    public void shouldMatchMurmur3Finalizer() {
+        assertThat(Hashing.mix(0)).isZero();
+        assertThat(Hashing.mix(1)).isEqualTo(0xb456bcfc34c2cb2cL);
+    }
+}
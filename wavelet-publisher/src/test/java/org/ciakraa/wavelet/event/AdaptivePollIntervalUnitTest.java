@@ -0,0 +1,60 @@
+package org.ciakraa.wavelet.event;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.OptionalLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+public final class AdaptivePollIntervalUnitTest {
+
+    private static final Duration FLOOR = Duration.ofMinutes(5);
+    private static final Duration CEILING = Duration.ofMinutes(20);
+    private static final Instant NOW = Instant.parse("2018-06-03T21:14:00Z");
+
+    private final AdaptivePollInterval target = new AdaptivePollInterval(FLOOR, CEILING);
+
+    @Test
+    public void shouldThrowExceptionWhenPassedInvalidArgs() {
+        assertThatIllegalArgumentException().isThrownBy(() -> new AdaptivePollInterval(Duration.ZERO, CEILING));
+        assertThatIllegalArgumentException().isThrownBy(() -> new AdaptivePollInterval(CEILING, FLOOR));
+        assertThatIllegalArgumentException().isThrownBy(() -> new AdaptivePollInterval(FLOOR, EventConstants.MAX_POLL_CEILING));
+    }
+
+    @Test
+    public void shouldPollAtFloorWhenUserIsListeningNow() {
+        assertThat(getNextInterval(Duration.ofMinutes(1))).isEqualTo(FLOOR);
+    }
+
+    @Test
+    public void shouldBackOffAsUserGoesIdle() {
+        assertThat(getNextInterval(Duration.ofMinutes(30))).isEqualTo(Duration.ofMinutes(15));
+        assertThat(getNextInterval(Duration.ofMinutes(36))).isEqualTo(Duration.ofMinutes(18));
+    }
+
+    @Test
+    public void shouldPollAtCeilingWhenUserHasBeenIdleForHours() {
+        assertThat(getNextInterval(Duration.ofDays(14))).isEqualTo(CEILING);
+    }
+
+    @Test
+    public void shouldPollAtCeilingWhenUserHasNoPlays() {
+        assertThat(target.getNextInterval(OptionalLong::empty, NOW)).isEqualTo(CEILING);
+    }
+
+    @Test
+    public void shouldNeverLookUpLastPlayForFixedIntervals() {
+        PollInterval fixed = PollInterval.fixed(EventConstants.POLL_PERIOD);
+
+        assertThat(fixed.getNextInterval(() -> {
+            throw new AssertionError("Last play was looked up");
+        }, NOW)).isEqualTo(EventConstants.POLL_PERIOD);
+    }
+
+    private Duration getNextInterval(Duration idle) {
+        return target.getNextInterval(() -> OptionalLong.of(NOW.minus(idle).getEpochSecond()), NOW);
+    }
+}
@@ -0,0 +1,122 @@
+package org.ciakraa.wavelet.event;
+
+import org.ciakraa.wavelet.common.CommonUnitTest;
+import org.ciakraa.wavelet.web_api.SpotifyAccessTokenCache;
+import org.ciakraa.wavelet.web_api.SpotifyTokenRefresher;
+import org.ciakraa.wavelet.web_api.SpotifyUserCredentials;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatNullPointerException;
+import static org.ciakraa.wavelet.common.CommonTestConstants.USER_ID;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public final class ListenedTrackPollServiceUnitTest extends CommonUnitTest {
+
+    @Mock
+    private ListenedTrackService listenedTrackService;
+
+    @Mock
+    private SpotifyAccessTokenCache tokenCache;
+
+    @Mock
+    private SpotifyTokenRefresher tokenRefresher;
+
+    @Mock
+    private SpotifyUserCredentials otherUserCred;
+
+    // Polls are never run, so they need no publisher; we only care about what's on the wheel.
+    private PollTimingWheel pollWheel;
+
+    private ListenedTrackPollService target;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(userCred.getUserId()).thenReturn(USER_ID);
+        when(otherUserCred.getUserId()).thenReturn("other" + USER_ID);
+
+        pollWheel = new PollTimingWheel(Duration.ofSeconds(1), 8, poll -> {});
+        target = new ListenedTrackPollService(pollWheel, listenedTrackService, tokenCache, tokenRefresher, null,
+                PollInterval.fixed(EventConstants.POLL_PERIOD), Runnable::run);
+    }
+
+    @Test
+    public void shouldThrowExceptionWhenPassedInvalidArgs() {
+        assertThatNullPointerException().isThrownBy(() -> target.addPolls(null));
+    }
+
+    @Test
+    public void shouldReplaceExistingPollWhenUserIsAddedAgain() {
+        target.addPolls(userCred);
+        target.addPolls(userCred);
+        target.addPolls(userCred);
+
+        assertThat(target.getActivePollCount()).isEqualTo(1);
+        assertThat(pollWheel.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldPollEachUser() {
+        target.addPolls(userCred);
+        target.addPolls(otherUserCred);
+
+        assertThat(target.getActivePollCount()).isEqualTo(2);
+        assertThat(pollWheel.size()).isEqualTo(2);
+        assertThat(target.getUserIds()).containsExactlyInAnyOrder(USER_ID, "other" + USER_ID);
+        verify(tokenRefresher).track(userCred);
+        verify(tokenRefresher).track(otherUserCred);
+    }
+
+    @Test
+    public void shouldCancelPolls() {
+        target.addPolls(userCred);
+        target.addPolls(otherUserCred);
+
+        assertThat(target.cancelPolls(USER_ID)).isTrue();
+        assertThat(target.cancelPolls(USER_ID)).isFalse();
+        assertThat(target.getActivePollCount()).isEqualTo(1);
+        assertThat(pollWheel.size()).isEqualTo(1);
+        verify(tokenRefresher).untrack(USER_ID);
+        verify(tokenCache).forget(USER_ID);
+        verify(listenedTrackService).forget(USER_ID);
+    }
+
+    @Test
+    public void shouldPauseAndResumePolls() {
+        target.addPolls(userCred);
+
+        assertThat(target.pausePolls(USER_ID)).isTrue();
+        assertThat(target.pausePolls(USER_ID)).isTrue();
+        assertThat(target.getActivePollCount()).isEqualTo(0);
+        assertThat(pollWheel.size()).isEqualTo(0);
+
+        assertThat(target.resumePolls(USER_ID)).isTrue();
+        assertThat(target.resumePolls(USER_ID)).isTrue();
+        assertThat(target.getActivePollCount()).isEqualTo(1);
+        assertThat(pollWheel.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotPauseOrResumeUnknownUsers() {
+        assertThat(target.pausePolls(USER_ID)).isFalse();
+        assertThat(target.resumePolls(USER_ID)).isFalse();
+        assertThat(target.getActivePollCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldResumeAPausedPollWhenUserIsAddedAgain() {
+        target.addPolls(userCred);
+        target.pausePolls(USER_ID);
+        target.addPolls(userCred);
+
+        assertThat(target.getActivePollCount()).isEqualTo(1);
+        assertThat(pollWheel.size()).isEqualTo(1);
+    }
+}
@@ -1,30 +1,49 @@
 package org.ciakraa.wavelet.event;
 
 import org.ciakraa.wavelet.common.CommonUnitTest;
-import org.ciakraa.wavelet.web_api.SpotifyAuthorizationService;
+import org.ciakraa.wavelet.web_api.SpotifyAccessTokenCache;
+import org.ciakraa.wavelet.web_api.SpotifyCircuitOpenException;
 import org.ciakraa.wavelet.web_api.SpotifyUnauthorizedException;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.data.redis.RedisConnectionFailureException;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
 
 import static java.util.Collections.emptyList;
+import static java.util.concurrent.CompletableFuture.completedFuture;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.ciakraa.wavelet.common.CommonTestConstants.TRACK_ONE_PLAYED_AT_TIMESTAMP;
+import static org.ciakraa.wavelet.event.EventConstants.MAX_RECENTLY_LISTENED_TO;
 import static org.ciakraa.wavelet.event.EventConstants.POLL_COUNT;
+import static org.ciakraa.wavelet.event.EventConstants.POLL_PERIOD;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public final class ListenedTrackPollUnitTest extends CommonUnitTest {
 
+    // A track every 30s over the adaptive poll's 20 minute ceiling.
+    private static final int CEILING_POLL_COUNT = 40;
+
     @Mock
     private ListenedTrackService listenedTrackService;
 
     @Mock
-    private SpotifyAuthorizationService authService;
+    private SpotifyAccessTokenCache tokenCache;
 
     // Manually mock the interface to store tracks from publish(events) in a list that we can verify.
     private UserEventPublisher<ListenedTrack> eventPublisher;
@@ -46,35 +65,228 @@ public final class ListenedTrackPollUnitTest extends CommonUnitTest {
 
         target = new ListenedTrackPoll.Builder()
                 .setUserCred(userCred)
-                .setAuthService(authService)
+                .setTokenCache(tokenCache)
                 .setEventPublisher(eventPublisher)
                 .setListenedTrackService(listenedTrackService)
                 .build();
     }
 
     @Test
-    public void shouldPublishNothingWhenUserRefreshThrowsException() throws SpotifyUnauthorizedException {
-        when(authService.refreshUser(userCred)).thenThrow(new SpotifyUnauthorizedException());
+    public void shouldPublishNothingWhenUserRefreshThrowsException() {
+        when(tokenCache.getAuthorizedUserAsync(userCred)).thenReturn(failed(new SpotifyUnauthorizedException()));
+
+        target.run();
+        assertThat(publishedTracks).isEmpty();
+    }
+
+    @Test
+    public void shouldPublishNothingWhenNoTracksAreReturned() {
+        when(tokenCache.getAuthorizedUserAsync(userCred)).thenReturn(completedFuture(Optional.of(userCred)));
+        when(listenedTrackService.getUniqueRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(), any())).thenReturn(completedFuture(emptyList()));
+
+        target.run();
+        assertThat(publishedTracks).isEmpty();
+    }
+
+    @Test
+    public void shouldPublishTracks() {
+        when(tokenCache.getAuthorizedUserAsync(userCred)).thenReturn(completedFuture(Optional.of(userCred)));
+        when(listenedTrackService.getUniqueRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(), any())).thenReturn(completedFuture(getListenedTracks()));
+
+        target.run();
+        assertListenedTracks(publishedTracks);
+    }
+
+    @Test
+    public void shouldKeepPollPeriodWhenIntervalIsFixed() {
+        when(tokenCache.getAuthorizedUserAsync(userCred)).thenReturn(completedFuture(Optional.of(userCred)));
+        when(listenedTrackService.getUniqueRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(), any())).thenReturn(completedFuture(emptyList()));
+
+        target.run();
+        assertThat(target.getNextDelay()).isEqualTo(POLL_PERIOD);
+        verify(listenedTrackService, never()).getLastPlayedAt(any());
+    }
+
+    @Test
+    public void shouldPaceNextPollByLatestNewTrack() {
+        target = buildAdaptivePoll();
+        when(tokenCache.getAuthorizedUserAsync(userCred)).thenReturn(completedFuture(Optional.of(userCred)));
+        when(listenedTrackService.getUniqueRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(), any())).thenReturn(completedFuture(getListenedTracks()));
+
+        target.run();
+        assertThat(target.getNextDelay()).isEqualTo(Duration.ofMinutes(20));
+        verify(listenedTrackService, never()).getLastPlayedAt(any());
+    }
+
+    @Test
+    public void shouldPaceNextPollByCachedLastPlayWhenNoNewTracks() {
+        target = buildAdaptivePoll();
+        when(tokenCache.getAuthorizedUserAsync(userCred)).thenReturn(completedFuture(Optional.of(userCred)));
+        when(listenedTrackService.getUniqueRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(), any())).thenReturn(completedFuture(emptyList()));
+        when(listenedTrackService.getLastPlayedAt(userCred)).thenReturn(OptionalLong.empty());
+
+        target.run();
+        assertThat(target.getNextDelay()).isEqualTo(Duration.ofMinutes(20));
+    }
+
+    @Test
+    public void shouldKeepIntervalWhenLastPlayCannotBeLookedUp() {
+        target = buildAdaptivePoll();
+        when(tokenCache.getAuthorizedUserAsync(userCred)).thenReturn(completedFuture(Optional.of(userCred)));
+        when(listenedTrackService.getUniqueRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(), any())).thenReturn(completedFuture(emptyList()));
+        when(listenedTrackService.getLastPlayedAt(userCred)).thenThrow(new RedisConnectionFailureException("down"));
+
+        target.run();
+        assertThat(target.getNextDelay()).isEqualTo(POLL_PERIOD);
+    }
+
+    @Test
+    public void shouldFetchEnoughTracksToCoverLongerIntervals() {
+        target = buildAdaptivePoll();
+        when(tokenCache.getAuthorizedUserAsync(userCred)).thenReturn(completedFuture(Optional.of(userCred)));
+        when(listenedTrackService.getUniqueRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(), any())).thenReturn(completedFuture(emptyList()));
+        when(listenedTrackService.getUniqueRecentlyListenedAsync(eq(userCred), eq(CEILING_POLL_COUNT), any(), any())).thenReturn(completedFuture(emptyList()));
+        when(listenedTrackService.getLastPlayedAt(userCred)).thenReturn(OptionalLong.of(TRACK_ONE_PLAYED_AT_TIMESTAMP));
+
+        target.run();
+        assertThat(target.getPollCount()).isEqualTo(CEILING_POLL_COUNT);
+
+        target.run();
+        verify(listenedTrackService).getUniqueRecentlyListenedAsync(eq(userCred), eq(CEILING_POLL_COUNT), any(), any());
+    }
+
+    @Test
+    public void shouldNotPublishUntilTracksArrive() {
+        CompletableFuture<List<ListenedTrack>> tracks = new CompletableFuture<>();
+        when(tokenCache.getAuthorizedUserAsync(userCred)).thenReturn(completedFuture(Optional.of(userCred)));
+        when(listenedTrackService.getUniqueRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(), any())).thenReturn(tracks);
+
+        CompletionStage<?> poll = target.runAsync(PollDeadline.unbounded());
+        assertThat(poll.toCompletableFuture()).isNotDone();
+        assertThat(publishedTracks).isEmpty();
+
+        tracks.complete(getListenedTracks());
+        assertThat(poll.toCompletableFuture()).isDone();
+        assertListenedTracks(publishedTracks);
+    }
+
+    @Test
+    public void shouldCompleteNormallyWhenFetchingTracksFails() {
+        when(tokenCache.getAuthorizedUserAsync(userCred)).thenReturn(completedFuture(Optional.of(userCred)));
+        when(listenedTrackService.getUniqueRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(), any()))
+                .thenReturn(failed(new IllegalStateException("Redis is down")));
+
+        assertThat(target.runAsync(PollDeadline.unbounded()).toCompletableFuture()).isCompletedWithValue(null);
+        assertThat(publishedTracks).isEmpty();
+    }
+
+    @Test
+    public void shouldRefreshRejectedTokenAndFetchAgain() {
+        when(tokenCache.getAuthorizedUserAsync(userCred)).thenReturn(completedFuture(Optional.of(userCred)));
+        when(tokenCache.refreshRejectedUserAsync(userCred)).thenReturn(completedFuture(Optional.of(userCred)));
+        when(listenedTrackService.getUniqueRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(), any()))
+                .thenReturn(failed(new SpotifyUnauthorizedException()))
+                .thenReturn(completedFuture(getListenedTracks()));
+
+        target.run();
+        assertListenedTracks(publishedTracks);
+        verify(tokenCache).refreshRejectedUserAsync(userCred);
+    }
+
+    @Test
+    public void shouldPublishNothingWhenRefreshedTokenIsRejectedToo() {
+        when(tokenCache.getAuthorizedUserAsync(userCred)).thenReturn(completedFuture(Optional.of(userCred)));
+        when(tokenCache.refreshRejectedUserAsync(userCred)).thenReturn(completedFuture(Optional.of(userCred)));
+        when(listenedTrackService.getUniqueRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(), any())).thenReturn(failed(new SpotifyUnauthorizedException()));
 
         target.run();
         assertThat(publishedTracks).isEmpty();
+        verify(listenedTrackService, times(2)).getUniqueRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(), any());
     }
 
     @Test
-    public void shouldPublishNothingWhenNoTracksAreReturned() throws SpotifyUnauthorizedException {
-        when(authService.refreshUser(userCred)).thenReturn(Optional.of(userCred));
-        when(listenedTrackService.getUniqueRecentlyListened(userCred, POLL_COUNT)).thenReturn(emptyList());
+    public void shouldDeferPollWhileCircuitIsOpen() {
+        Duration retryAfter = Duration.ofSeconds(30);
+        when(tokenCache.getAuthorizedUserAsync(userCred)).thenReturn(completedFuture(Optional.of(userCred)));
+        when(listenedTrackService.getUniqueRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(), any()))
+                .thenReturn(failed(new SpotifyCircuitOpenException("api.spotify.com/v1/me/player/recently-played", retryAfter)));
 
         target.run();
         assertThat(publishedTracks).isEmpty();
+        assertThat(target.getNextDelay()).isBetween(retryAfter, retryAfter.multipliedBy(2));
+        assertThat(target.getPollCount()).isEqualTo(MAX_RECENTLY_LISTENED_TO);
     }
 
     @Test
-    public void shouldPublishTracks() throws SpotifyUnauthorizedException {
-        when(authService.refreshUser(userCred)).thenReturn(Optional.of(userCred));
-        when(listenedTrackService.getUniqueRecentlyListened(userCred, POLL_COUNT)).thenReturn(getListenedTracks());
+    public void shouldCatchUpAndResumePeriodOnceCircuitCloses() {
+        when(tokenCache.getAuthorizedUserAsync(userCred)).thenReturn(completedFuture(Optional.of(userCred)));
+        when(listenedTrackService.getUniqueRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(), any()))
+                .thenReturn(failed(new SpotifyCircuitOpenException("api.spotify.com/v1/me/player/recently-played", Duration.ofSeconds(30))));
+        when(listenedTrackService.getUniqueRecentlyListenedAsync(eq(userCred), eq(MAX_RECENTLY_LISTENED_TO), any(), any()))
+                .thenReturn(completedFuture(getListenedTracks()));
 
         target.run();
+        target.run();
+        assertListenedTracks(publishedTracks);
+        assertThat(target.getNextDelay()).isEqualTo(POLL_PERIOD);
+        assertThat(target.getPollCount()).isEqualTo(POLL_COUNT);
+    }
+
+    @Test
+    public void shouldPublishOnPollWorkers() {
+        List<Runnable> steps = new ArrayList<>();
+        ListenedTrackPoll poll = new ListenedTrackPoll.Builder()
+                .setUserCred(userCred)
+                .setTokenCache(tokenCache)
+                .setEventPublisher(eventPublisher)
+                .setListenedTrackService(listenedTrackService)
+                .setWorkers(steps::add)
+                .build();
+        when(tokenCache.getAuthorizedUserAsync(userCred)).thenReturn(completedFuture(Optional.of(userCred)));
+        when(listenedTrackService.getUniqueRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(), any())).thenReturn(completedFuture(getListenedTracks()));
+
+        CompletableFuture<?> done = poll.runAsync(PollDeadline.unbounded()).toCompletableFuture();
+
+        // Fetching the tracks, then publishing them, each wait for a worker.
+        while (!steps.isEmpty()) {
+            assertThat(done).isNotDone();
+            steps.remove(0).run();
+        }
+        assertThat(done).isDone();
         assertListenedTracks(publishedTracks);
     }
+
+    @Test
+    public void shouldStillFinishRunWhenPollWorkersAreSaturated() {
+        ListenedTrackPoll poll = new ListenedTrackPoll.Builder()
+                .setUserCred(userCred)
+                .setTokenCache(tokenCache)
+                .setEventPublisher(eventPublisher)
+                .setListenedTrackService(listenedTrackService)
+                .setWorkers(step -> {
+                    throw new RejectedExecutionException();
+                })
+                .build();
+        when(tokenCache.getAuthorizedUserAsync(userCred)).thenReturn(completedFuture(Optional.of(userCred)));
+        when(listenedTrackService.getUniqueRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(), any())).thenReturn(completedFuture(getListenedTracks()));
+
+        poll.run();
+        assertListenedTracks(publishedTracks);
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    private ListenedTrackPoll buildAdaptivePoll() {
+        return new ListenedTrackPoll.Builder()
+                .setUserCred(userCred)
+                .setTokenCache(tokenCache)
+                .setEventPublisher(eventPublisher)
+                .setListenedTrackService(listenedTrackService)
+                .setPollInterval(new AdaptivePollInterval(Duration.ofMinutes(5), Duration.ofMinutes(20)))
+                .build();
+    }
 }
@@ -1,22 +1,57 @@
 package org.ciakraa.wavelet.event;
 
+import com.wrapper.spotify.model_objects.specification.AudioFeatures;
 import org.ciakraa.wavelet.common.CommonUnitTest;
+import org.ciakraa.wavelet.event.RecentlyPlayedReader.RecentPlays;
 import org.ciakraa.wavelet.web_api.SpotifyActivityService;
+import org.ciakraa.wavelet.web_api.SpotifyAudioFeaturesCache;
 import org.ciakraa.wavelet.web_api.SpotifyUnauthorizedException;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
-import org.springframework.data.redis.core.BoundZSetOperations;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.connection.DefaultTuple;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.BoundValueOperations;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.util.Collections.emptyList;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.ciakraa.wavelet.event.EventConstants.*;
 import static org.ciakraa.wavelet.common.CommonTestConstants.*;
@@ -27,25 +62,41 @@ public final class ListenedTrackServiceUnitTest extends CommonUnitTest {
     @Mock
     private SpotifyActivityService activityService;
 
+    @Mock
+    private SpotifyAudioFeaturesCache featuresCache;
+
     @Mock
     private RedisOperations<String, Object> redis;
 
     @Mock
-    private BoundZSetOperations trackCache;
+    private RedisConnection connection;
+
+    @Mock
+    private BoundValueOperations<String, Object> cursor;
+
+    @Mock
+    private PublishedTrackFilter publishedFilter;
+
+    // The keys and args the add new tracks script was last run with.
+    private RedisSerializer<?> scriptArgsSerializer;
+    private List<String> scriptKeys;
+    private List<Object> scriptArgs;
 
     private ListenedTrackService target;
 
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
+        when(userCred.getUserId()).thenReturn(USER_ID);
         mockRedis();
+        when(publishedFilter.addUnpublished(anyList())).then(answer -> answer.getArgument(0));
 
-        target = new ListenedTrackService(activityService, redis);
+        target = new ListenedTrackService(activityService, featuresCache, redis, publishedFilter);
     }
 
     @Test
     public void shouldReturnEmptyListWhenNoRecentlyListenedTracks() throws SpotifyUnauthorizedException {
-        when(activityService.getRecentlyListened(userCred, POLL_COUNT)).thenReturn(emptyList());
+        when(activityService.readRecentlyListened(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenReturn(Optional.empty());
 
         List<ListenedTrack> tracks = target.getUniqueRecentlyListened(userCred, POLL_COUNT);
         assertThat(tracks).isEmpty();
@@ -53,7 +104,7 @@ public final class ListenedTrackServiceUnitTest extends CommonUnitTest {
 
     @Test
     public void shouldReturnEmptyListWhenListenedTracksThrowSpotifyUnauthorizedException() throws SpotifyUnauthorizedException {
-        when(activityService.getRecentlyListened(userCred, POLL_COUNT)).thenThrow(new SpotifyUnauthorizedException());
+        when(activityService.readRecentlyListened(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenThrow(new SpotifyUnauthorizedException());
 
         List<ListenedTrack> tracks = target.getUniqueRecentlyListened(userCred, POLL_COUNT);
         assertThat(tracks).isEmpty();
@@ -61,8 +112,8 @@ public final class ListenedTrackServiceUnitTest extends CommonUnitTest {
 
     @Test
     public void shouldReturnEmptyListWhenNoAudioFeatures() throws SpotifyUnauthorizedException {
-        when(activityService.getRecentlyListened(userCred, POLL_COUNT)).thenReturn(getPlayHistories());
-        when(activityService.getAudioFeatures(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(emptyList());
+        when(activityService.readRecentlyListened(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenReturn(Optional.of(getRecentPlays()));
+        when(featuresCache.getAudioFeatures(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(emptyList());
 
         List<ListenedTrack> tracks = target.getUniqueRecentlyListened(userCred, POLL_COUNT);
         assertThat(tracks).isEmpty();
@@ -70,8 +121,8 @@ public final class ListenedTrackServiceUnitTest extends CommonUnitTest {
 
     @Test
     public void shouldReturnEmptyListWhenAudioFeaturesThrowSpotifyUnauthorizedException() throws SpotifyUnauthorizedException {
-        when(activityService.getRecentlyListened(userCred, POLL_COUNT)).thenReturn(getPlayHistories());
-        when(activityService.getAudioFeatures(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenThrow(new SpotifyUnauthorizedException());
+        when(activityService.readRecentlyListened(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenReturn(Optional.of(getRecentPlays()));
+        when(featuresCache.getAudioFeatures(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenThrow(new SpotifyUnauthorizedException());
 
         List<ListenedTrack> tracks = target.getUniqueRecentlyListened(userCred, POLL_COUNT);
         assertThat(tracks).isEmpty();
@@ -79,12 +130,10 @@ public final class ListenedTrackServiceUnitTest extends CommonUnitTest {
 
     @Test
     public void shouldNotReturnAnyTracksFoundInCache() throws SpotifyUnauthorizedException {
-        when(activityService.getRecentlyListened(userCred, POLL_COUNT)).thenReturn(getPlayHistories());
-        when(activityService.getAudioFeatures(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(getAudioFeatures());
+        when(activityService.readRecentlyListened(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenReturn(Optional.of(getRecentPlays()));
+        when(featuresCache.getAudioFeatures(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(getAudioFeatures());
 
-        String trackOneKey =  ListenedTrackService.getListenedTrackKey(getPlayHistories().get(0), userCred);
-        String trackTwoKey =  ListenedTrackService.getListenedTrackKey(getPlayHistories().get(1), userCred);
-        when(trackCache.range(0, -1)).thenReturn(new HashSet<>(Arrays.asList(trackOneKey, trackTwoKey)));
+        mockCachedTracks(getListenedTracks().get(0), getListenedTracks().get(1));
 
         List<ListenedTrack> tracks = target.getUniqueRecentlyListened(userCred, POLL_COUNT);
         assertThat(tracks).isEmpty();
@@ -92,18 +141,351 @@ public final class ListenedTrackServiceUnitTest extends CommonUnitTest {
 
     @Test
     public void shouldReturnAllTracks() throws SpotifyUnauthorizedException {
-        when(activityService.getRecentlyListened(userCred, POLL_COUNT)).thenReturn(getPlayHistories());
-        when(activityService.getAudioFeatures(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(getAudioFeatures());
-        when(trackCache.range(0, -1)).thenReturn(new HashSet<>());
+        when(activityService.readRecentlyListened(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenReturn(Optional.of(getRecentPlays()));
+        when(featuresCache.getAudioFeatures(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(getAudioFeatures());
+        mockCachedTracks();
+
+        List<ListenedTrack> tracks = target.getUniqueRecentlyListened(userCred, POLL_COUNT);
+        assertListenedTracks(tracks);
+    }
+
+    @Test
+    public void shouldCheckAddAndTrimCachedTracksInOneScript() throws SpotifyUnauthorizedException {
+        when(activityService.readRecentlyListened(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenReturn(Optional.of(getRecentPlays()));
+        when(featuresCache.getAudioFeatures(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(getAudioFeatures());
+
+        mockCachedTracks(getListenedTracks().get(1));
+
+        List<ListenedTrack> tracks = target.getUniqueRecentlyListened(userCred, POLL_COUNT);
+        assertThat(tracks).hasSize(1);
+        assertListenedTrackOne(tracks.get(0));
+
+        assertThat(scriptKeys).containsExactly(ListenedTrackService.getTrackCacheKey(userCred));
+        assertThat(scriptArgs).containsExactly(MAX_RECENTLY_LISTENED_TO, RECENTLY_LISTENED_TTL.getSeconds(),
+                ListenedTrackService.getTrackHash(getListenedTracks().get(0)), TRACK_ONE_PLAYED_AT_TIMESTAMP,
+                ListenedTrackService.getLegacyTrackMember(getListenedTracks().get(0), userCred),
+                ListenedTrackService.getTrackHash(getListenedTracks().get(1)), TRACK_TWO_PLAYED_AT_TIMESTAMP,
+                ListenedTrackService.getLegacyTrackMember(getListenedTracks().get(1), userCred));
+        assertThat(scriptArgsSerializer).isSameAs(ScriptArgsSerializer.INSTANCE);
+    }
+
+    @Test
+    public void shouldNotRepublishTrackCachedUnderLegacyMember() throws SpotifyUnauthorizedException {
+        when(activityService.readRecentlyListened(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenReturn(Optional.of(getRecentPlays()));
+        when(featuresCache.getAudioFeatures(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(getAudioFeatures());
+
+        mockLegacyCachedTracks(getListenedTracks().get(1));
+
+        List<ListenedTrack> tracks = target.getUniqueRecentlyListened(userCred, POLL_COUNT);
+        assertThat(tracks).hasSize(1);
+        assertListenedTrackOne(tracks.get(0));
+    }
+
+    @Test
+    public void shouldSerializeLegacyMemberAsJsonQuotedKey() {
+        ListenedTrack track = getListenedTracks().get(0);
+        assertThat(new String(ListenedTrackService.getLegacyTrackMember(track, userCred), StandardCharsets.UTF_8))
+                .isEqualTo("\"" + ListenedTrackService.getListenedTrackKey(track, userCred) + "\"");
+    }
+
+    @Test
+    public void shouldAdvanceCursorToLatestPlay() throws SpotifyUnauthorizedException {
+        when(activityService.readRecentlyListened(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenReturn(Optional.of(getRecentPlays()));
+        when(featuresCache.getAudioFeatures(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(getAudioFeatures());
+        mockCachedTracks();
+
+        target.getUniqueRecentlyListened(userCred, POLL_COUNT);
+        verify(cursor).set(getLatestPlayedAt(), RECENTLY_LISTENED_TTL.getSeconds(), TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void shouldOnlyAskForPlaysAfterCursor() throws SpotifyUnauthorizedException {
+        when(cursor.get()).thenReturn(getLatestPlayedAt());
+        when(activityService.readRecentlyListenedAfter(eq(userCred), eq(POLL_COUNT), eq(getLatestPlayedAt()), any(RecentlyPlayedReader.class))).thenReturn(Optional.empty());
 
         List<ListenedTrack> tracks = target.getUniqueRecentlyListened(userCred, POLL_COUNT);
+        assertThat(tracks).isEmpty();
+
+        // Nothing new, so nothing else to do.
+        verify(activityService, never()).readRecentlyListened(any(), anyInt(), any());
+        verify(featuresCache, never()).getAudioFeatures(any(), any());
+        verify(redis, never()).execute(any(RedisScript.class), any(RedisSerializer.class), any(RedisSerializer.class), anyList(), any());
+        verify(cursor, never()).set(any(), anyLong(), any());
+    }
+
+    @Test
+    public void shouldNotMoveCursorBackwards() throws SpotifyUnauthorizedException {
+        long later = getLatestPlayedAt() + 1;
+        when(cursor.get()).thenReturn(later);
+        when(activityService.readRecentlyListenedAfter(eq(userCred), eq(POLL_COUNT), eq(later), any(RecentlyPlayedReader.class))).thenReturn(Optional.of(getRecentPlays()));
+        when(featuresCache.getAudioFeatures(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(getAudioFeatures());
+        mockCachedTracks();
+
+        target.getUniqueRecentlyListened(userCred, POLL_COUNT);
+        verify(cursor, never()).set(any(), anyLong(), any());
+    }
+
+    @Test
+    public void shouldNotAdvanceCursorWhenNoAudioFeatures() throws SpotifyUnauthorizedException {
+        when(activityService.readRecentlyListened(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenReturn(Optional.of(getRecentPlays()));
+        when(featuresCache.getAudioFeatures(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(emptyList());
+
+        target.getUniqueRecentlyListened(userCred, POLL_COUNT);
+        verify(cursor, never()).set(any(), anyLong(), any());
+    }
+
+    @Test
+    public void shouldReturnAllTracksAsync() {
+        when(activityService.readRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenReturn(completedFuture(Optional.of(getRecentPlays())));
+        when(featuresCache.getAudioFeaturesAsync(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(completedFuture(getAudioFeatures()));
+        mockCachedTracks();
+
+        List<ListenedTrack> tracks = target.getUniqueRecentlyListenedAsync(userCred, POLL_COUNT, PollDeadline.unbounded(), Runnable::run).join();
         assertListenedTracks(tracks);
+        verify(cursor).set(getLatestPlayedAt(), RECENTLY_LISTENED_TTL.getSeconds(), TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void shouldUpdateCacheAsyncOnPollWorkers() {
+        List<Runnable> steps = new ArrayList<>();
+        when(activityService.readRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenReturn(completedFuture(Optional.of(getRecentPlays())));
+        when(featuresCache.getAudioFeaturesAsync(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(completedFuture(getAudioFeatures()));
+        mockCachedTracks();
+
+        CompletableFuture<List<ListenedTrack>> tracks = target.getUniqueRecentlyListenedAsync(userCred, POLL_COUNT,
+                PollDeadline.unbounded(), steps::add);
+        verify(redis, never()).execute(any(RedisScript.class), any(RedisSerializer.class), any(RedisSerializer.class), anyList(), any());
+
+        while (!steps.isEmpty()) {
+            steps.remove(0).run();
+        }
+        assertListenedTracks(tracks.join());
+    }
+
+    @Test
+    public void shouldSkipAudioFeaturesAsyncWhenNoPlaysAfterCursor() {
+        when(cursor.get()).thenReturn(getLatestPlayedAt());
+        when(activityService.readRecentlyListenedAfterAsync(eq(userCred), eq(POLL_COUNT), eq(getLatestPlayedAt()), any(RecentlyPlayedReader.class))).thenReturn(completedFuture(Optional.empty()));
+
+        assertThat(target.getUniqueRecentlyListenedAsync(userCred, POLL_COUNT, PollDeadline.unbounded(), Runnable::run).join()).isEmpty();
+        verify(featuresCache, never()).getAudioFeaturesAsync(any(), any());
+        verify(redis, never()).execute(any(RedisScript.class), any(RedisSerializer.class), any(RedisSerializer.class), anyList(), any());
+    }
+
+    @Test
+    public void shouldFailAsyncWhenAudioFeaturesAreUnauthorized() {
+        CompletableFuture<List<AudioFeatures>> unauthorized = new CompletableFuture<>();
+        unauthorized.completeExceptionally(new SpotifyUnauthorizedException());
+        when(activityService.readRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenReturn(completedFuture(Optional.of(getRecentPlays())));
+        when(featuresCache.getAudioFeaturesAsync(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(unauthorized);
+
+        assertThatThrownBy(() -> target.getUniqueRecentlyListenedAsync(userCred, POLL_COUNT, PollDeadline.unbounded(), Runnable::run).join())
+                .hasCauseInstanceOf(SpotifyUnauthorizedException.class);
+        verify(cursor, never()).set(any(), anyLong(), any());
+    }
+
+    @Test
+    public void shouldLeaveCacheAndCursorAloneWhenPollRunsOutOfTime() {
+        AtomicLong now = new AtomicLong();
+        PollDeadline deadline = new PollDeadline(Duration.ofSeconds(10), now::get);
+        CompletableFuture<List<AudioFeatures>> features = new CompletableFuture<>();
+        when(activityService.readRecentlyListenedAsync(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenReturn(completedFuture(Optional.of(getRecentPlays())));
+        when(featuresCache.getAudioFeaturesAsync(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(features);
+
+        CompletableFuture<List<ListenedTrack>> tracks = target.getUniqueRecentlyListenedAsync(userCred, POLL_COUNT, deadline, Runnable::run);
+        now.addAndGet(Duration.ofSeconds(10).toNanos());
+        features.complete(getAudioFeatures());
+
+        assertThatThrownBy(tracks::join).hasCauseInstanceOf(PollDeadlineExceededException.class);
+        verify(redis, never()).execute(any(RedisScript.class), any(RedisSerializer.class), any(RedisSerializer.class), anyList(), any());
+        verify(cursor, never()).set(any(), anyLong(), any());
+    }
+
+    @Test
+    public void shouldNotAskRedisAgainAboutTracksAlreadySeen() throws SpotifyUnauthorizedException {
+        when(activityService.readRecentlyListened(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenReturn(Optional.of(getRecentPlays()));
+        when(activityService.readRecentlyListenedAfter(eq(userCred), eq(POLL_COUNT), eq(getLatestPlayedAt()), any(RecentlyPlayedReader.class))).thenReturn(Optional.of(getRecentPlays()));
+        when(featuresCache.getAudioFeatures(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(getAudioFeatures());
+        mockCachedTracks();
+
+        assertThat(target.getUniqueRecentlyListened(userCred, POLL_COUNT)).hasSize(2);
+        assertThat(target.getUniqueRecentlyListened(userCred, POLL_COUNT)).isEmpty();
+
+        verify(redis, times(1)).execute(any(RedisScript.class), any(RedisSerializer.class), any(RedisSerializer.class), anyList(), any());
+        verify(cursor, times(1)).get();
+        verify(cursor, times(1)).set(getLatestPlayedAt(), RECENTLY_LISTENED_TTL.getSeconds(), TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void shouldKeepDeduplicatingWhileRedisIsDown() throws SpotifyUnauthorizedException {
+        when(activityService.readRecentlyListened(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenReturn(Optional.of(getRecentPlays()));
+        when(activityService.readRecentlyListenedAfter(eq(userCred), eq(POLL_COUNT), eq(getLatestPlayedAt()), any(RecentlyPlayedReader.class))).thenReturn(Optional.of(getRecentPlays()));
+        when(featuresCache.getAudioFeatures(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(getAudioFeatures());
+        when(redis.execute(any(RedisScript.class), any(RedisSerializer.class), any(RedisSerializer.class), anyList(), any())).thenThrow(new RedisConnectionFailureException("down"));
+        doThrow(new RedisConnectionFailureException("down")).when(cursor).set(any(), anyLong(), any());
+
+        assertListenedTracks(target.getUniqueRecentlyListened(userCred, POLL_COUNT));
+
+        // The cursor moved forward in memory, and the tracks were remembered, even though Redis wasn't written to.
+        assertThat(target.getUniqueRecentlyListened(userCred, POLL_COUNT)).isEmpty();
+        verify(redis, times(1)).execute(any(RedisScript.class), any(RedisSerializer.class), any(RedisSerializer.class), anyList(), any());
+    }
+
+    @Test
+    public void shouldNotReturnTracksAlreadyPublishedButNoLongerCached() throws SpotifyUnauthorizedException {
+        when(activityService.readRecentlyListened(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenReturn(Optional.of(getRecentPlays()));
+        when(featuresCache.getAudioFeatures(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(getAudioFeatures());
+        mockCachedTracks();
+        when(publishedFilter.addUnpublished(anyList())).then(answer -> answer.<List<ListenedTrack>>getArgument(0).subList(0, 1));
+
+        List<ListenedTrack> tracks = target.getUniqueRecentlyListened(userCred, POLL_COUNT);
+        assertThat(tracks).hasSize(1);
+        assertListenedTrackOne(tracks.get(0));
+    }
+
+    @Test
+    public void shouldOnlyCheckPublishedFilterForTracksNewToCache() throws SpotifyUnauthorizedException {
+        when(activityService.readRecentlyListened(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenReturn(Optional.of(getRecentPlays()));
+        when(featuresCache.getAudioFeatures(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(getAudioFeatures());
+        mockCachedTracks(getListenedTracks().get(1));
+
+        target.getUniqueRecentlyListened(userCred, POLL_COUNT);
+
+        verify(publishedFilter).addUnpublished(argThat(tracks -> tracks.size() == 1
+                && tracks.get(0).getTrackId().equals(TRACK_ONE_ID)));
+    }
+
+    @Test
+    public void shouldPollWithoutPublishingWhenRedisIsDownBeforeUserIsLoaded() throws SpotifyUnauthorizedException {
+        when(cursor.get()).thenThrow(new RedisConnectionFailureException("down"));
+        when(activityService.readRecentlyListened(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenReturn(Optional.of(getRecentPlays()));
+        when(featuresCache.getAudioFeatures(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(getAudioFeatures());
+        when(redis.execute(any(RedisScript.class), any(RedisSerializer.class), any(RedisSerializer.class), anyList(), any()))
+                .thenThrow(new RedisConnectionFailureException("down"));
+
+        // Without the cache, there's no telling which of these were published already.
+        assertThat(target.getUniqueRecentlyListened(userCred, POLL_COUNT)).isEmpty();
+        verify(cursor, never()).set(any(), anyLong(), any());
+
+        // Once Redis is back, the user is loaded as usual.
+        reset(cursor, redis);
+        mockRedis();
+        mockCachedTracks();
+        assertListenedTracks(target.getUniqueRecentlyListened(userCred, POLL_COUNT));
+        verify(cursor).get();
+    }
+
+    @Test
+    public void shouldReadCursorFromRedisAgainOnceUserIsForgotten() throws SpotifyUnauthorizedException {
+        when(cursor.get()).thenReturn(getLatestPlayedAt());
+        when(activityService.readRecentlyListenedAfter(eq(userCred), eq(POLL_COUNT), eq(getLatestPlayedAt()), any(RecentlyPlayedReader.class))).thenReturn(Optional.empty());
+
+        target.getUniqueRecentlyListened(userCred, POLL_COUNT);
+        target.forget(USER_ID);
+        target.getUniqueRecentlyListened(userCred, POLL_COUNT);
+
+        verify(cursor, times(2)).get();
+        verify(activityService).forget(USER_ID);
+    }
+
+    @Test
+    public void shouldHashEachPlayToEightBytes() {
+        ListenedTrack trackOne = getListenedTracks().get(0);
+        ListenedTrack trackOneLater = getListenedTracks().get(0);
+        trackOneLater.setPlayedAt(TRACK_TWO_PLAYED_AT_TIMESTAMP);
+
+        assertThat(ListenedTrackService.getTrackHash(trackOne)).hasSize(Long.BYTES)
+                .isEqualTo(ListenedTrackService.getTrackHash(getListenedTracks().get(0)))
+                .isNotEqualTo(ListenedTrackService.getTrackHash(trackOneLater));
+    }
+
+    @Test
+    public void shouldReturnLatestCachedPlayedAt() {
+        when(connection.zRevRangeWithScores(ListenedTrackService.getTrackCacheKey(userCred).getBytes(StandardCharsets.UTF_8), 0, 0))
+                .thenReturn(new HashSet<>(singletonList(new DefaultTuple(new byte[8], (double) TRACK_ONE_PLAYED_AT_TIMESTAMP))));
+
+        assertThat(target.getLastPlayedAt(userCred)).hasValue(TRACK_ONE_PLAYED_AT_TIMESTAMP);
+    }
+
+    @Test
+    public void shouldReturnLatestPlayedAtFromMemoryOncePolled() throws SpotifyUnauthorizedException {
+        when(activityService.readRecentlyListened(eq(userCred), eq(POLL_COUNT), any(RecentlyPlayedReader.class))).thenReturn(Optional.of(getRecentPlays()));
+        when(featuresCache.getAudioFeatures(userCred, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(getAudioFeatures());
+        mockCachedTracks();
+
+        target.getUniqueRecentlyListened(userCred, POLL_COUNT);
+        assertThat(target.getLastPlayedAt(userCred)).hasValue(Math.max(TRACK_ONE_PLAYED_AT_TIMESTAMP, TRACK_TWO_PLAYED_AT_TIMESTAMP));
+        verify(redis, never()).execute(any(RedisCallback.class));
+    }
+
+    @Test
+    public void shouldReturnNoPlayedAtWhenCacheIsEmpty() {
+        when(connection.zRevRangeWithScores(any(byte[].class), eq(0L), eq(0L))).thenReturn(emptySet());
+
+        assertThat(target.getLastPlayedAt(userCred)).isEmpty();
+    }
+
+    /**
+     * The plays as the {@link RecentlyPlayedReader} reads them: track fields only.
+     */
+    private RecentPlays getRecentPlays() {
+        List<ListenedTrack> tracks = getPlayHistories().stream().map(play -> {
+            ListenedTrack track = new ListenedTrack();
+            track.setTrackId(play.getTrack().getId());
+            track.setPlayedAt(ListenedTrackService.getTimestamp(play.getPlayedAt().getTime()));
+            track.setArtistId(play.getTrack().getArtists()[0].getId());
+            track.setArtistName(play.getTrack().getArtists()[0].getName());
+            track.setDurationMs(play.getTrack().getDurationMs());
+            track.setName(play.getTrack().getName());
+            track.setPreviewUrl(play.getTrack().getPreviewUrl());
+            return track;
+        }).collect(toList());
+
+        return new RecentPlays(tracks, getLatestPlayedAt());
+    }
+
+    private long getLatestPlayedAt() {
+        return getPlayHistories().stream().mapToLong(play -> play.getPlayedAt().getTime()).max().getAsLong();
     }
 
     private void mockRedis() {
-        when(redis.boundZSetOps(anyString())).thenReturn(trackCache);
+        when(redis.execute(any(RedisCallback.class))).then(answer -> answer.<RedisCallback<?>>getArgument(0).doInRedis(connection));
+        when(redis.boundValueOps(anyString())).thenReturn(cursor);
+    }
+
+    /**
+     * Stands in for the add new tracks script: every track not already cached comes back as new.
+     */
+    private void mockCachedTracks(ListenedTrack... cachedTracks) {
+        mockCachedMembers(Arrays.stream(cachedTracks).map(ListenedTrackService::getTrackHash).collect(toList()));
+    }
+
+    /**
+     * As {@link #mockCachedTracks(ListenedTrack...)}, for a cache written by an earlier version.
+     */
+    private void mockLegacyCachedTracks(ListenedTrack... cachedTracks) {
+        mockCachedMembers(Arrays.stream(cachedTracks)
+                .map(track -> ListenedTrackService.getLegacyTrackMember(track, userCred))
+                .collect(toList()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void mockCachedMembers(List<byte[]> members) {
+        Set<ByteBuffer> cached = members.stream().map(ByteBuffer::wrap).collect(toSet());
+        when(redis.execute(any(RedisScript.class), any(RedisSerializer.class), any(RedisSerializer.class), anyList(), any())).then(answer -> {
+            Object[] args = answer.getArguments();
+            scriptArgsSerializer = answer.getArgument(1);
+            scriptKeys = answer.getArgument(3);
+            scriptArgs = Arrays.asList(args).subList(4, args.length);
 
-        // Since we're not using the cache updates in the tests, just assume cache is always empty.
-        when(trackCache.zCard()).thenReturn(0L);
+            List<Long> added = new ArrayList<>();
+            for (int i = 2, track = 1; i < scriptArgs.size(); i += 3, track++) {
+                if (!cached.contains(ByteBuffer.wrap((byte[]) scriptArgs.get(i)))
+                        && !cached.contains(ByteBuffer.wrap((byte[]) scriptArgs.get(i + 2)))) {
+                    added.add((long) track);
+                }
+            }
+            return added;
+        });
     }
 }
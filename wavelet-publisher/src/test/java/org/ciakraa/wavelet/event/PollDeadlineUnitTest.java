@@ -0,0 +1,103 @@
+package org.ciakraa.wavelet.event;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+public final class PollDeadlineUnitTest {
+
+    private static final Duration BUDGET = Duration.ofSeconds(10);
+
+    private AtomicLong now;
+    private PollDeadline target;
+
+    @Before
+    public void setUp() {
+        now = new AtomicLong();
+        target = new PollDeadline(BUDGET, now::get);
+    }
+
+    @Test
+    public void shouldThrowExceptionWhenPassedInvalidArgs() {
+        assertThatIllegalArgumentException().isThrownBy(() -> new PollDeadline(Duration.ZERO, now::get));
+    }
+
+    @Test
+    public void shouldRunStepsWithinBudget() {
+        assertThat(target.during("read cursor", () -> 1)).isEqualTo(1);
+        assertThat(target.getStage()).isEqualTo("read cursor");
+        assertThat(target.isOverdue()).isFalse();
+    }
+
+    @Test
+    public void shouldRefuseStepsOnceBudgetIsUsedUp() {
+        now.addAndGet(BUDGET.toNanos());
+
+        assertThat(target.isOverdue()).isTrue();
+        assertThatExceptionOfType(PollDeadlineExceededException.class)
+                .isThrownBy(() -> target.during("update cache", () -> 1))
+                .matches(e -> e.getStage().equals("update cache"));
+    }
+
+    @Test
+    public void shouldRefuseStepsOnceExpired() {
+        target.during("fetch plays", () -> 1);
+        assertThat(target.expire()).isEqualTo("fetch plays");
+
+        assertThatExceptionOfType(PollDeadlineExceededException.class).isThrownBy(() -> target.during("update cache", () -> 1));
+    }
+
+    @Test
+    public void shouldStillRunCompletingStepsOnceExpired() {
+        AtomicBoolean published = new AtomicBoolean();
+        target.expire();
+
+        target.completing("publish", () -> published.set(true));
+        assertThat(published).isTrue();
+    }
+
+    @Test
+    public void shouldInterruptBlockedStepWhenExpired() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        AtomicBoolean interruptCleared = new AtomicBoolean();
+
+        Thread worker = new Thread(() -> {
+            target.completing("publish", () -> {
+                blocked.countDown();
+                try {
+                    Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                    Thread.currentThread().interrupt();
+                }
+            });
+            interruptCleared.set(!Thread.currentThread().isInterrupted());
+        });
+        worker.start();
+
+        blocked.await();
+        assertThat(target.expire()).isEqualTo("publish");
+        worker.join(TimeUnit.SECONDS.toMillis(10));
+
+        assertThat(interrupted).isTrue();
+        assertThat(interruptCleared).isTrue();
+    }
+
+    @Test
+    public void shouldNeverRunOutWhenUnbounded() {
+        PollDeadline unbounded = PollDeadline.unbounded();
+
+        assertThat(unbounded.isOverdue()).isFalse();
+        assertThat(unbounded.during("fetch plays", () -> 1)).isEqualTo(1);
+    }
+}
@@ -0,0 +1,69 @@
+package org.ciakraa.wavelet.event;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.assertj.core.api.Assertions.assertThatNullPointerException;
+import static org.ciakraa.wavelet.common.CommonTestConstants.USER_ID;
+import static org.ciakraa.wavelet.event.EventConstants.POLL_PERIOD;
+
+public final class PollStaggerUnitTest {
+
+    private static final Instant NOW = Instant.parse("2018-06-03T21:14:47Z");
+
+    @Test
+    public void shouldThrowExceptionsWhenPassedInvalidArgs() {
+        assertThatNullPointerException().isThrownBy(() -> PollStagger.getPhase(null, POLL_PERIOD));
+        assertThatIllegalArgumentException().isThrownBy(() -> PollStagger.getPhase(USER_ID, Duration.ZERO));
+        assertThatIllegalArgumentException().isThrownBy(() -> PollStagger.getInitialDelay(USER_ID, POLL_PERIOD, Duration.ofSeconds(-1), NOW));
+    }
+
+    @Test
+    public void shouldKeepTheSamePhaseForAUser() {
+        Duration phase = PollStagger.getPhase(USER_ID, POLL_PERIOD);
+
+        assertThat(PollStagger.getPhase(USER_ID, POLL_PERIOD)).isEqualTo(phase);
+        assertThat(phase).isBetween(Duration.ZERO, POLL_PERIOD);
+    }
+
+    @Test
+    public void shouldDelayFirstPollUntilTheUsersPhase() {
+        long phase = PollStagger.getPhase(USER_ID, POLL_PERIOD).toMillis();
+
+        // Whenever the app happens to start, the first poll lands on the same point of the period.
+        for (int minutes = 0; minutes < 30; minutes += 7) {
+            Instant start = NOW.plus(Duration.ofMinutes(minutes));
+            Duration delay = PollStagger.getInitialDelay(USER_ID, POLL_PERIOD, Duration.ZERO, start);
+
+            assertThat(delay).isLessThan(POLL_PERIOD);
+            assertThat(start.plus(delay).toEpochMilli() % POLL_PERIOD.toMillis()).isEqualTo(phase);
+        }
+    }
+
+    @Test
+    public void shouldAddNoMoreThanMaxJitter() {
+        Duration delay = PollStagger.getInitialDelay(USER_ID, POLL_PERIOD, Duration.ZERO, NOW);
+        Duration jitter = Duration.ofSeconds(10);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(PollStagger.getInitialDelay(USER_ID, POLL_PERIOD, jitter, NOW)).isBetween(delay, delay.plus(jitter));
+        }
+    }
+
+    @Test
+    public void shouldSpreadUsersAcrossThePeriod() {
+        int[] minutes = new int[(int) POLL_PERIOD.toMinutes()];
+        for (int i = 0; i < 10000; i++) {
+            minutes[(int) PollStagger.getPhase("user-" + i, POLL_PERIOD).toMinutes()]++;
+        }
+
+        // 1000 users per minute if perfectly even; similar ids must not clump together.
+        for (int count : minutes) {
+            assertThat(count).isBetween(850, 1150);
+        }
+    }
+}
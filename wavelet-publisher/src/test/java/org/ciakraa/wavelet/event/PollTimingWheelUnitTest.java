@@ -0,0 +1,350 @@
+package org.ciakraa.wavelet.event;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+public final class PollTimingWheelUnitTest {
+
+    private static final Duration TICK = Duration.ofSeconds(1);
+
+    // Runs each poll on the calling thread, counting how many were handed over.
+    private AtomicInteger dispatched;
+    private Executor workers;
+
+    private PollTimingWheel target;
+
+    @Before
+    public void setUp() {
+        dispatched = new AtomicInteger();
+        workers = poll -> {
+            dispatched.incrementAndGet();
+            poll.run();
+        };
+
+        target = new PollTimingWheel(TICK, 8, workers);
+    }
+
+    @Test
+    public void shouldThrowExceptionWhenPassedInvalidArgs() {
+        assertThatIllegalArgumentException().isThrownBy(() -> new PollTimingWheel(Duration.ZERO, 8, workers));
+        assertThatIllegalArgumentException().isThrownBy(() -> new PollTimingWheel(TICK, 0, workers));
+        assertThatIllegalArgumentException().isThrownBy(() -> new PollTimingWheel(TICK, 8, workers, Duration.ZERO));
+        assertThatIllegalArgumentException().isThrownBy(() -> target.schedule(every(TICK, () -> {}), Duration.ofSeconds(-1)));
+    }
+
+    @Test
+    public void shouldRunImmediatelyThenOncePerPeriod() {
+        AtomicInteger runs = new AtomicInteger();
+        target.schedule(every(Duration.ofSeconds(3), runs::incrementAndGet), Duration.ZERO);
+
+        target.tick();
+        assertThat(runs.get()).isEqualTo(1);
+
+        tick(2);
+        assertThat(runs.get()).isEqualTo(1);
+
+        target.tick();
+        assertThat(runs.get()).isEqualTo(2);
+
+        tick(3);
+        assertThat(runs.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldRunPollsWithDelaysLongerThanOneRotation() {
+        AtomicInteger runs = new AtomicInteger();
+        target.schedule(every(Duration.ofSeconds(20), runs::incrementAndGet), Duration.ofSeconds(20));
+
+        tick(20);
+        assertThat(runs.get()).isEqualTo(0);
+
+        target.tick();
+        assertThat(runs.get()).isEqualTo(1);
+
+        tick(20);
+        assertThat(runs.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldHandEachDuePollToWorkers() {
+        AtomicInteger runs = new AtomicInteger();
+        for (int i = 0; i < 100; i++) {
+            target.schedule(every(Duration.ofSeconds(10), runs::incrementAndGet), Duration.ZERO);
+        }
+
+        target.tick();
+        assertThat(runs.get()).isEqualTo(100);
+        assertThat(dispatched.get()).isEqualTo(100);
+
+        tick(9);
+        assertThat(dispatched.get()).isEqualTo(100);
+    }
+
+    @Test
+    public void shouldNeverRunPollsOnTheTickThread() {
+        List<Runnable> held = new ArrayList<>();
+        target = new PollTimingWheel(TICK, 8, held::add);
+
+        AtomicInteger runs = new AtomicInteger();
+        target.schedule(every(TICK, runs::incrementAndGet), Duration.ZERO);
+        target.schedule(every(TICK, runs::incrementAndGet), Duration.ZERO);
+
+        target.tick();
+        assertThat(runs.get()).isEqualTo(0);
+        assertThat(held).hasSize(2);
+    }
+
+    @Test
+    public void shouldKeepPollOnTheWheelWhenWorkersRejectIt() {
+        AtomicInteger runs = new AtomicInteger();
+        AtomicInteger rejections = new AtomicInteger(1);
+        target = new PollTimingWheel(TICK, 8, poll -> {
+            if (rejections.getAndDecrement() > 0) {
+                throw new RejectedExecutionException("Workers are busy");
+            }
+            poll.run();
+        });
+        target.schedule(every(TICK, runs::incrementAndGet), Duration.ZERO);
+
+        target.tick();
+        assertThat(runs.get()).isEqualTo(0);
+
+        target.tick();
+        assertThat(runs.get()).isEqualTo(1);
+        assertThat(target.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotRunCancelledPolls() {
+        AtomicInteger runs = new AtomicInteger();
+        PollTimingWheel.Timeout timeout = target.schedule(every(Duration.ofSeconds(2), runs::incrementAndGet), Duration.ZERO);
+        assertThat(target.size()).isEqualTo(1);
+
+        target.tick();
+        timeout.cancel();
+        tick(10);
+
+        assertThat(runs.get()).isEqualTo(1);
+        assertThat(target.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldKeepRunningOtherPollsWhenOnePollFails() {
+        AtomicInteger runs = new AtomicInteger();
+        target.schedule(every(TICK, () -> { throw new IllegalStateException("Poll blew up"); }), Duration.ZERO);
+        target.schedule(every(TICK, runs::incrementAndGet), Duration.ZERO);
+
+        tick(3);
+        assertThat(runs.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldWaitForTheDelayEachTaskAsksFor() {
+        AtomicInteger runs = new AtomicInteger();
+        Deque<Duration> delays = new ArrayDeque<>(Arrays.asList(Duration.ofSeconds(2), Duration.ofSeconds(5), Duration.ofSeconds(1)));
+        target.schedule(new PollTimingWheel.PacedTask() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+
+            @Override
+            public Duration getNextDelay() {
+                return delays.isEmpty() ? Duration.ofHours(1) : delays.poll();
+            }
+        }, Duration.ZERO);
+
+        target.tick();
+        assertThat(runs.get()).isEqualTo(1);
+
+        tick(2);
+        assertThat(runs.get()).isEqualTo(2);
+
+        tick(4);
+        assertThat(runs.get()).isEqualTo(2);
+
+        target.tick();
+        assertThat(runs.get()).isEqualTo(3);
+
+        target.tick();
+        assertThat(runs.get()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldNotOverlapATaskWithItselfWhileItIsRunning() {
+        // Hold polls back, as if every worker were busy.
+        List<Runnable> held = new ArrayList<>();
+        target = new PollTimingWheel(TICK, 8, held::add);
+
+        AtomicInteger runs = new AtomicInteger();
+        target.schedule(every(TICK, runs::incrementAndGet), Duration.ZERO);
+
+        tick(5);
+        assertThat(held).hasSize(1);
+
+        held.remove(0).run();
+        target.tick();
+        assertThat(runs.get()).isEqualTo(1);
+        assertThat(held).hasSize(1);
+    }
+
+    @Test
+    public void shouldNotRunAnAsyncTaskAgainUntilItsRunCompletes() {
+        AtomicInteger runs = new AtomicInteger();
+        Deque<CompletableFuture<Void>> inFlight = new ArrayDeque<>();
+        target.schedule(new PollTimingWheel.PacedTask() {
+            @Override
+            public void run() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletionStage<?> runAsync(PollDeadline deadline) {
+                runs.incrementAndGet();
+                CompletableFuture<Void> done = new CompletableFuture<>();
+                inFlight.add(done);
+                return done;
+            }
+
+            @Override
+            public Duration getNextDelay() {
+                return TICK;
+            }
+        }, Duration.ZERO);
+
+        tick(5);
+        assertThat(runs.get()).isEqualTo(1);
+
+        inFlight.poll().complete(null);
+        target.tick();
+        assertThat(runs.get()).isEqualTo(2);
+        assertThat(target.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRescheduleARunWhichOverrunsItsBudget() {
+        AtomicLong now = new AtomicLong();
+        target = new PollTimingWheel(TICK, 8, workers, Duration.ofSeconds(3), now::get);
+
+        AtomicInteger runs = new AtomicInteger();
+        Deque<CompletableFuture<Void>> inFlight = new ArrayDeque<>();
+        target.schedule(hanging(runs, inFlight), Duration.ZERO);
+
+        target.tick();
+        now.addAndGet(Duration.ofSeconds(2).toNanos());
+        tick(2);
+        assertThat(runs.get()).isEqualTo(1);
+
+        // Once over budget, the run is given up on and the task runs again after its usual delay.
+        now.addAndGet(Duration.ofSeconds(1).toNanos());
+        target.tick();
+        target.tick();
+        assertThat(runs.get()).isEqualTo(2);
+        assertThat(target.getOverruns()).containsEntry("fetch plays", 1L);
+        assertThat(target.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotRescheduleAnOverrunTwiceWhenItFinallyCompletes() {
+        AtomicLong now = new AtomicLong();
+        target = new PollTimingWheel(TICK, 8, workers, Duration.ofSeconds(3), now::get);
+
+        AtomicInteger runs = new AtomicInteger();
+        Deque<CompletableFuture<Void>> inFlight = new ArrayDeque<>();
+        target.schedule(hanging(runs, inFlight), Duration.ZERO);
+
+        target.tick();
+        now.addAndGet(Duration.ofSeconds(3).toNanos());
+        target.tick();
+        target.tick();
+        assertThat(runs.get()).isEqualTo(2);
+
+        // The abandoned run completing late mustn't re-arm the task alongside its current run.
+        inFlight.poll().complete(null);
+        tick(3);
+        assertThat(runs.get()).isEqualTo(2);
+
+        inFlight.poll().complete(null);
+        target.tick();
+        assertThat(runs.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldNotTouchRunsWithinBudget() {
+        AtomicLong now = new AtomicLong();
+        target = new PollTimingWheel(TICK, 8, workers, Duration.ofSeconds(3), now::get);
+
+        AtomicInteger runs = new AtomicInteger();
+        Deque<CompletableFuture<Void>> inFlight = new ArrayDeque<>();
+        target.schedule(hanging(runs, inFlight), Duration.ZERO);
+
+        target.tick();
+        now.addAndGet(Duration.ofSeconds(2).toNanos());
+        tick(5);
+        assertThat(runs.get()).isEqualTo(1);
+        assertThat(target.getOverruns()).isEmpty();
+    }
+
+    /**
+     * A task whose runs wait on Spotify until the test completes them.
+     */
+    private static PollTimingWheel.PacedTask hanging(AtomicInteger runs, Deque<CompletableFuture<Void>> inFlight) {
+        return new PollTimingWheel.PacedTask() {
+            @Override
+            public void run() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletionStage<?> runAsync(PollDeadline deadline) {
+                runs.incrementAndGet();
+                return deadline.during("fetch plays", () -> {
+                    CompletableFuture<Void> done = new CompletableFuture<>();
+                    inFlight.add(done);
+                    return done;
+                });
+            }
+
+            @Override
+            public Duration getNextDelay() {
+                return TICK;
+            }
+        };
+    }
+
+    private static PollTimingWheel.PacedTask every(Duration period, Runnable task) {
+        return new PollTimingWheel.PacedTask() {
+            @Override
+            public void run() {
+                task.run();
+            }
+
+            @Override
+            public Duration getNextDelay() {
+                return period;
+            }
+        };
+    }
+
+    private void tick(int ticks) {
+        for (int i = 0; i < ticks; i++) {
+            target.tick();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.ciakraa.wavelet.event;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Collections.emptyList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public final class PublishedTrackFilterUnitTest {
+
+    private static final Duration ROTATION = Duration.ofDays(30);
+
+    @Mock
+    private RedisOperations<String, Object> redis;
+
+    // Stands in for the generations' bitmaps in Redis.
+    private final Map<String, BitSet> generations = new HashMap<>();
+
+    private Instant now = Instant.parse("2018-06-01T00:00:00Z");
+
+    private PublishedTrackFilter target;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mockScript();
+
+        target = newFilter();
+    }
+
+    @Test
+    public void shouldThrowExceptionWhenPassedInvalidArgs() {
+        assertThatIllegalArgumentException().isThrownBy(() -> new PublishedTrackFilter(redis, 0, 0.01, ROTATION));
+        assertThatIllegalArgumentException().isThrownBy(() -> new PublishedTrackFilter(redis, 1000, 1, ROTATION));
+        assertThatIllegalArgumentException().isThrownBy(() -> new PublishedTrackFilter(redis, 1000, 0.01, Duration.ZERO));
+        assertThatIllegalArgumentException().isThrownBy(() -> new PublishedTrackFilter(redis, Integer.MAX_VALUE, 1e-9, ROTATION));
+    }
+
+    @Test
+    public void shouldSizeFilterForFalsePositiveRate() {
+        assertThat(PublishedTrackFilter.getBits(1_000_000, 0.001)).isEqualTo(14_377_588);
+        assertThat(PublishedTrackFilter.getHashes(1_000_000, 14_377_588)).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldOnlyReturnTracksNotPublishedYet() {
+        assertThat(target.addUnpublished(getTracks("a", "b"))).extracting(ListenedTrack::getKey).containsExactly("a", "b");
+        assertThat(target.addUnpublished(getTracks("b", "c", "a"))).extracting(ListenedTrack::getKey).containsExactly("c");
+    }
+
+    @Test
+    public void shouldRememberTracksFromPreviousGeneration() {
+        target.addUnpublished(getTracks("a"));
+
+        now = now.plus(ROTATION);
+        target = newFilter();
+        assertThat(target.addUnpublished(getTracks("a"))).isEmpty();
+    }
+
+    @Test
+    public void shouldForgetTracksOnceTheirGenerationHasRotatedOut() {
+        target.addUnpublished(getTracks("a"));
+
+        now = now.plus(ROTATION.multipliedBy(2));
+        target = newFilter();
+        assertThat(target.addUnpublished(getTracks("a"))).hasSize(1);
+    }
+
+    @Test
+    public void shouldSpreadKeyOverFilterBits() {
+        long[] offsets = target.getOffsets("wizzler-6rqhFgbbKwnb9MLmUQDhG6-1481661840");
+
+        assertThat(offsets).hasSize(target.getHashes());
+        assertThat(Arrays.stream(offsets).distinct().count()).isEqualTo(target.getHashes());
+        assertThat(Arrays.stream(offsets).allMatch(offset -> offset >= 0 && offset < target.getBits())).isTrue();
+    }
+
+    @Test
+    public void shouldTakeTracksAsUnpublishedWhenRedisIsDown() {
+        when(redis.execute(any(RedisScript.class), anyList(), any())).thenThrow(new RedisConnectionFailureException("down"));
+
+        assertThat(target.addUnpublished(getTracks("a", "b"))).hasSize(2);
+    }
+
+    @Test
+    public void shouldNotAskRedisAboutNoTracks() {
+        assertThat(target.addUnpublished(emptyList())).isEmpty();
+        verifyZeroInteractions(redis);
+    }
+
+    private PublishedTrackFilter newFilter() {
+        return new PublishedTrackFilter(redis, 1000, 0.001, ROTATION, Clock.fixed(now, ZoneOffset.UTC));
+    }
+
+    private List<ListenedTrack> getTracks(String... keys) {
+        List<ListenedTrack> tracks = new ArrayList<>();
+        for (String key : keys) {
+            ListenedTrack track = new ListenedTrack();
+            track.setKey(key);
+            tracks.add(track);
+        }
+        return tracks;
+    }
+
+    /**
+     * Stands in for the add published tracks script.
+     */
+    @SuppressWarnings("unchecked")
+    private void mockScript() {
+        when(redis.execute(any(RedisScript.class), anyList(), any())).then(answer -> {
+            Object[] args = answer.getArguments();
+            List<String> keys = answer.getArgument(1);
+            BitSet current = generations.computeIfAbsent(keys.get(0), key -> new BitSet());
+            BitSet previous = generations.getOrDefault(keys.get(1), new BitSet());
+            int hashes = (int) args[3];
+
+            List<Long> unpublished = new ArrayList<>();
+            for (int i = 4, track = 1; i < args.length; i += hashes, track++) {
+                boolean inCurrent = true;
+                boolean inPrevious = true;
+                for (int j = i; j < i + hashes; j++) {
+                    int offset = (int) (long) args[j];
+                    inCurrent &= current.get(offset);
+                    inPrevious &= previous.get(offset);
+                    current.set(offset);
+                }
+                if (!inCurrent && !inPrevious) {
+                    unpublished.add((long) track);
+                }
+            }
+            return unpublished;
+        });
+    }
+}
@@ -0,0 +1,121 @@
+package org.ciakraa.wavelet.event;
+
+import org.junit.Test;
+
+import java.util.OptionalLong;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
+import static org.ciakraa.wavelet.common.CommonTestConstants.*;
+
+public final class RecentTracksWindowUnitTest {
+
+    private final RecentTracksWindow target = new RecentTracksWindow(2);
+
+    @Test
+    public void shouldThrowExceptionWhenPassedInvalidArgs() {
+        assertThatIllegalArgumentException().isThrownBy(() -> new RecentTracksWindow(0));
+    }
+
+    @Test
+    public void shouldOnlyLoadCursorOnce() {
+        AtomicInteger loads = new AtomicInteger();
+
+        assertThat(target.getCursor(USER_ID, () -> OptionalLong.of(loads.incrementAndGet()))).hasValue(1);
+        assertThat(target.getCursor(USER_ID, () -> OptionalLong.of(loads.incrementAndGet()))).hasValue(1);
+        assertThat(target.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldLeaveUserUnloadedWhenCursorFailsToLoad() {
+        assertThatIllegalStateException().isThrownBy(() -> target.getCursor(USER_ID, () -> {
+            throw new IllegalStateException();
+        }));
+
+        assertThat(target.size()).isZero();
+        assertThat(target.isLoaded(USER_ID)).isFalse();
+        assertThat(target.getCursor(USER_ID, OptionalLong::empty)).isEmpty();
+        assertThat(target.isLoaded(USER_ID)).isTrue();
+    }
+
+    @Test
+    public void shouldOnlyAdvanceCursorForward() {
+        assertThat(target.advanceCursor(USER_ID, 10)).isFalse();
+
+        target.getCursor(USER_ID, OptionalLong::empty);
+        assertThat(target.advanceCursor(USER_ID, 10)).isTrue();
+        assertThat(target.advanceCursor(USER_ID, 10)).isFalse();
+        assertThat(target.advanceCursor(USER_ID, 5)).isFalse();
+        assertThat(target.getCursor(USER_ID, OptionalLong::empty)).hasValue(10);
+    }
+
+    @Test
+    public void shouldOnlyRememberTracksOfLoadedUsers() {
+        target.add(USER_ID, TRACK_ONE_ID, TRACK_ONE_PLAYED_AT_TIMESTAMP);
+        assertThat(target.contains(USER_ID, TRACK_ONE_ID, TRACK_ONE_PLAYED_AT_TIMESTAMP)).isFalse();
+
+        target.getCursor(USER_ID, OptionalLong::empty);
+        target.add(USER_ID, TRACK_ONE_ID, TRACK_ONE_PLAYED_AT_TIMESTAMP);
+        assertThat(target.contains(USER_ID, TRACK_ONE_ID, TRACK_ONE_PLAYED_AT_TIMESTAMP)).isTrue();
+        assertThat(target.contains(USER_ID, TRACK_ONE_ID, TRACK_TWO_PLAYED_AT_TIMESTAMP)).isFalse();
+        assertThat(target.contains("other" + USER_ID, TRACK_ONE_ID, TRACK_ONE_PLAYED_AT_TIMESTAMP)).isFalse();
+    }
+
+    @Test
+    public void shouldPushOutOldestTrackWhenFull() {
+        target.getCursor(USER_ID, OptionalLong::empty);
+        target.add(USER_ID, TRACK_ONE_ID, TRACK_ONE_PLAYED_AT_TIMESTAMP);
+        target.add(USER_ID, TRACK_TWO_ID, TRACK_TWO_PLAYED_AT_TIMESTAMP);
+        target.add(USER_ID, TRACK_ONE_ID, TRACK_TWO_PLAYED_AT_TIMESTAMP);
+
+        assertThat(target.contains(USER_ID, TRACK_ONE_ID, TRACK_ONE_PLAYED_AT_TIMESTAMP)).isFalse();
+        assertThat(target.contains(USER_ID, TRACK_TWO_ID, TRACK_TWO_PLAYED_AT_TIMESTAMP)).isTrue();
+        assertThat(target.contains(USER_ID, TRACK_ONE_ID, TRACK_TWO_PLAYED_AT_TIMESTAMP)).isTrue();
+    }
+
+    @Test
+    public void shouldOnlyLoadLastPlayedAtOnce() {
+        AtomicInteger loads = new AtomicInteger();
+        target.getCursor(USER_ID, OptionalLong::empty);
+
+        assertThat(target.getLastPlayedAt(USER_ID, () -> OptionalLong.of(loads.incrementAndGet()))).hasValue(1);
+        assertThat(target.getLastPlayedAt(USER_ID, () -> OptionalLong.of(loads.incrementAndGet()))).hasValue(1);
+    }
+
+    @Test
+    public void shouldKeepLastPlayedAtOfLatestTrackAdded() {
+        target.getCursor(USER_ID, OptionalLong::empty);
+        target.add(USER_ID, TRACK_ONE_ID, 20);
+        target.add(USER_ID, TRACK_TWO_ID, 10);
+
+        assertThat(target.getLastPlayedAt(USER_ID, () -> {
+            throw new IllegalStateException();
+        })).hasValue(20);
+    }
+
+    @Test
+    public void shouldLookUpLastPlayedAtOfUnloadedUserEveryTime() {
+        AtomicInteger loads = new AtomicInteger();
+
+        target.getLastPlayedAt(USER_ID, () -> OptionalLong.of(loads.incrementAndGet()));
+        assertThat(target.getLastPlayedAt(USER_ID, () -> OptionalLong.of(loads.incrementAndGet()))).hasValue(2);
+    }
+
+    @Test
+    public void shouldForgetUser() {
+        target.getCursor(USER_ID, () -> OptionalLong.of(10));
+        target.add(USER_ID, TRACK_ONE_ID, TRACK_ONE_PLAYED_AT_TIMESTAMP);
+
+        target.forget(USER_ID);
+        assertThat(target.size()).isZero();
+        assertThat(target.contains(USER_ID, TRACK_ONE_ID, TRACK_ONE_PLAYED_AT_TIMESTAMP)).isFalse();
+    }
+
+    @Test
+    public void shouldHashPlayedAtAsWellAsTrack() {
+        assertThat(RecentTracksWindow.hash(TRACK_ONE_ID, 1)).isNotEqualTo(RecentTracksWindow.hash(TRACK_ONE_ID, 2));
+        assertThat(RecentTracksWindow.hash(TRACK_ONE_ID, 1)).isEqualTo(RecentTracksWindow.hash(TRACK_ONE_ID, 1));
+    }
+}
@@ -0,0 +1,86 @@
+package org.ciakraa.wavelet.event;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import org.ciakraa.wavelet.event.RecentlyPlayedReader.RecentPlays;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.ciakraa.wavelet.common.CommonTestConstants.*;
+
+public final class RecentlyPlayedReaderUnitTest {
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final RecentlyPlayedReader target = new RecentlyPlayedReader();
+
+    @Test
+    public void shouldReadTrackFieldsOfEachPlay() throws IOException {
+        RecentPlays plays;
+        try (JsonParser parser = jsonFactory.createParser(new File(JSON_DIR, RECENTLY_PLAYED_JSON))) {
+            plays = target.read(parser);
+        }
+
+        assertThat(plays.getTracks()).hasSize(2);
+        ListenedTrack trackOne = plays.getTracks().get(0);
+        assertThat(trackOne.getTrackId()).isEqualTo(TRACK_ONE_ID);
+        assertThat(trackOne.getPlayedAt()).isEqualTo(TRACK_ONE_PLAYED_AT_TIMESTAMP);
+        assertThat(trackOne.getArtistId()).isEqualTo(TRACK_ONE_ARTIST_ID);
+        assertThat(trackOne.getArtistName()).isEqualTo(TRACK_ONE_ARTIST_NAME);
+        assertThat(trackOne.getDurationMs()).isEqualTo(TRACK_ONE_DURATION_MS);
+        assertThat(trackOne.getName()).isEqualTo(TRACK_ONE_NAME);
+        assertThat(trackOne.getPreviewUrl()).isEqualTo(TRACK_ONE_PREVIEW_URL);
+        assertThat(trackOne.getKey()).isNull();
+
+        ListenedTrack trackTwo = plays.getTracks().get(1);
+        assertThat(trackTwo.getTrackId()).isEqualTo(TRACK_TWO_ID);
+        assertThat(trackTwo.getPlayedAt()).isEqualTo(TRACK_TWO_PLAYED_AT_TIMESTAMP);
+        assertThat(trackTwo.getArtistId()).isEqualTo(TRACK_TWO_ARTIST_ID);
+        assertThat(trackTwo.getName()).isEqualTo(TRACK_TWO_NAME);
+    }
+
+    @Test
+    public void shouldKeepLatestPlayedAtToTheMilli() throws IOException {
+        RecentPlays plays;
+        try (JsonParser parser = jsonFactory.createParser(new File(JSON_DIR, RECENTLY_PLAYED_JSON))) {
+            plays = target.read(parser);
+        }
+
+        assertThat(plays.getLatestPlayedAt()).isEqualTo(Instant.parse("2016-12-13T20:44:04.589Z").toEpochMilli());
+    }
+
+    @Test
+    public void shouldReadNoPlays() throws IOException {
+        assertThat(read("{\"items\":[],\"next\":null,\"cursors\":null}").isEmpty()).isTrue();
+        assertThat(read("").isEmpty()).isTrue();
+    }
+
+    @Test
+    public void shouldOnlyKeepFirstArtist() throws IOException {
+        RecentPlays plays = read("{\"items\":[{\"track\":{\"id\":\"a\",\"artists\":[{\"id\":\"1\",\"name\":\"One\"},"
+                + "{\"id\":\"2\",\"name\":\"Two\"}],\"preview_url\":null},\"played_at\":\"2018-06-03T21:14:47.123Z\"}]}");
+
+        ListenedTrack track = plays.getTracks().get(0);
+        assertThat(track.getArtistId()).isEqualTo("1");
+        assertThat(track.getArtistName()).isEqualTo("One");
+        assertThat(track.getPreviewUrl()).isNull();
+        assertThat(track.getPlayedAt()).isEqualTo(Instant.parse("2018-06-03T21:14:00Z").getEpochSecond());
+    }
+
+    @Test
+    public void shouldThrowExceptionOnInvalidPlayedAt() {
+        assertThatExceptionOfType(JsonParseException.class)
+                .isThrownBy(() -> read("{\"items\":[{\"track\":{\"id\":\"a\"},\"played_at\":\"yesterday\"}]}"));
+    }
+
+    private RecentPlays read(String json) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(json)) {
+            return target.read(parser);
+        }
+    }
+}
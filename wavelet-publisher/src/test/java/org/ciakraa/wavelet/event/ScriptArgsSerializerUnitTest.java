@@ -0,0 +1,27 @@
+package org.ciakraa.wavelet.event;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class ScriptArgsSerializerUnitTest {
+
+    private final ScriptArgsSerializer target = ScriptArgsSerializer.INSTANCE;
+
+    @Test
+    public void shouldPassBytesThroughAsTheyAre() {
+        byte[] hash = {0, 1, 2, (byte) 0xff};
+
+        assertThat(target.serialize(hash)).isSameAs(hash);
+        assertThat(target.deserialize(hash)).isSameAs(hash);
+    }
+
+    @Test
+    public void shouldWriteNumbersAsText() {
+        assertThat(target.serialize(1481661840L)).isEqualTo("1481661840".getBytes(StandardCharsets.UTF_8));
+        assertThat(target.serialize(50)).isEqualTo("50".getBytes(StandardCharsets.UTF_8));
+        assertThat(target.serialize(null)).isNull();
+    }
+}
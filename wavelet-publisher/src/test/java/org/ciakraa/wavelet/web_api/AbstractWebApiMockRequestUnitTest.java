@@ -38,9 +38,14 @@ abstract class AbstractWebApiMockRequestUnitTest extends AbstractWebApiUnitTest
     GetAudioFeaturesForSeveralTracksRequest audioFeaturesReq;
 
     // We often rely on intercepting requests via DefaultSpotifyApiFactory so we can inject our mocks when needed.
-    // We're fine using the SpotifyApi and AuthorizationCodeUriRequest though, since they're only used for builders.
+    // We're fine using real SpotifyApi and AuthorizationCodeUriRequest objects though, since they're only used for builders.
     void mockRequests() {
-        when(apiFactory.build(any(SpotifyApi.Builder.class))).thenCallRealMethod();
+        when(apiFactory.build(any(SpotifyApi.Builder.class))).then(answer -> ((SpotifyApi.Builder) answer.getArgument(0)).build());
+        when(apiFactory.getClientApi()).thenReturn(new SpotifyApi.Builder().build());
+        when(apiFactory.getUserApi(any(SpotifyUserCredentials.class))).then(answer -> {
+            SpotifyUserCredentials userCred = answer.getArgument(0);
+            return new SpotifyApi.Builder().setAccessToken(userCred.getAccessToken()).build();
+        });
         when(apiFactory.build(any(AuthorizationCodeUriRequest.Builder.class))).thenCallRealMethod();
         when(apiFactory.build(any(AuthorizationCodeRequest.Builder.class))).thenReturn(codeReq);
         when(apiFactory.build(any(GetCurrentUsersProfileRequest.Builder.class))).thenReturn(userReq);
@@ -7,6 +7,9 @@ import org.ciakraa.wavelet.common.CommonUnitTest;
 
 import java.io.*;
 import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
@@ -21,10 +24,31 @@ import static org.ciakraa.wavelet.common.CommonTestConstants.*;
  */
 abstract class AbstractWebApiUnitTest extends CommonUnitTest {
 
+    private static final ScheduledExecutorService RETRY_TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "test-retry-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     SpotifyClientCredentials getClientCred() {
         return new SpotifyClientCredentials(CLIENT_ID, CLIENT_SECRET);
     }
 
+    /**
+     * A limiter which never gets in the way, unless Spotify asks us to back off.
+     */
+    SpotifyRateLimiter getRateLimiter() {
+        return new SpotifyRateLimiter(1000, 1000);
+    }
+
+    /**
+     * Runs async requests on the calling thread, with a real timer for waits between retries.
+     */
+    SpotifyRetryScheduler getRetryScheduler() {
+        return new SpotifyRetryScheduler(getRateLimiter(), RETRY_TIMER, Runnable::run,
+                Duration.ofMillis(1), Duration.ofMillis(10), WebApiConstants.RETRY_MAX_ATTEMPTS, WebApiConstants.RETRY_DEADLINE);
+    }
+
     SpotifyUserCredentials getUserCred() {
         return new SpotifyUserCredentials.Builder()
                 .setClientCred(getClientCred())
@@ -58,7 +82,7 @@ abstract class AbstractWebApiUnitTest extends CommonUnitTest {
         }
     }
 
-    private static String readTestData(String fileName) throws IOException {
+    static String readTestData(String fileName) throws IOException {
         return readFromFile(new File(JSON_DIR, fileName));
     }
 
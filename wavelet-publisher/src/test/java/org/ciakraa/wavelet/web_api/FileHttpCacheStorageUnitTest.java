@@ -0,0 +1,121 @@
+package org.ciakraa.wavelet.web_api;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Date;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+public final class FileHttpCacheStorageUnitTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path dir;
+
+    private FileHttpCacheStorage target;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.getRoot().toPath().resolve("cache");
+        target = new FileHttpCacheStorage(dir, 2);
+    }
+
+    @Test
+    public void shouldThrowExceptionWhenPassedInvalidArgs() {
+        assertThatIllegalArgumentException().isThrownBy(() -> new FileHttpCacheStorage(dir, 0));
+    }
+
+    @Test
+    public void shouldKeepEntriesAcrossRestarts() throws IOException {
+        target.putEntry("key", getEntry("body"));
+
+        HttpCacheEntry restored = new FileHttpCacheStorage(dir, 2).getEntry("key");
+        assertThat(restored.getStatusCode()).isEqualTo(HttpStatus.SC_OK);
+        assertThat(restored.getFirstHeader("ETag").getValue()).isEqualTo("\"v1\"");
+        assertThat(getBody(restored)).isEqualTo("body");
+    }
+
+    @Test
+    public void shouldUpdateAndRemoveEntries() throws Exception {
+        target.putEntry("key", getEntry("old"));
+
+        target.updateEntry("key", existing -> getEntry("new"));
+        assertThat(getBody(target.getEntry("key"))).isEqualTo("new");
+
+        target.removeEntry("key");
+        assertThat(target.getEntry("key")).isNull();
+        assertThat(target.size()).isZero();
+    }
+
+    @Test
+    public void shouldEvictOldestEntriesPastMax() throws IOException {
+        target.putEntry("one", getEntry("one"));
+        Files.setLastModifiedTime(Files.list(dir).findFirst().get(), FileTime.fromMillis(0));
+        target.putEntry("two", getEntry("two"));
+        target.putEntry("three", getEntry("three"));
+
+        assertThat(target.getEntry("one")).isNull();
+        assertThat(target.getEntry("two")).isNotNull();
+        assertThat(target.getEntry("three")).isNotNull();
+        assertThat(target.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldEvictOldestEntriesLeftByEarlierRun() throws IOException {
+        target.putEntry("one", getEntry("one"));
+        Files.setLastModifiedTime(Files.list(dir).findFirst().get(), FileTime.fromMillis(0));
+        target.putEntry("two", getEntry("two"));
+
+        FileHttpCacheStorage restarted = new FileHttpCacheStorage(dir, 2);
+        assertThat(restarted.size()).isEqualTo(2);
+        restarted.putEntry("three", getEntry("three"));
+
+        assertThat(restarted.getEntry("one")).isNull();
+        assertThat(restarted.getEntry("two")).isNotNull();
+        assertThat(Files.list(dir).count()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldTreatUnreadableEntryAsMissing() throws IOException {
+        target.putEntry("key", getEntry("body"));
+        Files.write(Files.list(dir).findFirst().get(), "garbage".getBytes(StandardCharsets.UTF_8));
+
+        assertThat(target.getEntry("key")).isNull();
+    }
+
+    private static HttpCacheEntry getEntry(String body) {
+        Date now = new Date();
+        return new HttpCacheEntry(now, now, new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"),
+                new Header[] { new BasicHeader("ETag", "\"v1\"") }, new HeapResource(body.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String getBody(HttpCacheEntry entry) throws IOException {
+        try (InputStream in = entry.getResource().getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            for (int read; (read = in.read(buffer)) != -1; ) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
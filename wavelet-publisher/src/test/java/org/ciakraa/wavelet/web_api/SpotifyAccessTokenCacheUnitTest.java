@@ -0,0 +1,136 @@
+package org.ciakraa.wavelet.web_api;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.ciakraa.wavelet.common.CommonTestConstants.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public final class SpotifyAccessTokenCacheUnitTest extends AbstractWebApiUnitTest {
+
+    private static final Instant NOW = Instant.parse("2018-06-03T21:14:47Z");
+
+    @Mock
+    private SpotifyAuthorizationService authService;
+
+    private SpotifyAccessTokenCache target;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        target = new SpotifyAccessTokenCache(authService, Clock.fixed(NOW, ZoneOffset.UTC));
+    }
+
+    @Test
+    public void shouldThrowExceptionWhenPassedInvalidCred() {
+        assertThatIllegalArgumentException().isThrownBy(() -> target.getAuthorizedUserAsync(mock(SpotifyUserCredentials.class)));
+        assertThatIllegalArgumentException().isThrownBy(() -> target.refreshRejectedUserAsync(mock(SpotifyUserCredentials.class)));
+    }
+
+    @Test
+    public void shouldReuseTokenWhichIsNotAboutToExpire() {
+        SpotifyUserCredentials userCred = getUserCred(ACCESS_TOKEN, NOW.plus(Duration.ofMinutes(30)));
+
+        assertThat(target.getAuthorizedUserAsync(userCred).join()).contains(userCred);
+        verify(authService, never()).refreshUserAsync(any());
+    }
+
+    @Test
+    public void shouldRefreshTokenWhichIsAboutToExpire() {
+        SpotifyUserCredentials userCred = getUserCred(ACCESS_TOKEN, NOW.plus(Duration.ofMinutes(1)));
+        SpotifyUserCredentials refreshed = getUserCred(REFRESHED_ACCESS_TOKEN, NOW.plus(Duration.ofHours(1)));
+        when(authService.refreshUserAsync(userCred)).thenReturn(completedFuture(Optional.of(refreshed)));
+
+        assertThat(target.getAuthorizedUserAsync(userCred).join()).contains(refreshed);
+    }
+
+    @Test
+    public void shouldRefreshCredsSavedWithoutAnExpiry() {
+        SpotifyUserCredentials userCred = getUserCred();
+        SpotifyUserCredentials refreshed = getUserCred(REFRESHED_ACCESS_TOKEN, NOW.plus(Duration.ofHours(1)));
+        when(authService.refreshUserAsync(userCred)).thenReturn(completedFuture(Optional.of(refreshed)));
+
+        assertThat(target.getAuthorizedUserAsync(userCred).join()).contains(refreshed);
+    }
+
+    @Test
+    public void shouldHandOutCachedTokenForStaleCredsOfTheSameUser() {
+        SpotifyUserCredentials stale = getUserCred(ACCESS_TOKEN, NOW.minus(Duration.ofMinutes(1)));
+        SpotifyUserCredentials refreshed = getUserCred(REFRESHED_ACCESS_TOKEN, NOW.plus(Duration.ofHours(1)));
+        when(authService.refreshUserAsync(stale)).thenReturn(completedFuture(Optional.of(refreshed)));
+
+        target.getAuthorizedUserAsync(stale).join();
+
+        // A caller still holding the old creds gets the cached token, rather than refreshing again.
+        assertThat(target.getAuthorizedUserAsync(stale).join()).contains(refreshed);
+        verify(authService).refreshUserAsync(stale);
+    }
+
+    @Test
+    public void shouldRefreshRejectedTokenEvenIfNotExpired() {
+        SpotifyUserCredentials rejected = getUserCred(ACCESS_TOKEN, NOW.plus(Duration.ofMinutes(30)));
+        SpotifyUserCredentials refreshed = getUserCred(REFRESHED_ACCESS_TOKEN, NOW.plus(Duration.ofHours(1)));
+        when(authService.refreshUserAsync(rejected)).thenReturn(completedFuture(Optional.of(refreshed)));
+
+        target.getAuthorizedUserAsync(rejected).join();
+        assertThat(target.refreshRejectedUserAsync(rejected).join()).contains(refreshed);
+        assertThat(target.getAuthorizedUserAsync(rejected).join()).contains(refreshed);
+    }
+
+    @Test
+    public void shouldNotRefreshRejectedTokenWhenCacheAlreadyHasANewerOne() {
+        SpotifyUserCredentials rejected = getUserCred(ACCESS_TOKEN, NOW.plus(Duration.ofMinutes(30)));
+        SpotifyUserCredentials newer = getUserCred(REFRESHED_ACCESS_TOKEN, NOW.plus(Duration.ofHours(1)));
+
+        target.getAuthorizedUserAsync(newer).join();
+        assertThat(target.refreshRejectedUserAsync(rejected).join()).contains(newer);
+        verify(authService, never()).refreshUserAsync(any());
+    }
+
+    @Test
+    public void shouldDropForgottenUser() {
+        SpotifyUserCredentials userCred = getUserCred(ACCESS_TOKEN, NOW.plus(Duration.ofMinutes(30)));
+        target.getAuthorizedUserAsync(userCred).join();
+
+        target.forget(USER_ID);
+        assertThat(target.getCachedUser(USER_ID)).isEmpty();
+    }
+
+    @Test
+    public void shouldFailWhenRefreshTokenIsRevoked() {
+        SpotifyUserCredentials userCred = getUserCred();
+        CompletableFuture<Optional<SpotifyUserCredentials>> revoked = new CompletableFuture<>();
+        revoked.completeExceptionally(new SpotifyUnauthorizedException());
+        when(authService.refreshUserAsync(userCred)).thenReturn(revoked);
+
+        assertThatThrownBy(() -> target.getAuthorizedUserAsync(userCred).join()).hasCauseInstanceOf(SpotifyUnauthorizedException.class);
+    }
+
+    private SpotifyUserCredentials getUserCred(String accessToken, Instant expiresAt) {
+        return new SpotifyUserCredentials.Builder()
+                .setClientCred(getClientCred())
+                .setUserId(USER_ID)
+                .setUserDisplayName(USER_DISPLAY_NAME)
+                .setAccessToken(accessToken)
+                .setRefreshToken(REFRESH_TOKEN)
+                .setAccessTokenExpiresAt(expiresAt.toEpochMilli())
+                .build();
+    }
+}
@@ -1,19 +1,33 @@
 package org.ciakraa.wavelet.web_api;
 
+import com.sun.net.httpserver.HttpServer;
 import com.wrapper.spotify.exceptions.SpotifyWebApiException;
 import com.wrapper.spotify.exceptions.detailed.UnauthorizedException;
 import com.wrapper.spotify.model_objects.specification.AudioFeatures;
 import com.wrapper.spotify.model_objects.specification.PlayHistory;
+import com.wrapper.spotify.requests.data.player.GetCurrentUsersRecentlyPlayedTracksRequest;
+import com.wrapper.spotify.requests.data.tracks.GetAudioFeaturesForSeveralTracksRequest;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.MockitoAnnotations;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static java.util.Collections.emptyList;
 import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.ciakraa.wavelet.common.CommonTestConstants.*;
 import static org.ciakraa.wavelet.web_api.WebApiConstants.*;
@@ -25,7 +39,7 @@ public final class SpotifyActivityServiceUnitTest extends AbstractWebApiMockRequ
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
-        target = new SpotifyActivityService(apiFactory);
+        target = new SpotifyActivityService(apiFactory, getRateLimiter(), getRetryScheduler());
 
         mockRequests();
     }
@@ -37,6 +51,8 @@ public final class SpotifyActivityServiceUnitTest extends AbstractWebApiMockRequ
         assertThatIllegalArgumentException().isThrownBy(() -> target.getRecentlyListened(getUserCred(), -1));
         assertThatIllegalArgumentException().isThrownBy(() -> target.getRecentlyListened(getUserCred(), MAX_RECENTLY_LISTENED_TO + 1));
         assertThatIllegalArgumentException().isThrownBy(() -> target.getRecentlyListened(getUserCred(), MAX_RECENTLY_LISTENED_TO, -1));
+        assertThatIllegalArgumentException().isThrownBy(() -> target.getRecentlyListenedAfter(getUserCred(), MAX_RECENTLY_LISTENED_TO, -1));
+        assertThatIllegalArgumentException().isThrownBy(() -> target.getRecentlyListenedAfter(getUserCred(), MAX_RECENTLY_LISTENED_TO + 1, 0));
     }
 
     @Test
@@ -64,6 +80,88 @@ public final class SpotifyActivityServiceUnitTest extends AbstractWebApiMockRequ
 
     }
 
+    @Test
+    public void shouldOnlyAskForPlaysAfterCursor() throws Exception  {
+        long after = 1528060440000L;
+        when(apiFactory.build(any(GetCurrentUsersRecentlyPlayedTracksRequest.Builder.class))).then(answer -> {
+            GetCurrentUsersRecentlyPlayedTracksRequest.Builder builder = answer.getArgument(0);
+            GetCurrentUsersRecentlyPlayedTracksRequest req = builder.setHttpManager(MockedHttpManager.returningJson(RECENTLY_PLAYED_JSON)).build();
+
+            assertThat(req.getUri().getQuery()).contains("after=" + after).doesNotContain("before=");
+            return req;
+        });
+
+        List<PlayHistory> result = target.getRecentlyListenedAfter(getUserCred(), MAX_RECENTLY_LISTENED_TO, after);
+        assertPlayHistories(result);
+    }
+
+    @Test
+    public void shouldReadTracksWithReader() throws Exception {
+        mockHttpManager();
+
+        Optional<Integer> result = target.readRecentlyListened(getUserCred(), MAX_RECENTLY_LISTENED_TO, parser -> {
+            int tokens = 0;
+            while (parser.nextToken() != null) {
+                tokens++;
+            }
+            return tokens;
+        });
+        assertThat(result).hasValueSatisfying(tokens -> assertThat(tokens).isPositive());
+    }
+
+    @Test
+    public void shouldReadTracksAsTheyArriveThroughOurTransport() throws Exception {
+        byte[] body = readTestData(RECENTLY_PLAYED_JSON).getBytes(StandardCharsets.UTF_8);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        SpotifyHttpTransport transport = new SpotifyHttpTransport(1, Duration.ofSeconds(30), Duration.ofSeconds(1), Duration.ofSeconds(1));
+        when(apiFactory.build(any(GetCurrentUsersRecentlyPlayedTracksRequest.Builder.class))).then(answer -> {
+            GetCurrentUsersRecentlyPlayedTracksRequest.Builder builder = answer.getArgument(0);
+            return builder.setHttpManager(transport).setScheme("http").setHost("127.0.0.1").setPort(server.getAddress().getPort()).build();
+        });
+
+        try {
+            Optional<Integer> result = target.readRecentlyListened(getUserCred(), MAX_RECENTLY_LISTENED_TO, parser -> {
+                assertThat(parser.getInputSource()).isInstanceOf(InputStream.class);
+                int tokens = 0;
+                while (parser.nextToken() != null) {
+                    tokens++;
+                }
+                return tokens;
+            });
+            assertThat(result).hasValueSatisfying(tokens -> assertThat(tokens).isPositive());
+        } finally {
+            transport.close();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void shouldReturnEmptyWhenReaderCannotReadResponse() throws Exception {
+        when(recentTracksReq.getJson()).thenReturn("{\"items\": [");
+
+        assertThat(target.readRecentlyListened(getUserCred(), MAX_RECENTLY_LISTENED_TO, parser -> {
+            while (parser.nextToken() != null) {
+                // Runs into the end of the truncated body.
+            }
+            return true;
+        })).isEmpty();
+    }
+
+    @Test
+    public void shouldThrowExceptionWhenReadRecentlyListenedFailsOnUnauthorizedException() throws Exception {
+        when(recentTracksReq.getJson()).thenThrow(new UnauthorizedException());
+
+        assertThatExceptionOfType(SpotifyUnauthorizedException.class)
+                .isThrownBy(() -> target.readRecentlyListened(getUserCred(), MAX_RECENTLY_LISTENED_TO, parser -> true));
+    }
+
     @Test
     public void shouldThrowExceptionsWhenGetFeaturedTracksIsPassedInvalidArgs() throws SpotifyUnauthorizedException {
         assertThatNullPointerException().isThrownBy(() -> target.getAudioFeatures(null, Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID)));
@@ -74,7 +172,7 @@ public final class SpotifyActivityServiceUnitTest extends AbstractWebApiMockRequ
 
     @Test
     public void shouldReturnEmptyCredWhenGetFeaturedTracksFailsWithSpotifyWebApiException() throws Exception  {
-        when(audioFeaturesReq.execute()).thenThrow(new SpotifyWebApiException());
+        when(audioFeaturesReq.getJson()).thenThrow(new SpotifyWebApiException());
 
         List<AudioFeatures> result = target.getAudioFeatures(getUserCred(), Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID));
         assertThat(result).isEmpty();
@@ -89,6 +187,32 @@ public final class SpotifyActivityServiceUnitTest extends AbstractWebApiMockRequ
         assertAudioFeatures(result);
     }
 
+    @Test
+    public void shouldSplitAudioFeaturesRequestsSpotifyCannotTakeInOne() throws Exception {
+        when(audioFeaturesReq.getJson()).thenReturn("{\"audio_features\":[{\"id\":\"" + TRACK_ONE_ID + "\"}]}");
+        List<String> trackIds = IntStream.range(0, 250).mapToObj(String::valueOf).collect(Collectors.toList());
+
+        assertThat(target.getAudioFeatures(getUserCred(), trackIds)).hasSize(3);
+        assertThat(target.getAudioFeaturesAsync(getUserCred(), trackIds).join()).hasSize(3);
+        verify(apiFactory, times(6)).build(any(GetAudioFeaturesForSeveralTracksRequest.Builder.class));
+    }
+
+    @Test
+    public void shouldReturnTracksAndFeaturesAsync() throws Exception  {
+        mockHttpManager();
+
+        assertPlayHistories(target.getRecentlyListenedAsync(getUserCred(), MAX_RECENTLY_LISTENED_TO).join());
+        assertAudioFeatures(target.getAudioFeaturesAsync(getUserCred(), Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID)).join());
+    }
+
+    @Test
+    public void shouldFailAsyncWhenGetRecentlyListenedFailsOnUnauthorizedException() throws Exception {
+        when(recentTracksReq.execute()).thenThrow(new UnauthorizedException());
+
+        assertThatThrownBy(() -> target.getRecentlyListenedAsync(getUserCred(), MAX_RECENTLY_LISTENED_TO).join())
+                .hasCauseInstanceOf(SpotifyUnauthorizedException.class);
+    }
+
     private void assertPlayHistories(List<PlayHistory> result) {
         PlayHistory trackOne = result.get(0);
         assertThat(trackOne.getTrack().getId()).isEqualTo(TRACK_ONE_ID);
@@ -0,0 +1,63 @@
+package org.ciakraa.wavelet.web_api;
+
+import com.wrapper.spotify.IHttpManager;
+import com.wrapper.spotify.SpotifyApi;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.ciakraa.wavelet.common.CommonTestConstants.*;
+import static org.mockito.Mockito.mock;
+
+public final class SpotifyApiFactoryUnitTest extends AbstractWebApiUnitTest {
+
+    private IHttpManager httpManager;
+
+    private SpotifyApiFactory target;
+
+    @Before
+    public void setUp() {
+        httpManager = mock(IHttpManager.class);
+        target = new SpotifyApiFactory(httpManager);
+    }
+
+    @Test
+    public void shouldSendEveryRequestThroughTheSharedHttpManager() {
+        assertThat(target.build(new SpotifyApi.Builder()).getHttpManager()).isSameAs(httpManager);
+        assertThat(target.getClientApi().getHttpManager()).isSameAs(httpManager);
+        assertThat(target.getUserApi(getUserCred()).getHttpManager()).isSameAs(httpManager);
+    }
+
+    @Test
+    public void shouldReuseUserApiWhileAccessTokenIsUnchanged() {
+        SpotifyApi api = target.getUserApi(getUserCred());
+
+        assertThat(target.getUserApi(getUserCred())).isSameAs(api);
+        assertThat(api.getAccessToken()).isEqualTo(ACCESS_TOKEN);
+    }
+
+    @Test
+    public void shouldRebuildUserApiOnceUserIsForgotten() {
+        SpotifyApi api = target.getUserApi(getUserCred());
+
+        target.forget(USER_ID);
+        assertThat(target.getUserApi(getUserCred())).isNotSameAs(api);
+    }
+
+    @Test
+    public void shouldRebuildUserApiWhenAccessTokenChanges() {
+        SpotifyApi api = target.getUserApi(getUserCred());
+
+        SpotifyUserCredentials refreshed = new SpotifyUserCredentials.Builder()
+                .setClientCred(getClientCred())
+                .setUserId(USER_ID)
+                .setUserDisplayName(USER_DISPLAY_NAME)
+                .setAccessToken(REFRESHED_ACCESS_TOKEN)
+                .setRefreshToken(REFRESH_TOKEN)
+                .build();
+
+        SpotifyApi refreshedApi = target.getUserApi(refreshed);
+        assertThat(refreshedApi).isNotSameAs(api);
+        assertThat(refreshedApi.getAccessToken()).isEqualTo(REFRESHED_ACCESS_TOKEN);
+    }
+}
@@ -0,0 +1,151 @@
+package org.ciakraa.wavelet.web_api;
+
+import com.wrapper.spotify.model_objects.specification.AudioFeatures;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.ciakraa.wavelet.common.CommonTestConstants.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public final class SpotifyAudioFeaturesBatcherUnitTest extends AbstractWebApiUnitTest {
+
+    @Mock
+    private SpotifyActivityService activityService;
+
+    @Mock
+    private ScheduledExecutorService timer;
+
+    @Mock
+    private ScheduledFuture<?> scheduledFlush;
+
+    private SpotifyUserCredentials otherUserCred;
+
+    private SpotifyAudioFeaturesBatcher target;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        doReturn(scheduledFlush).when(timer).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+        otherUserCred = new SpotifyUserCredentials.Builder()
+                .setClientCred(getClientCred())
+                .setUserId("other" + USER_ID)
+                .setUserDisplayName(USER_DISPLAY_NAME)
+                .setAccessToken(REFRESHED_ACCESS_TOKEN)
+                .setRefreshToken(REFRESH_TOKEN)
+                .build();
+
+        target = new SpotifyAudioFeaturesBatcher(activityService, timer, Duration.ofMillis(50), 3);
+    }
+
+    @Test
+    public void shouldThrowExceptionWhenPassedInvalidArgs() {
+        assertThatIllegalArgumentException().isThrownBy(() -> new SpotifyAudioFeaturesBatcher(activityService, timer, Duration.ofMillis(50), 0));
+        assertThatIllegalArgumentException().isThrownBy(() -> target.getAudioFeaturesAsync(getUserCred(), Arrays.asList()));
+    }
+
+    @Test
+    public void shouldCoalesceLookupsWithinTheWindow() {
+        when(activityService.getAudioFeaturesAsync(getUserCred(), Arrays.asList("a", "b")))
+                .thenReturn(completedFuture(Arrays.asList(getFeatures("a"), getFeatures("b"))));
+
+        CompletableFuture<List<AudioFeatures>> first = target.getAudioFeaturesAsync(getUserCred(), singletonList("a"));
+        CompletableFuture<List<AudioFeatures>> second = target.getAudioFeaturesAsync(otherUserCred, Arrays.asList("b", "a"));
+        assertThat(first).isNotDone();
+        verify(timer, times(1)).schedule(any(Runnable.class), eq(50L), eq(TimeUnit.MILLISECONDS));
+
+        getScheduledFlush().run();
+
+        assertThat(first.join()).extracting(AudioFeatures::getId).containsExactly("a");
+        assertThat(second.join()).extracting(AudioFeatures::getId).containsExactly("b", "a");
+    }
+
+    @Test
+    public void shouldSendFullBatchWithoutWaiting() {
+        when(activityService.getAudioFeaturesAsync(any(), any())).thenReturn(completedFuture(Arrays.asList(getFeatures("a"), getFeatures("b"), getFeatures("c"))));
+
+        CompletableFuture<List<AudioFeatures>> first = target.getAudioFeaturesAsync(getUserCred(), Arrays.asList("a", "b"));
+        CompletableFuture<List<AudioFeatures>> second = target.getAudioFeaturesAsync(otherUserCred, Arrays.asList("b", "c"));
+
+        assertThat(first.join()).hasSize(2);
+        assertThat(second.join()).hasSize(2);
+        verify(activityService).getAudioFeaturesAsync(getUserCred(), Arrays.asList("a", "b", "c"));
+        verify(scheduledFlush).cancel(false);
+    }
+
+    @Test
+    public void shouldStartNextBatchWhenLookupDoesNotFit() {
+        when(activityService.getAudioFeaturesAsync(any(), any())).thenReturn(completedFuture(singletonList(getFeatures("a"))));
+
+        target.getAudioFeaturesAsync(getUserCred(), Arrays.asList("a", "b"));
+        target.getAudioFeaturesAsync(otherUserCred, Arrays.asList("c", "d"));
+
+        verify(activityService).getAudioFeaturesAsync(getUserCred(), Arrays.asList("a", "b"));
+        verify(activityService, never()).getAudioFeaturesAsync(eq(otherUserCred), any());
+    }
+
+    @Test
+    public void shouldResendLookupsAloneWhenBatchTokenIsRejected() {
+        when(activityService.getAudioFeaturesAsync(getUserCred(), Arrays.asList("a", "b"))).thenReturn(failed(new SpotifyUnauthorizedException()));
+        when(activityService.getAudioFeaturesAsync(getUserCred(), singletonList("a"))).thenReturn(failed(new SpotifyUnauthorizedException()));
+        when(activityService.getAudioFeaturesAsync(otherUserCred, singletonList("b"))).thenReturn(completedFuture(singletonList(getFeatures("b"))));
+
+        CompletableFuture<List<AudioFeatures>> rejected = target.getAudioFeaturesAsync(getUserCred(), singletonList("a"));
+        CompletableFuture<List<AudioFeatures>> other = target.getAudioFeaturesAsync(otherUserCred, singletonList("b"));
+        getScheduledFlush().run();
+
+        assertThatThrownBy(rejected::join).hasCauseInstanceOf(SpotifyUnauthorizedException.class);
+        assertThat(other.join()).extracting(AudioFeatures::getId).containsExactly("b");
+    }
+
+    @Test
+    public void shouldFailEveryLookupWhenBatchFails() {
+        when(activityService.getAudioFeaturesAsync(any(), any())).thenReturn(failed(new IllegalStateException()));
+
+        CompletableFuture<List<AudioFeatures>> first = target.getAudioFeaturesAsync(getUserCred(), singletonList("a"));
+        CompletableFuture<List<AudioFeatures>> second = target.getAudioFeaturesAsync(otherUserCred, singletonList("b"));
+        getScheduledFlush().run();
+
+        assertThatThrownBy(first::join).hasCauseInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(second::join).hasCauseInstanceOf(IllegalStateException.class);
+        verify(activityService, times(1)).getAudioFeaturesAsync(any(), any());
+    }
+
+    private Runnable getScheduledFlush() {
+        ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+        verify(timer).schedule(flush.capture(), anyLong(), any(TimeUnit.class));
+        return flush.getValue();
+    }
+
+    private static AudioFeatures getFeatures(String trackId) {
+        return new AudioFeatures.Builder().setId(trackId).build();
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+}
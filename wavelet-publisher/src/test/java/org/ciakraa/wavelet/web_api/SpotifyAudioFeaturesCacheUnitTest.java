@@ -0,0 +1,231 @@
+package org.ciakraa.wavelet.web_api;
+
+import com.wrapper.spotify.enums.Modality;
+import com.wrapper.spotify.model_objects.specification.AudioFeatures;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.ciakraa.wavelet.common.CommonTestConstants.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public final class SpotifyAudioFeaturesCacheUnitTest extends AbstractWebApiUnitTest {
+
+    private static final Duration REDIS_TTL = Duration.ofDays(30);
+
+    @Mock
+    private SpotifyActivityService activityService;
+
+    @Mock
+    private RedisOperations<String, Object> redis;
+
+    @Mock
+    private ValueOperations<String, Object> redisValueOps;
+
+    @Mock
+    private ScheduledExecutorService timer;
+
+    // Sends every lookup on its own straight away, so the cache's requests are easy to stub.
+    private SpotifyAudioFeaturesBatcher batcher;
+
+    // Stands in for Redis, by key.
+    private Map<String, Object> redisValues;
+
+    // Each key's expiry, in seconds.
+    private Map<String, Long> redisTtls;
+
+    private SpotifyAudioFeaturesCache target;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        redisValues = new HashMap<>();
+        redisTtls = new HashMap<>();
+        when(redis.opsForValue()).thenReturn(redisValueOps);
+        when(redisValueOps.multiGet(anyCollection())).thenAnswer(invocation -> {
+            List<Object> values = new ArrayList<>();
+            ((Collection<String>) invocation.getArgument(0)).forEach(key -> values.add(redisValues.get(key)));
+            return values;
+        });
+        when(redis.execute(any(RedisScript.class), anyList(), any())).thenAnswer(invocation -> {
+            List<String> keys = invocation.getArgument(1);
+            Object[] args = Arrays.copyOfRange(invocation.getArguments(), 2, invocation.getArguments().length);
+            for (int i = 0; i < keys.size(); i++) {
+                redisValues.put(keys.get(i), args[1 + i]);
+                redisTtls.put(keys.get(i), (Long) args[0]);
+            }
+            return (long) keys.size();
+        });
+
+        batcher = new SpotifyAudioFeaturesBatcher(activityService, timer, Duration.ZERO, 1);
+        target = new SpotifyAudioFeaturesCache(activityService, batcher, redis, 2, REDIS_TTL);
+    }
+
+    @Test
+    public void shouldThrowExceptionWhenPassedInvalidArgs() {
+        assertThatIllegalArgumentException().isThrownBy(() -> new SpotifyAudioFeaturesCache(activityService, batcher, redis, 0, REDIS_TTL));
+        assertThatIllegalArgumentException().isThrownBy(() -> new SpotifyAudioFeaturesCache(activityService, batcher, redis, 2, Duration.ZERO));
+        assertThatIllegalArgumentException().isThrownBy(() -> target.getAudioFeatures(getUserCred(), emptyList()));
+    }
+
+    @Test
+    public void shouldOnlyFetchUncachedTracksFromSpotify() throws SpotifyUnauthorizedException {
+        when(activityService.getAudioFeatures(getUserCred(), singletonList(TRACK_ONE_ID))).thenReturn(singletonList(getFeatures(TRACK_ONE_ID)));
+        target.getAudioFeatures(getUserCred(), singletonList(TRACK_ONE_ID));
+
+        when(activityService.getAudioFeatures(getUserCred(), singletonList(TRACK_TWO_ID))).thenReturn(singletonList(getFeatures(TRACK_TWO_ID)));
+        List<AudioFeatures> features = target.getAudioFeatures(getUserCred(), Arrays.asList(TRACK_TWO_ID, TRACK_ONE_ID));
+
+        assertThat(features).extracting(AudioFeatures::getId).containsExactly(TRACK_TWO_ID, TRACK_ONE_ID);
+        assertThat(target.getLocalHits()).isEqualTo(1);
+        assertThat(target.getMisses()).isEqualTo(2);
+        assertThat(target.getHitRate()).isEqualTo(1 / 3.0);
+    }
+
+    @Test
+    public void shouldReadThroughRedisBeforeSpotify() {
+        redisValues.put(getRedisKey(TRACK_ONE_ID), SpotifyAudioFeaturesCache.CachedAudioFeatures.of(getFeatures(TRACK_ONE_ID)));
+
+        List<AudioFeatures> features = target.getAudioFeaturesAsync(getUserCred(), singletonList(TRACK_ONE_ID)).join();
+
+        assertThat(features).extracting(AudioFeatures::getId).containsExactly(TRACK_ONE_ID);
+        assertThat(target.getRedisHits()).isEqualTo(1);
+        assertThat(target.getSize()).isEqualTo(1);
+        verify(activityService, never()).getAudioFeaturesAsync(any(), any());
+    }
+
+    @Test
+    public void shouldShareFetchedTracksThroughRedis() {
+        when(activityService.getAudioFeaturesAsync(getUserCred(), singletonList(TRACK_ONE_ID)))
+                .thenReturn(completedFuture(singletonList(getFeatures(TRACK_ONE_ID))));
+        target.getAudioFeaturesAsync(getUserCred(), singletonList(TRACK_ONE_ID)).join();
+
+        // Another instance, with nothing cached in its own process.
+        SpotifyAudioFeaturesCache other = new SpotifyAudioFeaturesCache(activityService, batcher, redis, 2, REDIS_TTL);
+        other.getAudioFeaturesAsync(getUserCred(), singletonList(TRACK_ONE_ID)).join();
+        assertThat(other.getRedisHits()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldExpireEachTrackInRedis() throws SpotifyUnauthorizedException {
+        when(activityService.getAudioFeatures(getUserCred(), Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID)))
+                .thenReturn(Arrays.asList(getFeatures(TRACK_ONE_ID), getFeatures(TRACK_TWO_ID)));
+
+        target.getAudioFeatures(getUserCred(), Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID));
+
+        assertThat(redisTtls).containsOnlyKeys(getRedisKey(TRACK_ONE_ID), getRedisKey(TRACK_TWO_ID))
+                .containsValues(REDIS_TTL.getSeconds());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedTrack() throws SpotifyUnauthorizedException {
+        when(activityService.getAudioFeatures(any(), any())).thenAnswer(invocation -> {
+            List<String> trackIds = invocation.getArgument(1);
+            return singletonList(getFeatures(trackIds.get(0)));
+        });
+
+        target.getAudioFeatures(getUserCred(), singletonList("one"));
+        target.getAudioFeatures(getUserCred(), singletonList("two"));
+        target.getAudioFeatures(getUserCred(), singletonList("one"));
+        target.getAudioFeatures(getUserCred(), singletonList("three"));
+
+        assertThat(target.getSize()).isEqualTo(2);
+        assertThat(target.getEvictions()).isEqualTo(1);
+
+        // "two" was evicted from this process, but is still in Redis.
+        target.getAudioFeatures(getUserCred(), singletonList("two"));
+        assertThat(target.getRedisHits()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReturnEmptyListWhenSpotifyFailsAndNothingIsCached() throws SpotifyUnauthorizedException {
+        when(activityService.getAudioFeatures(getUserCred(), Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).thenReturn(emptyList());
+
+        assertThat(target.getAudioFeatures(getUserCred(), Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID))).isEmpty();
+    }
+
+    @Test
+    public void shouldReturnCachedFeaturesWhenSpotifyFails() throws SpotifyUnauthorizedException {
+        redisValues.put(getRedisKey(TRACK_ONE_ID), SpotifyAudioFeaturesCache.CachedAudioFeatures.of(getFeatures(TRACK_ONE_ID)));
+        when(activityService.getAudioFeatures(getUserCred(), singletonList(TRACK_TWO_ID))).thenReturn(emptyList());
+
+        List<AudioFeatures> features = target.getAudioFeatures(getUserCred(), Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID));
+        assertThat(features).extracting(AudioFeatures::getId).containsExactly(TRACK_ONE_ID);
+    }
+
+    @Test
+    public void shouldReturnCachedFeaturesWhenEveryFetchedTrackIsNull() throws SpotifyUnauthorizedException {
+        redisValues.put(getRedisKey(TRACK_ONE_ID), SpotifyAudioFeaturesCache.CachedAudioFeatures.of(getFeatures(TRACK_ONE_ID)));
+        when(activityService.getAudioFeatures(getUserCred(), singletonList(TRACK_TWO_ID))).thenReturn(singletonList(null));
+
+        List<AudioFeatures> features = target.getAudioFeatures(getUserCred(), Arrays.asList(TRACK_ONE_ID, TRACK_TWO_ID));
+        assertThat(features).extracting(AudioFeatures::getId).containsExactly(TRACK_ONE_ID);
+        verify(redis, never()).execute(any(RedisScript.class), anyList(), any());
+    }
+
+    @Test
+    public void shouldFallThroughToSpotifyWhenRedisIsDown() throws SpotifyUnauthorizedException {
+        when(redisValueOps.multiGet(anyCollection())).thenThrow(new RedisConnectionFailureException("down"));
+        when(redis.execute(any(RedisScript.class), anyList(), any())).thenThrow(new RedisConnectionFailureException("down"));
+        when(activityService.getAudioFeatures(getUserCred(), singletonList(TRACK_ONE_ID))).thenReturn(singletonList(getFeatures(TRACK_ONE_ID)));
+
+        assertThat(target.getAudioFeatures(getUserCred(), singletonList(TRACK_ONE_ID))).hasSize(1);
+        assertThat(target.getAudioFeatures(getUserCred(), singletonList(TRACK_ONE_ID))).hasSize(1);
+        assertThat(target.getLocalHits()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldSurviveRedisSerialization() {
+        GenericJackson2JsonRedisSerializer serializer = new GenericJackson2JsonRedisSerializer();
+        AudioFeatures features = getFeatures(TRACK_ONE_ID);
+
+        Object deserialized = serializer.deserialize(serializer.serialize(SpotifyAudioFeaturesCache.CachedAudioFeatures.of(features)));
+
+        assertThat(deserialized).isInstanceOf(SpotifyAudioFeaturesCache.CachedAudioFeatures.class);
+        AudioFeatures restored = ((SpotifyAudioFeaturesCache.CachedAudioFeatures) deserialized).toAudioFeatures();
+        assertThat(restored).isEqualToComparingFieldByField(features);
+    }
+
+    private static String getRedisKey(String trackId) {
+        return WebApiConstants.AUDIO_FEATURES_KEY_PREFIX + trackId;
+    }
+
+    private AudioFeatures getFeatures(String trackId) {
+        return new AudioFeatures.Builder()
+                .setId(trackId)
+                .setAcousticness(TRACK_ONE_ACOUSTICNESS)
+                .setDanceability(TRACK_ONE_DANCEABILITY)
+                .setEnergy(TRACK_ONE_ENERGY)
+                .setInstrumentalness(TRACK_ONE_INSTRUMENTALNESS)
+                .setKey(TRACK_ONE_KEY)
+                .setLiveness(TRACK_ONE_LIVENESS)
+                .setLoudness(TRACK_ONE_LOUDNESS)
+                .setMode(Modality.MINOR)
+                .setSpeechiness(TRACK_ONE_SPEECHINESS)
+                .setTempo(TRACK_ONE_TEMPO)
+                .setTimeSignature(TRACK_ONE_TIME_SIGNATURE)
+                .setValence(TRACK_ONE_VALENCE)
+                .build();
+    }
+}
@@ -16,12 +16,15 @@ import org.springframework.web.util.UriComponentsBuilder;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URLDecoder;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Optional;
 
 import static org.assertj.core.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.ciakraa.wavelet.common.CommonTestConstants.*;
 import static org.ciakraa.wavelet.web_api.WebApiConstants.*;
@@ -55,7 +58,7 @@ public final class SpotifyAuthorizationServiceUnitTest extends AbstractWebApiMoc
         mockRequests();
         mockRedis();
 
-        target = new SpotifyAuthorizationService(getClientCred(), apiFactory, redis, userService);
+        target = new SpotifyAuthorizationService(getClientCred(), apiFactory, redis, userService, getRateLimiter(), getRetryScheduler());
     }
 
     @Test
@@ -164,6 +167,9 @@ public final class SpotifyAuthorizationServiceUnitTest extends AbstractWebApiMoc
         mockHttpManager();
 
         SpotifyUserCredentials result = target.refreshUser(getUserCred()).get();
+        assertThat(result.isAccessTokenValidAt(Instant.now().plus(Duration.ofMinutes(59)))).isTrue();
+        assertThat(result.isAccessTokenValidAt(Instant.now().plus(Duration.ofMinutes(61)))).isFalse();
+        verify(userService).save(result);
         assertThat(result.getUserId()).isEqualTo(USER_ID);
         assertThat(result.getUserDisplayName()).isEqualTo(USER_DISPLAY_NAME);
         assertThat(result.getAccessToken()).isEqualTo(REFRESHED_ACCESS_TOKEN);
@@ -171,6 +177,15 @@ public final class SpotifyAuthorizationServiceUnitTest extends AbstractWebApiMoc
         assertThat(result.getClientCred().validate()).isTrue();
     }
 
+    @Test
+    public void shouldReturnValidCredWhenAsyncUserRefreshSuceeds() {
+        mockHttpManager();
+
+        SpotifyUserCredentials result = target.refreshUserAsync(getUserCred()).join().get();
+        assertThat(result.getUserId()).isEqualTo(USER_ID);
+        assertThat(result.getAccessToken()).isEqualTo(REFRESHED_ACCESS_TOKEN);
+    }
+
     private void mockRedis() {
         when(redis.boundSetOps(STATES_KEY)).thenReturn(states);
         when(states.isMember(anyString())).thenReturn(true);
@@ -0,0 +1,154 @@
+package org.ciakraa.wavelet.web_api;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+public final class SpotifyCircuitBreakerUnitTest {
+
+    private static final String ENDPOINT = "api.spotify.com/v1/me/player/recently-played";
+    private static final String OTHER_ENDPOINT = "api.spotify.com/v1/audio-features";
+    private static final Duration SLOW_CALL = Duration.ofSeconds(1);
+    private static final Duration OPEN = Duration.ofSeconds(30);
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private AtomicLong now;
+    private SpotifyCircuitBreaker target;
+
+    @Before
+    public void setUp() {
+        now = new AtomicLong();
+        target = new SpotifyCircuitBreaker(4, 4, 0.5, SLOW_CALL, OPEN, 2, now::get);
+    }
+
+    @Test
+    public void shouldThrowExceptionWhenPassedInvalidArgs() {
+        assertThatIllegalArgumentException().isThrownBy(() -> new SpotifyCircuitBreaker(0, 1, 0.5, SLOW_CALL, OPEN, 2));
+        assertThatIllegalArgumentException().isThrownBy(() -> new SpotifyCircuitBreaker(4, 5, 0.5, SLOW_CALL, OPEN, 2));
+        assertThatIllegalArgumentException().isThrownBy(() -> new SpotifyCircuitBreaker(4, 4, 0, SLOW_CALL, OPEN, 2));
+        assertThatIllegalArgumentException().isThrownBy(() -> new SpotifyCircuitBreaker(4, 4, 0.5, Duration.ZERO, OPEN, 2));
+        assertThatIllegalArgumentException().isThrownBy(() -> new SpotifyCircuitBreaker(4, 4, 0.5, SLOW_CALL, Duration.ZERO, 2));
+        assertThatIllegalArgumentException().isThrownBy(() -> new SpotifyCircuitBreaker(4, 4, 0.5, SLOW_CALL, OPEN, 0));
+    }
+
+    @Test
+    public void shouldStayClosedUntilEnoughCallsAreSeen() throws Exception {
+        call(ENDPOINT, true, FAST);
+        call(ENDPOINT, true, FAST);
+        call(ENDPOINT, true, FAST);
+
+        assertThat(target.getState(ENDPOINT)).isEqualTo(SpotifyCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void shouldStayClosedBelowFailureRate() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            call(ENDPOINT, i % 4 == 0, FAST);
+        }
+
+        assertThat(target.getState(ENDPOINT)).isEqualTo(SpotifyCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void shouldOpenAndRefuseCallsAtFailureRate() throws Exception {
+        call(ENDPOINT, false, FAST);
+        call(ENDPOINT, true, FAST);
+        call(ENDPOINT, false, FAST);
+        call(ENDPOINT, true, FAST);
+
+        assertThat(target.getState(ENDPOINT)).isEqualTo(SpotifyCircuitBreaker.State.OPEN);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertThatExceptionOfType(SpotifyCircuitOpenException.class).isThrownBy(() -> target.acquire(ENDPOINT))
+                .matches(e -> e.getRetryAfter().equals(Duration.ofSeconds(20)));
+        assertThat(target.getRejected()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldCountSlowCallsAsFailures() throws Exception {
+        long slow = SLOW_CALL.toNanos() + 1;
+        call(ENDPOINT, false, FAST);
+        call(ENDPOINT, false, slow);
+        call(ENDPOINT, false, FAST);
+        call(ENDPOINT, false, slow);
+
+        assertThat(target.getState(ENDPOINT)).isEqualTo(SpotifyCircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void shouldForgetCallsOutsideTheWindow() throws Exception {
+        call(ENDPOINT, true, FAST);
+        for (int i = 0; i < 6; i++) {
+            call(ENDPOINT, false, FAST);
+        }
+        call(ENDPOINT, true, FAST);
+
+        assertThat(target.getState(ENDPOINT)).isEqualTo(SpotifyCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void shouldKeepEachEndpointsCircuitApart() throws Exception {
+        openCircuit();
+
+        call(OTHER_ENDPOINT, false, FAST);
+        assertThat(target.getState(OTHER_ENDPOINT)).isEqualTo(SpotifyCircuitBreaker.State.CLOSED);
+        assertThat(target.getCircuits()).containsEntry(ENDPOINT, "OPEN").containsEntry(OTHER_ENDPOINT, "CLOSED");
+    }
+
+    @Test
+    public void shouldOnlyLetTrialCallsThroughWhenHalfOpen() throws Exception {
+        openCircuit();
+        now.addAndGet(OPEN.toNanos());
+
+        target.acquire(ENDPOINT);
+        target.acquire(ENDPOINT);
+        assertThat(target.getState(ENDPOINT)).isEqualTo(SpotifyCircuitBreaker.State.HALF_OPEN);
+        assertThatExceptionOfType(SpotifyCircuitOpenException.class).isThrownBy(() -> target.acquire(ENDPOINT));
+    }
+
+    @Test
+    public void shouldCloseWhenTrialCallsSucceed() throws Exception {
+        openCircuit();
+        now.addAndGet(OPEN.toNanos());
+
+        call(ENDPOINT, false, FAST);
+        call(ENDPOINT, false, FAST);
+
+        assertThat(target.getState(ENDPOINT)).isEqualTo(SpotifyCircuitBreaker.State.CLOSED);
+
+        // The calls which opened the circuit are forgotten.
+        call(ENDPOINT, true, FAST);
+        assertThat(target.getState(ENDPOINT)).isEqualTo(SpotifyCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void shouldReopenWhenATrialCallFails() throws Exception {
+        openCircuit();
+        now.addAndGet(OPEN.toNanos());
+
+        call(ENDPOINT, false, FAST);
+        call(ENDPOINT, true, FAST);
+
+        assertThat(target.getState(ENDPOINT)).isEqualTo(SpotifyCircuitBreaker.State.OPEN);
+        assertThatExceptionOfType(SpotifyCircuitOpenException.class).isThrownBy(() -> target.acquire(ENDPOINT))
+                .matches(e -> e.getRetryAfter().equals(OPEN));
+    }
+
+    private void openCircuit() throws SpotifyCircuitOpenException {
+        for (int i = 0; i < 4; i++) {
+            call(ENDPOINT, true, FAST);
+        }
+        assertThat(target.getState(ENDPOINT)).isEqualTo(SpotifyCircuitBreaker.State.OPEN);
+    }
+
+    private void call(String endpoint, boolean failed, long latencyNanos) throws SpotifyCircuitOpenException {
+        target.acquire(endpoint);
+        target.record(endpoint, failed, latencyNanos);
+    }
+}
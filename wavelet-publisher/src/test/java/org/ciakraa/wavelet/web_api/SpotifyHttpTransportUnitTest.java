@@ -0,0 +1,317 @@
+package org.ciakraa.wavelet.web_api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.wrapper.spotify.exceptions.detailed.ServiceUnavailableException;
+import com.wrapper.spotify.exceptions.detailed.TooManyRequestsException;
+import com.wrapper.spotify.exceptions.detailed.UnauthorizedException;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.impl.client.cache.BasicHttpCacheStorage;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.ciakraa.wavelet.common.CommonTestConstants.ACCESS_TOKEN;
+import static org.ciakraa.wavelet.common.CommonTestConstants.REFRESHED_ACCESS_TOKEN;
+
+public final class SpotifyHttpTransportUnitTest {
+
+    private static final Header[] NO_HEADERS = new Header[0];
+    private static final Header[] AUTHORIZED = { new BasicHeader("Authorization", "Bearer " + ACCESS_TOKEN) };
+    private static final Header[] OTHER_USER = { new BasicHeader("Authorization", "Bearer " + REFRESHED_ACCESS_TOKEN) };
+
+    private HttpServer server;
+    private HttpHost host;
+
+    // Client ports seen by the server; one per connection the transport opened.
+    private Set<Integer> clientPorts;
+
+    // Requests which reached the server, rather than being answered from the cache.
+    private AtomicInteger served;
+
+    private SpotifyHttpTransport target;
+
+    @Before
+    public void setUp() throws IOException {
+        clientPorts = ConcurrentHashMap.newKeySet();
+        served = new AtomicInteger();
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ok", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            respond(exchange, 200, "{\"id\":\"1\"}");
+        });
+        server.createContext("/empty", exchange -> respond(exchange, 204, ""));
+        server.createContext("/unauthorized", exchange -> respond(exchange, 401, "{\"error\":{\"status\":401,\"message\":\"The access token expired\"}}"));
+        server.createContext("/limited", exchange -> {
+            exchange.getResponseHeaders().add("Retry-After", "3");
+            respond(exchange, 429, "");
+        });
+        server.createContext("/limited-until", exchange -> {
+            exchange.getResponseHeaders().add("Retry-After", DateUtils.formatDate(new Date(System.currentTimeMillis() + 30_000)));
+            respond(exchange, 429, "");
+        });
+        server.createContext("/limited-unreadable", exchange -> {
+            exchange.getResponseHeaders().add("Retry-After", "soon");
+            respond(exchange, 429, "");
+        });
+        server.createContext("/slow", exchange -> {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200, "{}");
+        });
+        server.createContext("/unavailable", exchange -> {
+            served.incrementAndGet();
+            respond(exchange, 503, "");
+        });
+        server.createContext("/public", exchange -> {
+            served.incrementAndGet();
+            exchange.getResponseHeaders().add("Cache-Control", "public, max-age=60");
+            respond(exchange, 200, "{\"id\":\"1\"}");
+        });
+        server.createContext("/revalidate", exchange -> {
+            served.incrementAndGet();
+            exchange.getResponseHeaders().add("Cache-Control", "public, max-age=0, must-revalidate");
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                respond(exchange, 304, "");
+            } else {
+                respond(exchange, 200, "{\"id\":\"1\"}");
+            }
+        });
+        server.createContext("/private", exchange -> {
+            served.incrementAndGet();
+            exchange.getResponseHeaders().add("Cache-Control", "private, max-age=60");
+            respond(exchange, 200, "{\"id\":\"1\"}");
+        });
+        server.start();
+
+        host = new HttpHost("127.0.0.1", server.getAddress().getPort(), "http");
+        target = new SpotifyHttpTransport(4, Duration.ofSeconds(30), Duration.ofSeconds(1), Duration.ofMillis(200));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        target.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void shouldThrowExceptionsWhenPassedInvalidArgs() {
+        assertThatIllegalArgumentException().isThrownBy(() -> new SpotifyHttpTransport(0, Duration.ofSeconds(30), Duration.ofSeconds(1), Duration.ofSeconds(1)));
+        assertThatIllegalArgumentException().isThrownBy(() -> new SpotifyHttpTransport(4, Duration.ZERO, Duration.ofSeconds(1), Duration.ofSeconds(1)));
+        assertThatIllegalArgumentException().isThrownBy(() -> new SpotifyHttpTransport(4, Duration.ofSeconds(30), Duration.ZERO, Duration.ofSeconds(1)));
+        assertThatIllegalArgumentException().isThrownBy(() -> new SpotifyHttpTransport(4, Duration.ofSeconds(30), Duration.ofSeconds(1), Duration.ZERO));
+    }
+
+    @Test
+    public void shouldReuseOneConnectionForSequentialRequests() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            assertThat(target.get(uri("/ok"), NO_HEADERS)).isEqualTo("{\"id\":\"1\"}");
+        }
+
+        assertThat(clientPorts).hasSize(1);
+        assertThat(target.getStats().getAvailable()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldServeFirstRequestFromAWarmConnection() throws Exception {
+        target.warmUp(singletonList(host), 2);
+        assertThat(target.getStats().getAvailable()).isEqualTo(2);
+
+        target.get(uri("/ok"), NO_HEADERS);
+        assertThat(target.getStats().getAvailable()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldCarryOnWhenAHostCannotBeWarmedUp() throws IOException {
+        HttpHost unreachable = new HttpHost("127.0.0.1", server.getAddress().getPort(), "http");
+        server.stop(0);
+
+        target.warmUp(singletonList(unreachable), 2);
+        assertThat(target.getStats().getAvailable()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldMapErrorsToLibraryExceptions() {
+        assertThatExceptionOfType(UnauthorizedException.class)
+                .isThrownBy(() -> target.get(uri("/unauthorized"), NO_HEADERS))
+                .withMessage("The access token expired");
+
+        assertThatExceptionOfType(TooManyRequestsException.class)
+                .isThrownBy(() -> target.get(uri("/limited"), NO_HEADERS))
+                .matches(e -> e.getRetryAfter() == 3);
+    }
+
+    @Test
+    public void shouldReadRetryAfterGivenAsDate() {
+        assertThatExceptionOfType(TooManyRequestsException.class)
+                .isThrownBy(() -> target.get(uri("/limited-until"), NO_HEADERS))
+                .matches(e -> e.getRetryAfter() > 0 && e.getRetryAfter() <= 30);
+    }
+
+    @Test
+    public void shouldIgnoreUnreadableRetryAfter() {
+        assertThatExceptionOfType(TooManyRequestsException.class)
+                .isThrownBy(() -> target.get(uri("/limited-unreadable"), NO_HEADERS))
+                .matches(e -> e.getRetryAfter() == 0);
+    }
+
+    @Test
+    public void shouldHandBodiesToReaderAsTheyArrive() throws Exception {
+        String body = target.get(uri("/ok"), NO_HEADERS, entity -> {
+            assertThat(entity.isStreaming()).isTrue();
+            return EntityUtils.toString(entity, StandardCharsets.UTF_8);
+        });
+
+        assertThat(body).isEqualTo("{\"id\":\"1\"}");
+
+        // The connection went back to the pool even though the reader didn't read the body.
+        String unread = target.get(uri("/ok"), NO_HEADERS, entity -> "unread");
+        assertThat(unread).isEqualTo("unread");
+        assertThat(clientPorts).hasSize(1);
+
+        HttpEntity empty = target.get(uri("/empty"), NO_HEADERS, entity -> entity);
+        assertThat(empty).isNull();
+    }
+
+    @Test
+    public void shouldNotHandErrorsToReader() {
+        assertThatExceptionOfType(UnauthorizedException.class)
+                .isThrownBy(() -> target.get(uri("/unauthorized"), NO_HEADERS, entity -> {
+                    throw new AssertionError("Read an error response");
+                }))
+                .withMessage("The access token expired");
+    }
+
+    @Test
+    public void shouldGiveUpOnSlowResponses() {
+        assertThatExceptionOfType(SocketTimeoutException.class).isThrownBy(() -> target.get(uri("/slow"), NO_HEADERS));
+    }
+
+    @Test
+    public void shouldServePublicResponsesFromTheCache() throws Exception {
+        SpotifyHttpTransport caching = getCachingTransport();
+
+        assertThat(caching.get(uri("/public"), AUTHORIZED)).isEqualTo("{\"id\":\"1\"}");
+        assertThat(caching.get(uri("/public"), AUTHORIZED)).isEqualTo("{\"id\":\"1\"}");
+
+        assertThat(served).hasValue(1);
+        assertThat(caching.getCacheStats().getMisses(getEndpoint("/public"))).isEqualTo(1);
+        assertThat(caching.getCacheStats().getHits(getEndpoint("/public"))).isEqualTo(1);
+        caching.close();
+    }
+
+    @Test
+    public void shouldRevalidateWithETag() throws Exception {
+        SpotifyHttpTransport caching = getCachingTransport();
+
+        caching.get(uri("/revalidate"), AUTHORIZED);
+        assertThat(caching.get(uri("/revalidate"), AUTHORIZED)).isEqualTo("{\"id\":\"1\"}");
+
+        assertThat(served).hasValue(2);
+        assertThat(caching.getCacheStats().getRevalidations(getEndpoint("/revalidate"))).isEqualTo(1);
+        caching.close();
+    }
+
+    @Test
+    public void shouldServePrivateResponsesFromTheCacheToTheSameToken() throws Exception {
+        SpotifyHttpTransport caching = getCachingTransport();
+
+        assertThat(caching.get(uri("/private"), AUTHORIZED)).isEqualTo("{\"id\":\"1\"}");
+        assertThat(caching.get(uri("/private"), AUTHORIZED)).isEqualTo("{\"id\":\"1\"}");
+
+        assertThat(served).hasValue(1);
+        assertThat(caching.getCacheStats().getHits(getEndpoint("/private"))).isEqualTo(1);
+        caching.close();
+    }
+
+    @Test
+    public void shouldNotServeOneTokensResponsesToAnother() throws Exception {
+        SpotifyHttpTransport caching = getCachingTransport();
+
+        caching.get(uri("/private"), AUTHORIZED);
+        caching.get(uri("/private"), OTHER_USER);
+
+        assertThat(served).hasValue(2);
+        assertThat(caching.getCacheStats().getHits()).isZero();
+        caching.close();
+    }
+
+    @Test
+    public void shouldRefuseRequestsOnceEndpointKeepsFailing() throws Exception {
+        SpotifyHttpTransport breaking = getBreakingTransport();
+
+        for (int i = 0; i < 2; i++) {
+            assertThatExceptionOfType(ServiceUnavailableException.class).isThrownBy(() -> breaking.get(uri("/unavailable"), NO_HEADERS));
+        }
+        assertThatExceptionOfType(SpotifyCircuitOpenException.class).isThrownBy(() -> breaking.get(uri("/unavailable"), NO_HEADERS))
+                .matches(e -> e.getRetryAfter().compareTo(Duration.ZERO) > 0);
+        assertThat(served).hasValue(2);
+
+        // Other endpoints have circuits of their own.
+        assertThat(breaking.get(uri("/ok"), NO_HEADERS)).isEqualTo("{\"id\":\"1\"}");
+        breaking.close();
+    }
+
+    @Test
+    public void shouldNotCountClientErrorsAgainstEndpoint() throws Exception {
+        SpotifyHttpTransport breaking = getBreakingTransport();
+
+        for (int i = 0; i < 3; i++) {
+            assertThatExceptionOfType(UnauthorizedException.class).isThrownBy(() -> breaking.get(uri("/unauthorized"), NO_HEADERS));
+        }
+        breaking.close();
+    }
+
+    private SpotifyHttpTransport getCachingTransport() {
+        return new SpotifyHttpTransport(4, Duration.ofSeconds(30), Duration.ofSeconds(1), Duration.ofSeconds(1),
+                new BasicHttpCacheStorage(CacheConfig.DEFAULT), 64 * 1024, null);
+    }
+
+    private SpotifyHttpTransport getBreakingTransport() {
+        return new SpotifyHttpTransport(4, Duration.ofSeconds(30), Duration.ofSeconds(1), Duration.ofSeconds(1), null, 0,
+                new SpotifyCircuitBreaker(2, 2, 0.5, Duration.ofSeconds(1), Duration.ofMinutes(1), 1));
+    }
+
+    private String getEndpoint(String path) {
+        return SpotifyHttpCacheStats.getEndpoint(uri(path));
+    }
+
+    private URI uri(String path) {
+        return URI.create(host.toURI() + path);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.ciakraa.wavelet.web_api;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+public final class SpotifyRateLimiterUnitTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    // 10 permits per second, so a token every 100ms, with bursts of up to 5.
+    private AtomicLong now;
+    private SpotifyRateLimiter target;
+
+    @Before
+    public void setUp() {
+        now = new AtomicLong(SECOND);
+        target = new SpotifyRateLimiter(10, 5, now::get);
+    }
+
+    @Test
+    public void shouldThrowExceptionWhenPassedInvalidArgs() {
+        assertThatIllegalArgumentException().isThrownBy(() -> new SpotifyRateLimiter(0, 5));
+        assertThatIllegalArgumentException().isThrownBy(() -> new SpotifyRateLimiter(10, 0));
+    }
+
+    @Test
+    public void shouldAllowABurstThenPaceCallsAtTheRate() {
+        for (int i = 0; i < 5; i++) {
+            assertThat(target.reserve()).isEqualTo(0);
+        }
+
+        assertThat(target.reserve()).isEqualTo(millis(100));
+        assertThat(target.reserve()).isEqualTo(millis(200));
+    }
+
+    @Test
+    public void shouldRefillUpToTheBurstWhileIdle() {
+        for (int i = 0; i < 5; i++) {
+            target.reserve();
+        }
+
+        now.addAndGet(10 * SECOND);
+        for (int i = 0; i < 5; i++) {
+            assertThat(target.reserve()).isEqualTo(0);
+        }
+        assertThat(target.reserve()).isEqualTo(millis(100));
+    }
+
+    @Test
+    public void shouldHoldEveryCallerBackWhilePaused() {
+        target.pause(Duration.ofSeconds(3));
+        assertThat(target.isPaused()).isTrue();
+
+        // Once the pause is over, calls resume at the steady rate rather than as a burst.
+        assertThat(target.reserve()).isEqualTo(3 * SECOND);
+        assertThat(target.reserve()).isEqualTo(3 * SECOND + millis(100));
+        assertThat(target.reserve()).isEqualTo(3 * SECOND + millis(200));
+
+        now.addAndGet(3 * SECOND);
+        assertThat(target.isPaused()).isFalse();
+    }
+
+    @Test
+    public void shouldNotShortenAPauseWhichIsAlreadyLonger() {
+        target.pause(Duration.ofSeconds(5));
+        target.pause(Duration.ofSeconds(1));
+
+        assertThat(target.reserve()).isEqualTo(5 * SECOND);
+    }
+
+    @Test
+    public void shouldNotBlockWhenTokensAreAvailable() throws InterruptedException {
+        SpotifyRateLimiter limiter = new SpotifyRateLimiter(10, 5);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            limiter.acquire();
+        }
+        assertThat(System.nanoTime() - start).isLessThan(millis(100));
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
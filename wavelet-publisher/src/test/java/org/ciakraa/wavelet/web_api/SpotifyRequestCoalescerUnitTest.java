@@ -0,0 +1,117 @@
+package org.ciakraa.wavelet.web_api;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public final class SpotifyRequestCoalescerUnitTest {
+
+    private SpotifyRequestCoalescer target;
+
+    @Before
+    public void setUp() {
+        target = new SpotifyRequestCoalescer();
+    }
+
+    @Test
+    public void shouldThrowExceptionWhenPassedInvalidKey() {
+        assertThatIllegalArgumentException().isThrownBy(() -> target.execute(" ", CompletableFuture::new, e -> false));
+    }
+
+    @Test
+    public void shouldShareIdenticalRequestInFlight() {
+        CompletableFuture<String> response = new CompletableFuture<>();
+        CountingRequest<String> request = new CountingRequest<>(() -> response);
+
+        CompletableFuture<String> first = target.execute("key", request, e -> false);
+        CompletableFuture<String> second = target.execute("key", request, e -> false);
+        assertThat(target.size()).isEqualTo(1);
+
+        response.complete("result");
+        assertThat(first.join()).isEqualTo("result");
+        assertThat(second.join()).isEqualTo("result");
+        assertThat(request.count.get()).isEqualTo(1);
+        assertThat(target.size()).isZero();
+    }
+
+    @Test
+    public void shouldNotShareDifferentOrFinishedRequests() {
+        CountingRequest<String> request = new CountingRequest<>(() -> new CompletableFuture<>());
+        target.execute("one", request, e -> false);
+        target.execute("two", request, e -> false);
+        assertThat(request.count.get()).isEqualTo(2);
+
+        CountingRequest<String> done = new CountingRequest<>(() -> CompletableFuture.completedFuture("result"));
+        target.execute("three", done, e -> false).join();
+        target.execute("three", done, e -> false).join();
+        assertThat(done.count.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldSendJoinedRequestAloneAfterFailureOfTheSharedOne() {
+        CompletableFuture<String> rejected = new CompletableFuture<>();
+        CompletableFuture<String> first = target.execute("key", () -> rejected, e -> e instanceof SpotifyUnauthorizedException);
+        CompletableFuture<String> second = target.execute("key", () -> CompletableFuture.completedFuture("own token"),
+                e -> e instanceof SpotifyUnauthorizedException);
+
+        rejected.completeExceptionally(new SpotifyUnauthorizedException());
+        assertThatThrownBy(first::join).hasCauseInstanceOf(SpotifyUnauthorizedException.class);
+        assertThat(second.join()).isEqualTo("own token");
+    }
+
+    @Test
+    public void shouldShareOtherFailures() {
+        CompletableFuture<String> failed = new CompletableFuture<>();
+        CountingRequest<String> request = new CountingRequest<>(() -> failed);
+        CompletableFuture<String> first = target.execute("key", request, e -> e instanceof SpotifyUnauthorizedException);
+        CompletableFuture<String> second = target.execute("key", request, e -> e instanceof SpotifyUnauthorizedException);
+
+        failed.completeExceptionally(new IllegalStateException());
+        assertThatThrownBy(first::join).hasCauseInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(second::join).hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(request.count.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldForgetRequestWhichFailsToSend() {
+        CompletableFuture<String> result = target.execute("key", () -> {
+            throw new IllegalStateException();
+        }, e -> false);
+
+        assertThatThrownBy(result::join).hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(target.size()).isZero();
+    }
+
+    @Test
+    public void shouldNotLetOneCallerCancelTheSharedRequest() {
+        CompletableFuture<String> response = new CompletableFuture<>();
+        CompletableFuture<String> first = target.execute("key", () -> response, e -> false);
+        CompletableFuture<String> second = target.execute("key", () -> response, e -> false);
+
+        first.cancel(false);
+        response.complete("result");
+        assertThat(second.join()).isEqualTo("result");
+    }
+
+    private static final class CountingRequest<T> implements Supplier<CompletableFuture<T>> {
+        private final Supplier<CompletableFuture<T>> response;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private CountingRequest(Supplier<CompletableFuture<T>> response) {
+            this.response = response;
+        }
+
+        @Override
+        public CompletableFuture<T> get() {
+            count.incrementAndGet();
+            return response.get();
+        }
+    }
+}
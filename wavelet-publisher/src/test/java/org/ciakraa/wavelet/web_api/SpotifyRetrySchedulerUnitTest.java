@@ -0,0 +1,164 @@
+package org.ciakraa.wavelet.web_api;
+
+import com.wrapper.spotify.exceptions.detailed.BadGatewayException;
+import com.wrapper.spotify.exceptions.detailed.NotFoundException;
+import com.wrapper.spotify.exceptions.detailed.ServiceUnavailableException;
+import com.wrapper.spotify.exceptions.detailed.TooManyRequestsException;
+import com.wrapper.spotify.exceptions.detailed.UnauthorizedException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+public final class SpotifyRetrySchedulerUnitTest {
+
+    private static final Duration BASE_DELAY = Duration.ofMillis(1);
+    private static final Duration MAX_DELAY = Duration.ofMillis(10);
+    private static final int MAX_ATTEMPTS = 3;
+
+    private ScheduledExecutorService timer;
+    private SpotifyRateLimiter rateLimiter;
+    private SpotifyRetryScheduler target;
+
+    @Before
+    public void setUp() {
+        timer = Executors.newSingleThreadScheduledExecutor();
+        rateLimiter = new SpotifyRateLimiter(1000, 1000);
+        target = new SpotifyRetryScheduler(rateLimiter, timer, Runnable::run, BASE_DELAY, MAX_DELAY, MAX_ATTEMPTS,
+                Duration.ofSeconds(10));
+    }
+
+    @After
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    @Test
+    public void shouldThrowExceptionWhenPassedInvalidArgs() {
+        assertThatIllegalArgumentException().isThrownBy(() -> new SpotifyRetryScheduler(rateLimiter, timer, Runnable::run,
+                Duration.ZERO, MAX_DELAY, MAX_ATTEMPTS, Duration.ofSeconds(10)));
+        assertThatIllegalArgumentException().isThrownBy(() -> new SpotifyRetryScheduler(rateLimiter, timer, Runnable::run,
+                MAX_DELAY, BASE_DELAY, MAX_ATTEMPTS, Duration.ofSeconds(10)));
+        assertThatIllegalArgumentException().isThrownBy(() -> new SpotifyRetryScheduler(rateLimiter, timer, Runnable::run,
+                BASE_DELAY, MAX_DELAY, 0, Duration.ofSeconds(10)));
+    }
+
+    @Test
+    public void shouldReturnResultWhenRequestSucceeds() throws Exception {
+        assertThat(get(target.execute(() -> "tracks", true))).hasValue("tracks");
+    }
+
+    @Test
+    public void shouldRetryTransientFailures() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<Optional<String>> result = target.execute(() -> {
+            switch (calls.incrementAndGet()) {
+                case 1: throw new ServiceUnavailableException();
+                case 2: throw new IOException("Connection reset");
+                default: return "tracks";
+            }
+        }, true);
+
+        assertThat(get(result)).hasValue("tracks");
+        assertThat(calls.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldGiveUpAfterMaxAttempts() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<Optional<String>> result = target.execute(() -> {
+            calls.incrementAndGet();
+            throw new BadGatewayException();
+        }, true);
+
+        assertThat(get(result)).isEmpty();
+        assertThat(calls.get()).isEqualTo(MAX_ATTEMPTS);
+    }
+
+    @Test
+    public void shouldNotRetryOtherFailures() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<Optional<String>> result = target.execute(() -> {
+            calls.incrementAndGet();
+            throw new NotFoundException();
+        }, true);
+
+        assertThat(get(result)).isEmpty();
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldFailWithoutRetryingWhenCircuitIsOpen() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<Optional<String>> result = target.execute(() -> {
+            calls.incrementAndGet();
+            throw new SpotifyCircuitOpenException("api.spotify.com/v1/audio-features", Duration.ofSeconds(30));
+        }, false);
+
+        assertThatExceptionOfType(ExecutionException.class).isThrownBy(() -> get(result))
+                .withCauseInstanceOf(SpotifyCircuitOpenException.class);
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldFailWithUnauthorizedOnlyWithAccess() throws Exception {
+        CompletableFuture<Optional<String>> withAccess = target.execute(() -> { throw new UnauthorizedException(); }, true);
+        CompletableFuture<Optional<String>> withoutAccess = target.execute(() -> { throw new UnauthorizedException(); }, false);
+
+        assertThatExceptionOfType(ExecutionException.class).isThrownBy(() -> get(withAccess))
+                .withCauseInstanceOf(SpotifyUnauthorizedException.class);
+        assertThat(get(withoutAccess)).isEmpty();
+    }
+
+    @Test
+    public void shouldPauseEveryoneAndGiveUpWhenRetryAfterIsPastDeadline() throws Exception {
+        target = new SpotifyRetryScheduler(rateLimiter, timer, Runnable::run, BASE_DELAY, MAX_DELAY, MAX_ATTEMPTS,
+                Duration.ofMillis(50));
+
+        CompletableFuture<Optional<String>> result = target.execute(() -> { throw new TooManyRequestsException("Slow down", 0); }, true);
+
+        assertThat(get(result)).isEmpty();
+        assertThat(rateLimiter.isPaused()).isTrue();
+    }
+
+    @Test
+    public void shouldNotRunRequestOnCallingThread() {
+        List<Runnable> held = new ArrayList<>();
+        target = new SpotifyRetryScheduler(rateLimiter, timer, held::add, BASE_DELAY, MAX_DELAY, MAX_ATTEMPTS,
+                Duration.ofSeconds(10));
+
+        CompletableFuture<Optional<String>> result = target.execute(() -> "tracks", true);
+        assertThat(result).isNotDone();
+        assertThat(held).hasSize(1);
+
+        held.get(0).run();
+        assertThat(result).isCompletedWithValue(Optional.of("tracks"));
+    }
+
+    @Test
+    public void shouldKeepBackoffWithinItsCap() {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            long ceiling = Math.min(MAX_DELAY.toNanos(), BASE_DELAY.toNanos() << Math.min(attempt, 20));
+            assertThat(target.getBackoffNanos(attempt)).isBetween(0L, ceiling);
+        }
+    }
+
+    private static <T> T get(CompletableFuture<T> future) throws Exception {
+        return future.get(5, TimeUnit.SECONDS);
+    }
+}
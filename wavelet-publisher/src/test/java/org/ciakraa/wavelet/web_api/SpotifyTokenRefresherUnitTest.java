@@ -0,0 +1,168 @@
+package org.ciakraa.wavelet.web_api;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.ciakraa.wavelet.common.CommonTestConstants.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public final class SpotifyTokenRefresherUnitTest extends AbstractWebApiUnitTest {
+
+    private static final Instant NOW = Instant.parse("2018-06-03T21:14:47Z");
+    private static final Duration LEAD = Duration.ofMinutes(10);
+
+    @Mock
+    private SpotifyAuthorizationService authService;
+
+    @Mock
+    private SpotifyAccessTokenCache tokenCache;
+
+    private SpotifyTokenRefresher target;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(tokenCache.getCachedUser(any())).thenReturn(Optional.empty());
+
+        target = new SpotifyTokenRefresher(authService, tokenCache, LEAD, 2);
+    }
+
+    @Test
+    public void shouldThrowExceptionWhenPassedInvalidArgs() {
+        assertThatIllegalArgumentException().isThrownBy(() -> new SpotifyTokenRefresher(authService, tokenCache, LEAD, 0));
+        assertThatIllegalArgumentException().isThrownBy(() -> target.track(mock(SpotifyUserCredentials.class)));
+    }
+
+    @Test
+    public void shouldNotRefreshTokenBeforeItIsDue() {
+        target.track(getUserCred(USER_ID, ACCESS_TOKEN, NOW.plus(LEAD).plusSeconds(1)));
+
+        target.refreshExpiring(NOW).join();
+        verify(authService, never()).refreshUserAsync(any());
+    }
+
+    @Test
+    public void shouldRefreshDueTokenAndHandItToPolls() {
+        SpotifyUserCredentials userCred = getUserCred(USER_ID, ACCESS_TOKEN, NOW.plus(LEAD));
+        SpotifyUserCredentials refreshed = getUserCred(USER_ID, REFRESHED_ACCESS_TOKEN, NOW.plus(Duration.ofHours(1)));
+        when(authService.refreshUserAsync(userCred)).thenReturn(completedFuture(Optional.of(refreshed)));
+        target.track(userCred);
+
+        target.refreshExpiring(NOW).join();
+        verify(tokenCache).put(refreshed);
+
+        // The refreshed token isn't due until ten minutes before it expires.
+        target.refreshExpiring(NOW.plus(Duration.ofMinutes(49))).join();
+        verify(authService, times(1)).refreshUserAsync(any());
+        assertThat(target.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRefreshAtMostABatchOfTokensSoonestExpiringFirst() {
+        SpotifyUserCredentials first = getUserCred("first", ACCESS_TOKEN, NOW.minusSeconds(3));
+        SpotifyUserCredentials second = getUserCred("second", ACCESS_TOKEN, NOW.minusSeconds(2));
+        SpotifyUserCredentials third = getUserCred("third", ACCESS_TOKEN, NOW.minusSeconds(1));
+        when(authService.refreshUserAsync(any())).thenReturn(completedFuture(Optional.empty()));
+        target.track(third);
+        target.track(first);
+        target.track(second);
+
+        target.refreshExpiring(NOW).join();
+        verify(authService).refreshUserAsync(first);
+        verify(authService).refreshUserAsync(second);
+        verify(authService, never()).refreshUserAsync(third);
+
+        target.refreshExpiring(NOW).join();
+        verify(authService).refreshUserAsync(third);
+    }
+
+    @Test
+    public void shouldRetryFailedRefreshLater() {
+        SpotifyUserCredentials userCred = getUserCred(USER_ID, ACCESS_TOKEN, NOW);
+        when(authService.refreshUserAsync(userCred)).thenReturn(completedFuture(Optional.empty()));
+        target.track(userCred);
+
+        target.refreshExpiring(NOW).join();
+        target.refreshExpiring(NOW).join();
+        verify(authService, times(1)).refreshUserAsync(userCred);
+
+        target.refreshExpiring(NOW.plus(WebApiConstants.TOKEN_REFRESH_RETRY_DELAY)).join();
+        verify(authService, times(2)).refreshUserAsync(userCred);
+        verify(tokenCache, never()).put(any());
+    }
+
+    @Test
+    public void shouldStopRefreshingRevokedToken() {
+        SpotifyUserCredentials userCred = getUserCred(USER_ID, ACCESS_TOKEN, NOW);
+        CompletableFuture<Optional<SpotifyUserCredentials>> revoked = new CompletableFuture<>();
+        revoked.completeExceptionally(new SpotifyUnauthorizedException());
+        when(authService.refreshUserAsync(userCred)).thenReturn(revoked);
+        target.track(userCred);
+
+        target.refreshExpiring(NOW).join();
+        assertThat(target.size()).isZero();
+    }
+
+    @Test
+    public void shouldNotRefreshUntrackedUser() {
+        target.track(getUserCred(USER_ID, ACCESS_TOKEN, NOW));
+        target.untrack(USER_ID);
+
+        target.refreshExpiring(NOW).join();
+        verify(authService, never()).refreshUserAsync(any());
+        assertThat(target.size()).isZero();
+    }
+
+    @Test
+    public void shouldNotRequeueUserUntrackedDuringRefresh() {
+        SpotifyUserCredentials userCred = getUserCred(USER_ID, ACCESS_TOKEN, NOW);
+        CompletableFuture<Optional<SpotifyUserCredentials>> inFlight = new CompletableFuture<>();
+        when(authService.refreshUserAsync(userCred)).thenReturn(inFlight);
+        target.track(userCred);
+
+        CompletableFuture<Void> done = target.refreshExpiring(NOW);
+        target.untrack(USER_ID);
+        inFlight.complete(Optional.of(getUserCred(USER_ID, REFRESHED_ACCESS_TOKEN, NOW.plus(Duration.ofHours(1)))));
+        done.join();
+
+        assertThat(target.size()).isZero();
+    }
+
+    @Test
+    public void shouldSkipRefreshWhenPollAlreadyRefreshedToken() {
+        SpotifyUserCredentials userCred = getUserCred(USER_ID, ACCESS_TOKEN, NOW);
+        when(tokenCache.getCachedUser(USER_ID)).thenReturn(Optional.of(
+                getUserCred(USER_ID, REFRESHED_ACCESS_TOKEN, NOW.plus(Duration.ofHours(1)))));
+        target.track(userCred);
+
+        target.refreshExpiring(NOW).join();
+        verify(authService, never()).refreshUserAsync(any());
+        assertThat(target.size()).isEqualTo(1);
+    }
+
+    private SpotifyUserCredentials getUserCred(String userId, String accessToken, Instant expiresAt) {
+        return new SpotifyUserCredentials.Builder()
+                .setClientCred(getClientCred())
+                .setUserId(userId)
+                .setUserDisplayName(USER_DISPLAY_NAME)
+                .setAccessToken(accessToken)
+                .setRefreshToken(REFRESH_TOKEN)
+                .setAccessTokenExpiresAt(expiresAt.toEpochMilli())
+                .build();
+    }
+}